@@ -0,0 +1,227 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks storage roots for audio files on a bounded fork/join pool and hands what it finds to
+ * the media scanner in batches while the walk is still running.
+ */
+public class AudioFileScanner {
+    private static final String TAG = "AudioFileScanner";
+    private static final int MAX_PARALLELISM = 4;
+    private static final int SCAN_BATCH_SIZE = 200;
+
+    public interface OnScanFinishedListener {
+        /**
+         * Called on a background thread once the walk is done and the media scanner has
+         * processed every submitted file.
+         */
+        void onScanFinished(int audioFileCount);
+    }
+
+    private final Context context;
+    private final ForkJoinPool pool;
+    private final AtomicInteger visitedFiles = new AtomicInteger();
+    private final AtomicInteger visitedDirectories = new AtomicInteger();
+    private final AtomicInteger submittedFiles = new AtomicInteger();
+    private final AtomicInteger scannedFiles = new AtomicInteger();
+    private final AtomicBoolean walkFinished = new AtomicBoolean(false);
+    private final AtomicBoolean finishReported = new AtomicBoolean(false);
+    private final List<String> pendingBatch = new ArrayList<>(SCAN_BATCH_SIZE);
+    private OnScanFinishedListener listener;
+    private long startTime;
+
+    public AudioFileScanner(Context context) {
+        this.context = context.getApplicationContext();
+        this.pool = new ForkJoinPool(Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Starts the walk in the background. A scanner instance can only be used once.
+     */
+    public void scan(List<File> roots, OnScanFinishedListener listener) {
+        this.listener = listener;
+        startTime = System.nanoTime();
+        pool.execute(new RootsTask(new ArrayList<>(roots)));
+        pool.shutdown();
+    }
+
+    static List<File> normalizeRoots(List<File> roots) {
+        List<File> canonicalRoots = new ArrayList<>();
+        for (File root : roots) {
+            if (root == null || !root.isDirectory()) {
+                continue;
+            }
+            try {
+                canonicalRoots.add(root.getCanonicalFile());
+            } catch (IOException e) {
+                Log.w(TAG, "normalizeRoots: Cannot resolve " + root.getAbsolutePath(), e);
+            }
+        }
+        Collections.sort(canonicalRoots, (a, b) -> Integer.compare(a.getPath().length(), b.getPath().length()));
+
+        List<File> result = new ArrayList<>();
+        for (File root : canonicalRoots) {
+            boolean covered = false;
+            for (File accepted : result) {
+                String acceptedPath = accepted.getPath();
+                if (root.getPath().equals(acceptedPath) || root.getPath().startsWith(acceptedPath.endsWith(File.separator)
+                        ? acceptedPath : acceptedPath + File.separator)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (covered) {
+                Log.d(TAG, "normalizeRoots: Skipping nested root " + root.getPath());
+            } else {
+                result.add(root);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isAudioFile(String name) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        return lowerName.endsWith(".mp3") || lowerName.endsWith(".wav") ||
+                lowerName.endsWith(".aac") || lowerName.endsWith(".ogg");
+    }
+
+    private static boolean shouldSkipDirectory(File dir) {
+        String name = dir.getName();
+        if (name.startsWith(".")) {
+            return true;
+        }
+        File parent = dir.getParentFile();
+        return parent != null && "Android".equals(parent.getName()) && ("data".equals(name) || "obb".equals(name));
+    }
+
+    private void onAudioFileFound(String path) {
+        String[] batch = null;
+        synchronized (pendingBatch) {
+            pendingBatch.add(path);
+            if (pendingBatch.size() >= SCAN_BATCH_SIZE) {
+                batch = pendingBatch.toArray(new String[0]);
+                pendingBatch.clear();
+            }
+        }
+        if (batch != null) {
+            submitBatch(batch);
+        }
+    }
+
+    private void submitBatch(String[] batch) {
+        submittedFiles.addAndGet(batch.length);
+        MediaScannerConnection.scanFile(context, batch, null, (path, uri) -> {
+            scannedFiles.incrementAndGet();
+            checkFinished();
+        });
+    }
+
+    private void onWalkFinished() {
+        String[] batch;
+        synchronized (pendingBatch) {
+            batch = pendingBatch.toArray(new String[0]);
+            pendingBatch.clear();
+        }
+        if (batch.length > 0) {
+            submitBatch(batch);
+        }
+
+        long elapsedMs = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+        int files = visitedFiles.get();
+        Log.d(TAG, "onWalkFinished: visited " + files + " files in " + visitedDirectories.get() + " directories, found " +
+                submittedFiles.get() + " audio files, time=" + elapsedMs + "ms, filesPerSec=" + (files * 1000L / elapsedMs));
+        walkFinished.set(true);
+        checkFinished();
+    }
+
+    private void checkFinished() {
+        if (walkFinished.get() && scannedFiles.get() >= submittedFiles.get() && finishReported.compareAndSet(false, true)) {
+            Log.d(TAG, "checkFinished: mediaScannerCompleted, files=" + submittedFiles.get() +
+                    ", totalTime=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+            if (listener != null) {
+                listener.onScanFinished(submittedFiles.get());
+            }
+        }
+    }
+
+    private class RootsTask extends RecursiveAction {
+        private final List<File> roots;
+
+        RootsTask(List<File> roots) {
+            this.roots = roots;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<File> normalizedRoots = normalizeRoots(roots);
+                Log.d(TAG, "RootsTask: roots=" + normalizedRoots + ", parallelism=" + getPool().getParallelism());
+                List<DirectoryTask> tasks = new ArrayList<>();
+                for (File root : normalizedRoots) {
+                    tasks.add(new DirectoryTask(root));
+                }
+                invokeAll(tasks);
+            } catch (Exception e) {
+                Log.e(TAG, "RootsTask: Error walking storage", e);
+            } finally {
+                onWalkFinished();
+            }
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private final File dir;
+
+        DirectoryTask(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                Log.w(TAG, "DirectoryTask: couldNotGetFilesFromTheDirectory: " + dir.getAbsolutePath());
+                return;
+            }
+            visitedDirectories.incrementAndGet();
+            for (File file : files) {
+                if (".nomedia".equals(file.getName())) {
+                    return;
+                }
+            }
+
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            List<String> audioPaths = new ArrayList<>();
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (!shouldSkipDirectory(file)) {
+                        subtasks.add(new DirectoryTask(file));
+                    }
+                } else {
+                    visitedFiles.incrementAndGet();
+                    if (isAudioFile(file.getName())) {
+                        audioPaths.add(file.getAbsolutePath());
+                    }
+                }
+            }
+            for (String path : audioPaths) {
+                onAudioFileFound(path);
+            }
+            invokeAll(subtasks);
+        }
+    }
+}
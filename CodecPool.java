@@ -0,0 +1,95 @@
+package com.example.promusic;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stopped audio decoders, at most one per MIME type, for {@link CodecTrackPlayer}. Creating a
+ * decoder allocates the codec component, which is the slowest step of opening a track, while
+ * a stopped decoder only has to be configured for the new format. {@link #prewarm(String...)}
+ * creates decoders for the common formats in the background before the first track plays.
+ */
+public class CodecPool {
+    private static final String TAG = "CodecPool";
+    private static final ExecutorService PREWARM_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final CodecPool instance = new CodecPool();
+
+    private final Map<String, MediaCodec> idle = new HashMap<>();
+
+    private CodecPool() {
+    }
+
+    public static CodecPool getInstance() {
+        return instance;
+    }
+
+    public void prewarm(String... mimeTypes) {
+        PREWARM_EXECUTOR.execute(() -> {
+            for (String mime : mimeTypes) {
+                synchronized (idle) {
+                    if (idle.containsKey(mime)) {
+                        continue;
+                    }
+                }
+                long startTime = System.nanoTime();
+                try {
+                    recycle(mime, MediaCodec.createDecoderByType(mime));
+                    Log.d(TAG, "prewarm: " + mime + " in " + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "prewarm: noDecoderFor " + mime, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns an unconfigured decoder for {@code mime}, from the pool if one is idle.
+     */
+    public MediaCodec acquire(String mime) throws IOException {
+        synchronized (idle) {
+            MediaCodec codec = idle.remove(mime);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        Log.d(TAG, "acquire: creating decoder for " + mime);
+        return MediaCodec.createDecoderByType(mime);
+    }
+
+    /**
+     * Stops {@code codec} and keeps it for the next track of the same type, or releases it if
+     * one is already kept.
+     */
+    public void recycle(String mime, MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "recycle: errorStoppingCodec", e);
+            codec.release();
+            return;
+        }
+        synchronized (idle) {
+            if (!idle.containsKey(mime)) {
+                idle.put(mime, codec);
+                return;
+            }
+        }
+        codec.release();
+    }
+
+    public void clear() {
+        synchronized (idle) {
+            for (MediaCodec codec : idle.values()) {
+                codec.release();
+            }
+            idle.clear();
+        }
+    }
+}
@@ -0,0 +1,762 @@
+package com.example.promusic;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link TrackPlayer} that decodes with {@link MediaExtractor} and {@link MediaCodec} and
+ * writes PCM to a streaming {@link AudioTrack}. Opening a track skips MediaPlayer's native
+ * player setup: the decoder comes from {@link CodecPool} already created, and the decode
+ * thread starts filling the AudioTrack as soon as the first buffer is decoded, before
+ * {@link #start()}, so start only has to call play.
+ *
+ * <p>The AudioTrack buffer, twice the platform minimum, is the only buffer between decoder
+ * and sink. Writes are non-blocking; when the buffer is full the decode thread waits a few
+ * milliseconds while playing, or until the next command while paused. Tracks do not chain:
+ * {@link #setNextPlayer(TrackPlayer)} returns false and the next player is started from the
+ * completion callback.
+ *
+ * <p>The low-power variant is meant for long screen-off sessions. Where the device can play
+ * the track's encoding in offload, it skips the decoder and writes compressed samples to an
+ * offloaded AudioTrack, so the DSP decodes and the app thread only wakes when the DSP asks
+ * for data. Otherwise, or if the platform tears the offloaded track down, it falls back to
+ * decoding into a deep-buffer AudioTrack: power-saving performance mode and
+ * {@link #LOW_POWER_BUFFER_MS} of PCM, topped up every {@link #LOW_POWER_WRITE_WAIT_MS}.
+ * Every wakeup of the decode thread is recorded in {@link WakeupCounter}.
+ *
+ * <p>Each decode thread belongs to one generation, and {@link #reset()} starts the next one
+ * without waiting for the old thread to exit. The thread writes the shared fields only under
+ * {@code lock} and only while its generation is current, so a thread that outlives its reset
+ * publishes nothing.
+ */
+public class CodecTrackPlayer implements TrackPlayer {
+    static final String BACKEND = "codec";
+    static final String BACKEND_LOW_POWER = "low_power";
+    private static final String TAG = "CodecTrackPlayer";
+    private static final long CODEC_TIMEOUT_US = 10_000;
+    private static final long WRITE_WAIT_MS = 5;
+    private static final int BUFFER_MULTIPLIER = 2;
+    private static final int LOW_POWER_BUFFER_MS = 1000;
+    private static final long LOW_POWER_WRITE_WAIT_MS = 250;
+    private static final int OFFLOAD_BUFFER_BYTES = 256 * 1024;
+    private static final long OFFLOAD_WAIT_MS = 5000;
+    private static final int OFFLOAD_UNSUPPORTED = 0;
+    private static final int OFFLOAD_DONE = 1;
+    private static final int OFFLOAD_TORN_DOWN = 2;
+    private static final String WAKEUP_SOURCE = "decode";
+
+    private final Handler handler = new Handler(Looper.myLooper());
+    private final AudioAttributes attributes = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+            .build();
+    private final Object lock = new Object();
+    private final AtomicLong pendingSeekUs = new AtomicLong(-1);
+    private final boolean lowPower;
+    private Listener listener;
+    private String path;
+    private Thread decodeThread;
+
+    private volatile int generation = 0;
+    private volatile boolean playing = false;
+    private volatile boolean completed = false;
+    private volatile boolean looping = false;
+    private volatile float volume = 1.0f;
+    private volatile int durationMs = 0;
+    private volatile long positionBaseUs = 0;
+    private volatile int sampleRate = 0;
+    private volatile AudioTrack track;
+    private volatile boolean offloadTornDown = false;
+    private volatile boolean presentationEnded = false;
+
+    private final AudioTrack.StreamEventCallback streamEvents = new AudioTrack.StreamEventCallback() {
+        @Override
+        public void onTearDown(AudioTrack out) {
+            synchronized (lock) {
+                if (out == track) {
+                    offloadTornDown = true;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onPresentationEnded(AudioTrack out) {
+            synchronized (lock) {
+                if (out == track) {
+                    presentationEnded = true;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onDataRequest(AudioTrack out, int sizeInFrames) {
+            wake();
+        }
+    };
+
+    public CodecTrackPlayer() {
+        this(false);
+    }
+
+    public CodecTrackPlayer(boolean lowPower) {
+        this.lowPower = lowPower;
+    }
+
+    @Override
+    public String getBackend() {
+        return lowPower ? BACKEND_LOW_POWER : BACKEND;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        if (this.path != null) {
+            throw new IllegalStateException("setDataSource: already set, reset first");
+        }
+        this.path = path;
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (path == null || decodeThread != null) {
+            throw new IllegalStateException("prepareAsync: no data source or already preparing");
+        }
+        int gen = generation;
+        String source = path;
+        decodeThread = new Thread(() -> decode(source, gen), "CodecTrack");
+        decodeThread.start();
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            if (completed) {
+                completed = false;
+                pendingSeekUs.set(0);
+            }
+            playing = true;
+            AudioTrack out = track;
+            if (out != null) {
+                out.play();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (lock) {
+            playing = false;
+            AudioTrack out = track;
+            if (out != null) {
+                out.pause();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        pause();
+    }
+
+    /**
+     * Pauses the current AudioTrack and tells the decode thread to stop, without waiting for it.
+     * The thread returns the decoder to {@link CodecPool} and releases the track on its way out.
+     */
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            generation++;
+            playing = false;
+            AudioTrack out = track;
+            if (out != null) {
+                out.pause();
+            }
+            completed = false;
+            durationMs = 0;
+            positionBaseUs = 0;
+            sampleRate = 0;
+            track = null;
+            pendingSeekUs.set(-1);
+            lock.notifyAll();
+        }
+        decodeThread = null;
+        path = null;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        listener = null;
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        synchronized (lock) {
+            completed = false;
+            pendingSeekUs.set(Math.max(positionMs, 0) * 1000L);
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return playing && !completed;
+    }
+
+    /**
+     * The position of the first sample written since the last seek plus the frames the
+     * AudioTrack has played since then.
+     */
+    @Override
+    public int getCurrentPosition() {
+        AudioTrack out = track;
+        int rate = sampleRate;
+        long positionUs = positionBaseUs;
+        if (out != null && rate > 0) {
+            positionUs += (out.getPlaybackHeadPosition() & 0xFFFFFFFFL) * 1_000_000L / rate;
+        }
+        int position = (int) (positionUs / 1000);
+        return durationMs > 0 ? Math.min(position, durationMs) : position;
+    }
+
+    @Override
+    public int getDuration() {
+        return durationMs;
+    }
+
+    @Override
+    public void setVolume(float left, float right) {
+        volume = Math.max(left, right);
+        AudioTrack out = track;
+        if (out != null) {
+            out.setVolume(volume);
+        }
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    @Override
+    public boolean setNextPlayer(TrackPlayer next) {
+        return next == null;
+    }
+
+    private void decode(String source, int gen) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        long startTime = System.nanoTime();
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        String mime = null;
+        boolean codecHealthy = false;
+        try {
+            extractor.setDataSource(source);
+            MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                throw new IOException("noAudioTrackIn " + source);
+            }
+            mime = format.getString(MediaFormat.KEY_MIME);
+            int duration = format.containsKey(MediaFormat.KEY_DURATION)
+                    ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : 0;
+            synchronized (lock) {
+                if (gen == generation) {
+                    durationMs = duration;
+                }
+            }
+            int offload = lowPower ? offloadLoop(extractor, format, gen) : OFFLOAD_UNSUPPORTED;
+            if (offload == OFFLOAD_DONE) {
+                return;
+            }
+            codec = CodecPool.getInstance().acquire(mime);
+            codec.configure(format, null, null, 0);
+            codec.start();
+            if (offload == OFFLOAD_UNSUPPORTED) {
+                Log.d(TAG, "decode: prepared " + mime + " in " + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+                post(gen, () -> listener.onPrepared(this));
+            }
+            decodeLoop(extractor, codec, gen);
+            codecHealthy = true;
+        } catch (Exception e) {
+            if (gen == generation) {
+                Log.e(TAG, "decode: failed for " + source, e);
+                int extra = e instanceof IOException ? MediaPlayer.MEDIA_ERROR_IO : 0;
+                post(gen, () -> listener.onError(this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra));
+            }
+        } finally {
+            extractor.release();
+            if (codec != null) {
+                if (codecHealthy) {
+                    CodecPool.getInstance().recycle(mime, codec);
+                } else {
+                    codec.release();
+                }
+            }
+        }
+    }
+
+    private void decodeLoop(MediaExtractor extractor, MediaCodec codec, int gen) throws IOException, InterruptedException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean outputDone = false;
+        boolean audioStartReported = false;
+        boolean rebaseOnOutput = false;
+        ByteBuffer pending = null;
+        int pendingIndex = -1;
+        int frameSize = 0;
+        long framesWritten = 0;
+        AudioTrack out = null;
+        try {
+            while (gen == generation) {
+                long seekUs = takePendingSeek(gen);
+                if (seekUs >= 0) {
+                    seek(extractor, codec, seekUs, gen);
+                    pendingIndex = -1;
+                    inputDone = false;
+                    outputDone = false;
+                    rebaseOnOutput = true;
+                    framesWritten = 0;
+                    post(gen, () -> listener.onSeekComplete(this));
+                }
+
+                if (!audioStartReported && playing && out != null && out.getPlaybackHeadPosition() > 0) {
+                    audioStartReported = true;
+                    post(gen, () -> listener.onAudioStarted(this));
+                }
+
+                if (!inputDone) {
+                    int inIndex = codec.dequeueInputBuffer(pendingIndex >= 0 ? 0 : CODEC_TIMEOUT_US);
+                    if (inIndex >= 0) {
+                        ByteBuffer input = codec.getInputBuffer(inIndex);
+                        int size = extractor.readSampleData(input, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                if (pendingIndex < 0 && !outputDone) {
+                    int outIndex = codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+                    if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        out = openTrack(codec.getOutputFormat(), out, gen);
+                        frameSize = frameSize(codec.getOutputFormat());
+                    } else if (outIndex >= 0) {
+                        if (out == null) {
+                            out = openTrack(codec.getOutputFormat(), null, gen);
+                            frameSize = frameSize(codec.getOutputFormat());
+                        }
+                        outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                        if (info.size > 0) {
+                            if (rebaseOnOutput) {
+                                synchronized (lock) {
+                                    if (gen == generation) {
+                                        positionBaseUs = info.presentationTimeUs;
+                                    }
+                                }
+                                rebaseOnOutput = false;
+                            }
+                            pending = codec.getOutputBuffer(outIndex);
+                            pending.position(info.offset);
+                            pending.limit(info.offset + info.size);
+                            pendingIndex = outIndex;
+                        } else {
+                            codec.releaseOutputBuffer(outIndex, false);
+                        }
+                    }
+                }
+
+                if (pendingIndex >= 0) {
+                    int written = out.write(pending, pending.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+                    if (written < 0) {
+                        throw new IOException("AudioTrack.write returned " + written);
+                    }
+                    framesWritten += written / frameSize;
+                    if (!pending.hasRemaining()) {
+                        codec.releaseOutputBuffer(pendingIndex, false);
+                        pendingIndex = -1;
+                        pending = null;
+                    } else {
+                        waitForRoom(gen);
+                    }
+                } else if (outputDone) {
+                    long played = out != null ? out.getPlaybackHeadPosition() & 0xFFFFFFFFL : framesWritten;
+                    if (played < framesWritten) {
+                        waitForRoom(gen);
+                    } else if (looping) {
+                        seek(extractor, codec, 0, gen);
+                        inputDone = false;
+                        outputDone = false;
+                        rebaseOnOutput = true;
+                        framesWritten = 0;
+                    } else {
+                        onEndOfStream(gen);
+                    }
+                }
+            }
+        } finally {
+            releaseTrack(out);
+        }
+    }
+
+    /**
+     * Plays the track through an offloaded AudioTrack, writing the extractor's compressed
+     * samples as they are. Returns {@link #OFFLOAD_UNSUPPORTED} before preparing if the device
+     * cannot offload this format, {@link #OFFLOAD_TORN_DOWN} with a seek to the current position
+     * queued if the platform took the offload path away, and {@link #OFFLOAD_DONE} on reset.
+     */
+    private int offloadLoop(MediaExtractor extractor, MediaFormat format, int gen) throws IOException, InterruptedException {
+        AudioFormat audioFormat = offloadFormat(format);
+        if (audioFormat == null || !AudioManager.isOffloadedPlaybackSupported(audioFormat, attributes)) {
+            Log.d(TAG, "offloadLoop: notSupportedFor " + format.getString(MediaFormat.KEY_MIME));
+            return OFFLOAD_UNSUPPORTED;
+        }
+        AudioTrack out;
+        try {
+            out = new AudioTrack.Builder()
+                    .setAudioAttributes(attributes)
+                    .setAudioFormat(audioFormat)
+                    .setBufferSizeInBytes(OFFLOAD_BUFFER_BYTES)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setOffloadedPlayback(true)
+                    .build();
+        } catch (UnsupportedOperationException e) {
+            Log.w(TAG, "offloadLoop: trackRejected", e);
+            return OFFLOAD_UNSUPPORTED;
+        }
+        Executor direct = Runnable::run;
+        out.registerStreamEventCallback(direct, streamEvents);
+        out.setVolume(volume);
+        synchronized (lock) {
+            if (gen == generation) {
+                offloadTornDown = false;
+                presentationEnded = false;
+                sampleRate = audioFormat.getSampleRate();
+                track = out;
+                if (playing) {
+                    out.play();
+                }
+            }
+        }
+        Log.d(TAG, "offloadLoop: prepared " + format.getString(MediaFormat.KEY_MIME) + ", encoding=" + audioFormat.getEncoding());
+        post(gen, () -> listener.onPrepared(this));
+
+        int maxSample = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 64 * 1024;
+        ByteBuffer sample = ByteBuffer.allocateDirect(maxSample);
+        sample.limit(0);
+        boolean inputDone = false;
+        boolean audioStartReported = false;
+        try {
+            while (gen == generation) {
+                if (offloadTornDown) {
+                    synchronized (lock) {
+                        if (gen != generation) {
+                            return OFFLOAD_DONE;
+                        }
+                        pendingSeekUs.compareAndSet(-1, getCurrentPosition() * 1000L);
+                    }
+                    Log.w(TAG, "offloadLoop: tornDown, fallingBackToDecoding");
+                    return OFFLOAD_TORN_DOWN;
+                }
+                long seekUs = takePendingSeek(gen);
+                if (seekUs >= 0) {
+                    seek(extractor, null, seekUs, gen);
+                    sample.limit(0);
+                    inputDone = false;
+                    post(gen, () -> listener.onSeekComplete(this));
+                }
+
+                if (!audioStartReported && playing && out.getPlaybackHeadPosition() > 0) {
+                    audioStartReported = true;
+                    post(gen, () -> listener.onAudioStarted(this));
+                }
+
+                if (!inputDone && !sample.hasRemaining()) {
+                    sample.clear();
+                    int size = extractor.readSampleData(sample, 0);
+                    if (size < 0) {
+                        inputDone = true;
+                        sample.limit(0);
+                        out.stop();
+                    } else {
+                        sample.position(0);
+                        sample.limit(size);
+                        extractor.advance();
+                    }
+                }
+
+                if (sample.hasRemaining()) {
+                    int written = out.write(sample, sample.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+                    if (written < 0) {
+                        throw new IOException("AudioTrack.write returned " + written);
+                    }
+                    if (sample.hasRemaining()) {
+                        waitForOffload(gen);
+                    }
+                } else if (inputDone) {
+                    if (!presentationEnded) {
+                        waitForOffload(gen);
+                    } else if (looping) {
+                        seek(extractor, null, 0, gen);
+                        inputDone = false;
+                    } else {
+                        onEndOfStream(gen);
+                    }
+                }
+            }
+            return OFFLOAD_DONE;
+        } finally {
+            out.unregisterStreamEventCallback(streamEvents);
+            releaseTrack(out);
+        }
+    }
+
+    /**
+     * Waits for the offloaded track to ask for data, at most {@link #OFFLOAD_WAIT_MS} while
+     * playing, or for the next command while paused.
+     */
+    private void waitForOffload(int gen) throws InterruptedException {
+        synchronized (lock) {
+            if (gen != generation || pendingSeekUs.get() >= 0 || offloadTornDown) {
+                return;
+            }
+            if (playing) {
+                lock.wait(OFFLOAD_WAIT_MS);
+            } else {
+                lock.wait();
+            }
+        }
+        WakeupCounter.getInstance().record(WAKEUP_SOURCE);
+    }
+
+    private void wake() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The compressed format to hand to an offloaded track, or null for encodings this player
+     * does not offload: MP3, and AAC-LC when the profile is known.
+     */
+    private static AudioFormat offloadFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int encoding;
+        if (MediaFormat.MIMETYPE_AUDIO_MPEG.equals(mime)) {
+            encoding = AudioFormat.ENCODING_MP3;
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime) && format.containsKey(MediaFormat.KEY_AAC_PROFILE) &&
+                format.getInteger(MediaFormat.KEY_AAC_PROFILE) == MediaCodecInfo.CodecProfileLevel.AACObjectLC) {
+            encoding = AudioFormat.ENCODING_AAC_LC;
+        } else {
+            return null;
+        }
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if (channels < 1 || channels > 2) {
+            return null;
+        }
+        return new AudioFormat.Builder()
+                .setSampleRate(format.getInteger(MediaFormat.KEY_SAMPLE_RATE))
+                .setChannelMask(channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO)
+                .setEncoding(encoding)
+                .build();
+    }
+
+    /**
+     * Takes the seek queued for generation {@code gen}, or returns -1, so a thread that was
+     * reset never consumes a seek meant for the next track.
+     */
+    private long takePendingSeek(int gen) {
+        synchronized (lock) {
+            return gen == generation ? pendingSeekUs.getAndSet(-1) : -1;
+        }
+    }
+
+    /**
+     * Moves the extractor, and the decoder when there is one, to {@code seekUs} and drops what
+     * the AudioTrack still holds.
+     */
+    private void seek(MediaExtractor extractor, MediaCodec codec, long seekUs, int gen) {
+        extractor.seekTo(seekUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        if (codec != null) {
+            codec.flush();
+        }
+        synchronized (lock) {
+            if (gen != generation) {
+                return;
+            }
+            presentationEnded = false;
+            AudioTrack out = track;
+            if (out != null) {
+                out.pause();
+                out.flush();
+                if (playing) {
+                    out.play();
+                }
+            }
+            positionBaseUs = seekUs;
+        }
+    }
+
+    private void onEndOfStream(int gen) throws InterruptedException {
+        synchronized (lock) {
+            if (gen != generation || pendingSeekUs.get() >= 0) {
+                return;
+            }
+            if (!completed) {
+                completed = true;
+                playing = false;
+                AudioTrack out = track;
+                if (out != null) {
+                    out.pause();
+                }
+                post(gen, () -> listener.onCompletion(this));
+            }
+            lock.wait();
+        }
+    }
+
+    /**
+     * Waits for the AudioTrack to drain a little while playing, or for the next command while
+     * paused. Returns early on a seek or reset.
+     */
+    private void waitForRoom(int gen) throws InterruptedException {
+        synchronized (lock) {
+            if (gen != generation || pendingSeekUs.get() >= 0) {
+                return;
+            }
+            if (playing) {
+                lock.wait(lowPower ? LOW_POWER_WRITE_WAIT_MS : WRITE_WAIT_MS);
+            } else {
+                lock.wait();
+            }
+        }
+        WakeupCounter.getInstance().record(WAKEUP_SOURCE);
+    }
+
+    /**
+     * Builds the AudioTrack for the decoder's output format and publishes it in place of
+     * {@code current}, or keeps {@code current} if the format did not change. After a reset the
+     * track is built but not published; the caller releases it on its way out.
+     */
+    private AudioTrack openTrack(MediaFormat format, AudioTrack current, int gen) throws IOException {
+        int rate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        int encoding = pcmEncoding(format);
+        if (current != null && current.getSampleRate() == rate && current.getChannelCount() == channels &&
+                current.getAudioFormat() == encoding) {
+            return current;
+        }
+        if (channels < 1 || channels > 2) {
+            throw new IOException("unsupportedChannelCount=" + channels);
+        }
+        int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int minBuffer = AudioTrack.getMinBufferSize(rate, channelMask, encoding);
+        if (minBuffer <= 0) {
+            throw new IOException("unsupportedOutputFormat rate=" + rate + ", encoding=" + encoding);
+        }
+        int bufferBytes = minBuffer * BUFFER_MULTIPLIER;
+        if (lowPower) {
+            int frameBytes = channels * (encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+            bufferBytes = Math.max(bufferBytes, rate * frameBytes / 1000 * LOW_POWER_BUFFER_MS);
+        }
+        AudioTrack out = new AudioTrack.Builder()
+                .setAudioAttributes(attributes)
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(rate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(encoding)
+                        .build())
+                .setBufferSizeInBytes(bufferBytes)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(lowPower ? AudioTrack.PERFORMANCE_MODE_POWER_SAVING : AudioTrack.PERFORMANCE_MODE_NONE)
+                .build();
+        out.setVolume(volume);
+        synchronized (lock) {
+            if (gen == generation) {
+                sampleRate = rate;
+                track = out;
+                if (playing) {
+                    out.play();
+                }
+            }
+        }
+        releaseTrack(current);
+        Log.d(TAG, "openTrack: rate=" + rate + ", channels=" + channels + ", encoding=" + encoding +
+                ", bufferBytes=" + bufferBytes + ", lowPower=" + lowPower);
+        return out;
+    }
+
+    /**
+     * Releases a track this decode thread opened, unpublishing it first if it is still the
+     * current one.
+     */
+    private void releaseTrack(AudioTrack out) {
+        if (out == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (track == out) {
+                track = null;
+            }
+        }
+        out.release();
+    }
+
+    private static int pcmEncoding(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                ? format.getInteger(MediaFormat.KEY_PCM_ENCODING) : AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    private static int frameSize(MediaFormat format) {
+        int bytesPerSample = pcmEncoding(format) == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+        return format.getInteger(MediaFormat.KEY_CHANNEL_COUNT) * bytesPerSample;
+    }
+
+    private void post(int gen, Runnable callback) {
+        handler.post(() -> {
+            if (gen == generation && listener != null) {
+                callback.run();
+            }
+        });
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+}
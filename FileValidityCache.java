@@ -0,0 +1,89 @@
+package com.example.promusic;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers whether a library file exists and is readable so list loads and queue setup do not
+ * stat every row. Entries are filled in bulk on the repository's sync thread and dropped when
+ * a sync reports the row changed or the index is rebuilt. A negative answer also expires after
+ * {@link #INVALID_TTL_MS}, so a file on remounted storage or fixed with chmod comes back without
+ * waiting for MediaStore to touch its row; a file that goes away is caught when opening it
+ * fails and the caller invalidates it.
+ */
+public class FileValidityCache {
+    private static final String TAG = "FileValidityCache";
+    private static final long INVALID_TTL_MS = 60_000;
+    private static final long VALID = -1;
+
+    private static final FileValidityCache instance = new FileValidityCache();
+
+    // VALID, or the elapsedRealtime at which the path was found missing or unreadable.
+    private final Map<String, Long> validity = new ConcurrentHashMap<>();
+
+    private FileValidityCache() {
+    }
+
+    public static FileValidityCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the cached answer for {@code path}. Only a path that was never checked, was
+     * invalidated since, or was found invalid more than {@link #INVALID_TTL_MS} ago costs a
+     * filesystem call.
+     */
+    public boolean isValid(String path) {
+        if (path == null || path.isEmpty()) {
+            return false;
+        }
+        Long cached = validity.get(path);
+        if (isFresh(cached)) {
+            return cached == VALID;
+        }
+        return check(path);
+    }
+
+    /**
+     * Checks every path without a fresh cached answer. Call from a background thread.
+     */
+    public void validateAll(Collection<String> paths) {
+        long startTime = System.nanoTime();
+        int checked = 0;
+        for (String path : paths) {
+            if (path != null && !isFresh(validity.get(path))) {
+                check(path);
+                checked++;
+            }
+        }
+        Log.d(TAG, "validateAll: checked " + checked + " of " + paths.size() + " paths, time=" +
+                (System.nanoTime() - startTime) / 1_000_000 + "ms");
+    }
+
+    public void invalidate(String path) {
+        if (path != null) {
+            validity.remove(path);
+        }
+    }
+
+    public void invalidateAll() {
+        validity.clear();
+        Log.d(TAG, "invalidateAll: cacheCleared");
+    }
+
+    private static boolean isFresh(Long cached) {
+        return cached != null && (cached == VALID || SystemClock.elapsedRealtime() - cached < INVALID_TTL_MS);
+    }
+
+    private boolean check(String path) {
+        File file = new File(path);
+        boolean valid = file.exists() && file.canRead();
+        validity.put(path, valid ? VALID : SystemClock.elapsedRealtime());
+        return valid;
+    }
+}
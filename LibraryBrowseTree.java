@@ -0,0 +1,266 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The browse tree {@link MusicService} offers to media controllers: All songs, Albums, Artists,
+ * Favorites, Recently played and Most played. Every list is served a page at a time, so no
+ * reply carries more than one page of items over Binder. Songs, albums and artists are read
+ * from the library index with a LIMIT query; the played lists order their ids from
+ * preferences and resolve only the ids of the requested page. Call from a background thread.
+ *
+ * <p>A playable item's media id is its parent id and the song id joined by
+ * {@link #SONG_SEPARATOR}, so playing it can queue the list it was picked from.
+ */
+public class LibraryBrowseTree {
+    private static final String TAG = "LibraryBrowseTree";
+    private static final String PREFS = "PlaybackPrefs";
+    private static final String PREF_FAVORITES = "favorites";
+    private static final String PREF_RECENTLY_PLAYED = "recently_played_ids";
+    private static final String PREF_PLAY_COUNT_PREFIX = "play_count_";
+    private static final String PREF_LAST_PLAYED_PREFIX = "last_played_";
+    private static final String TITLE_ORDER = LibraryDatabase.COLUMN_TITLE + ", " + LibraryDatabase.COLUMN_ID;
+
+    static final String ROOT_ID = "root";
+    static final String SONGS_ID = "songs";
+    static final String ALBUMS_ID = "albums";
+    static final String ARTISTS_ID = "artists";
+    static final String FAVORITES_ID = "favorites";
+    static final String RECENTLY_PLAYED_ID = "recently_played";
+    static final String MOST_PLAYED_ID = "most_played";
+    private static final String ALBUM_PREFIX = "album:";
+    private static final String ARTIST_PREFIX = "artist:";
+    private static final char SONG_SEPARATOR = '|';
+
+    static final int DEFAULT_PAGE_SIZE = PagedSongList.PAGE_SIZE;
+    static final int MAX_PAGE_SIZE = 500;
+
+    private final SongRepository repository;
+    private final SharedPreferences prefs;
+
+    public LibraryBrowseTree(Context context) {
+        repository = SongRepository.getInstance(context);
+        prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Page {@code page} of the children of {@code parentId}, at most {@link #MAX_PAGE_SIZE}
+     * items, or null if there is no such node.
+     */
+    public List<MediaItem> loadChildren(String parentId, int page, int pageSize) {
+        long startTime = System.nanoTime();
+        int limit = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        int offset = Math.max(page, 0) * limit;
+        List<MediaItem> items;
+        if (ROOT_ID.equals(parentId)) {
+            items = slice(getCategories(), offset, limit);
+        } else if (SONGS_ID.equals(parentId)) {
+            items = toSongItems(parentId, repository.getSongsPage(offset, limit));
+        } else if (ALBUMS_ID.equals(parentId)) {
+            items = toGroupItems(repository.getAlbums(offset, limit));
+        } else if (ARTISTS_ID.equals(parentId)) {
+            items = toGroupItems(repository.getArtists(offset, limit));
+        } else if (FAVORITES_ID.equals(parentId) || parentId.startsWith(ALBUM_PREFIX) || parentId.startsWith(ARTIST_PREFIX)) {
+            SongTable songs = loadQueue(parentId);
+            items = songs == null ? null : toSongItems(parentId, slice(songs, offset, limit));
+        } else if (RECENTLY_PLAYED_ID.equals(parentId) || MOST_PLAYED_ID.equals(parentId)) {
+            long[] ids = getPlayedIds(MOST_PLAYED_ID.equals(parentId));
+            int end = Math.min(offset + limit, ids.length);
+            long[] pageIds = new long[Math.max(end - offset, 0)];
+            if (pageIds.length > 0) {
+                System.arraycopy(ids, offset, pageIds, 0, pageIds.length);
+            }
+            items = toSongItems(parentId, repository.getSongsByIds(pageIds));
+        } else {
+            items = null;
+        }
+        Log.d(TAG, "loadChildren: parentId=" + parentId + ", page=" + page + ", pageSize=" + limit + ", items=" +
+                (items == null ? "none" : items.size()) + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return items;
+    }
+
+    /**
+     * All songs under {@code parentId}, in browse order, for queueing a playable item with the
+     * list it belongs to, or null if the node has no songs.
+     */
+    public SongTable loadQueue(String parentId) {
+        if (SONGS_ID.equals(parentId)) {
+            return repository.getAllSongs();
+        } else if (FAVORITES_ID.equals(parentId)) {
+            return repository.getSongsByIds(prefs.getStringSet(PREF_FAVORITES, new HashSet<>()), TITLE_ORDER);
+        } else if (RECENTLY_PLAYED_ID.equals(parentId) || MOST_PLAYED_ID.equals(parentId)) {
+            return repository.getSongsByIds(getPlayedIds(MOST_PLAYED_ID.equals(parentId)));
+        } else if (parentId.startsWith(ALBUM_PREFIX)) {
+            try {
+                return repository.getSongsByAlbum(Long.parseLong(parentId.substring(ALBUM_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "loadQueue: invalid album id " + parentId, e);
+                return null;
+            }
+        } else if (parentId.startsWith(ARTIST_PREFIX)) {
+            return repository.getSongsByArtist(Uri.decode(parentId.substring(ARTIST_PREFIX.length())));
+        }
+        return null;
+    }
+
+    /**
+     * The media id of song {@code songId} listed under {@code parentId}.
+     */
+    static String getSongMediaId(String parentId, long songId) {
+        return parentId + SONG_SEPARATOR + songId;
+    }
+
+    /**
+     * The node a playable media id was listed under, or null if it is not a song.
+     */
+    static String getParentId(String mediaId) {
+        int separator = mediaId == null ? -1 : mediaId.lastIndexOf(SONG_SEPARATOR);
+        return separator < 0 ? null : mediaId.substring(0, separator);
+    }
+
+    /**
+     * The song id of a playable media id, or -1.
+     */
+    static long getSongId(String mediaId) {
+        int separator = mediaId == null ? -1 : mediaId.lastIndexOf(SONG_SEPARATOR);
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(mediaId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private List<MediaItem> getCategories() {
+        List<MediaItem> categories = new ArrayList<>();
+        categories.add(browsable(SONGS_ID, "All songs", null, null));
+        categories.add(browsable(ALBUMS_ID, "Albums", null, null));
+        categories.add(browsable(ARTISTS_ID, "Artists", null, null));
+        categories.add(browsable(FAVORITES_ID, "Favorites", null, null));
+        categories.add(browsable(RECENTLY_PLAYED_ID, "Recently played", null, null));
+        categories.add(browsable(MOST_PLAYED_ID, "Most played", null, null));
+        return categories;
+    }
+
+    /**
+     * Played song ids, most recent first, or by play count when {@code byCount} is set. Only the
+     * preference map is read here; songs are resolved per page by the caller.
+     */
+    private long[] getPlayedIds(boolean byCount) {
+        Map<String, ?> all = prefs.getAll();
+        Set<Long> played = new HashSet<>();
+        Object recent = all.get(PREF_RECENTLY_PLAYED);
+        if (recent instanceof Set) {
+            for (Object id : (Set<?>) recent) {
+                addId(played, String.valueOf(id));
+            }
+        }
+        for (String key : all.keySet()) {
+            if (key.startsWith(PREF_PLAY_COUNT_PREFIX)) {
+                addId(played, key.substring(PREF_PLAY_COUNT_PREFIX.length()));
+            }
+        }
+        Map<Long, Integer> counts = new HashMap<>(played.size() * 2);
+        Map<Long, Long> lastPlayed = new HashMap<>(played.size() * 2);
+        for (long id : played) {
+            Object count = all.get(PREF_PLAY_COUNT_PREFIX + id);
+            Object time = all.get(PREF_LAST_PLAYED_PREFIX + id);
+            counts.put(id, count instanceof Integer ? (Integer) count : 0);
+            lastPlayed.put(id, time instanceof Long ? (Long) time : 0L);
+        }
+        List<Long> ordered = new ArrayList<>(played);
+        if (byCount) {
+            ordered.removeIf(id -> counts.get(id) <= 0);
+        }
+        Collections.sort(ordered, (a, b) -> {
+            if (byCount) {
+                int byPlays = Integer.compare(counts.get(b), counts.get(a));
+                if (byPlays != 0) {
+                    return byPlays;
+                }
+            }
+            return Long.compare(lastPlayed.get(b), lastPlayed.get(a));
+        });
+        long[] ids = new long[ordered.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ordered.get(i);
+        }
+        return ids;
+    }
+
+    private static void addId(Set<Long> ids, String value) {
+        try {
+            long id = Long.parseLong(value);
+            if (id > 0) {
+                ids.add(id);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "addId: ignoring " + value);
+        }
+    }
+
+    private static List<MediaItem> toSongItems(String parentId, SongTable songs) {
+        List<MediaItem> items = new ArrayList<>(songs.size());
+        for (int i = 0; i < songs.size(); i++) {
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId(getSongMediaId(parentId, songs.getId(i)))
+                    .setTitle(songs.getTitle(i))
+                    .setSubtitle(songs.getArtist(i))
+                    .setIconUri(Uri.parse("content://media/external/audio/albumart/" + songs.getAlbumId(i)))
+                    .setMediaUri(songs.getUri(i))
+                    .build();
+            items.add(new MediaItem(description, MediaItem.FLAG_PLAYABLE));
+        }
+        return items;
+    }
+
+    private static List<MediaItem> toGroupItems(List<LibraryGroup> groups) {
+        List<MediaItem> items = new ArrayList<>(groups.size());
+        for (LibraryGroup group : groups) {
+            String mediaId = group.isAlbum()
+                    ? ALBUM_PREFIX + group.getAlbumId()
+                    : ARTIST_PREFIX + Uri.encode(group.getName() == null ? "" : group.getName());
+            String subtitle = group.isAlbum() ? group.getArtist() : group.getTrackCount() + " tracks";
+            items.add(browsable(mediaId, group.getName(), subtitle, group.getAlbumArtUri()));
+        }
+        return items;
+    }
+
+    private static MediaItem browsable(String mediaId, String title, String subtitle, Uri iconUri) {
+        return new MediaItem(new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .setIconUri(iconUri)
+                .build(), MediaItem.FLAG_BROWSABLE);
+    }
+
+    private static SongTable slice(SongTable songs, int offset, int limit) {
+        int end = Math.min(offset + limit, songs.size());
+        SongTable page = new SongTable(Math.max(end - offset, 0));
+        for (int i = offset; i < end; i++) {
+            page.addRow(songs, i);
+        }
+        return page;
+    }
+
+    private static <T> List<T> slice(List<T> list, int offset, int limit) {
+        int end = Math.min(offset + limit, list.size());
+        return offset >= end ? new ArrayList<>() : new ArrayList<>(list.subList(offset, end));
+    }
+}
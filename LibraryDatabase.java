@@ -0,0 +1,79 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+public class LibraryDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "LibraryDatabase";
+    private static final String DATABASE_NAME = "library_index.db";
+    private static final int DATABASE_VERSION = 2;
+
+    public static final String TABLE_SONGS = "songs";
+    public static final String TABLE_ALBUMS = "albums";
+    public static final String TABLE_ARTISTS = "artists";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_TITLE = "title";
+    public static final String COLUMN_ARTIST = "artist";
+    public static final String COLUMN_ALBUM = "album";
+    public static final String COLUMN_DATA = "data";
+    public static final String COLUMN_ALBUM_ID = "album_id";
+    public static final String COLUMN_DURATION = "duration";
+    public static final String COLUMN_DATE_ADDED = "date_added";
+    public static final String COLUMN_DATE_MODIFIED = "date_modified";
+    public static final String COLUMN_TRACK_COUNT = "track_count";
+    public static final String COLUMN_ALBUM_COUNT = "album_count";
+    public static final String COLUMN_TOTAL_DURATION = "total_duration";
+    public static final String COLUMN_ART_ALBUM_ID = "art_album_id";
+
+    public LibraryDatabase(Context context) {
+        super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.d(TAG, "onCreate: creatingLibraryIndex");
+        db.execSQL("CREATE TABLE " + TABLE_SONGS + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_TITLE + " TEXT, " +
+                COLUMN_ARTIST + " TEXT, " +
+                COLUMN_ALBUM + " TEXT, " +
+                COLUMN_DATA + " TEXT NOT NULL, " +
+                COLUMN_ALBUM_ID + " INTEGER, " +
+                COLUMN_DURATION + " INTEGER, " +
+                COLUMN_DATE_ADDED + " INTEGER, " +
+                COLUMN_DATE_MODIFIED + " INTEGER)");
+        db.execSQL("CREATE INDEX idx_songs_title ON " + TABLE_SONGS + " (" + COLUMN_TITLE + ", " + COLUMN_ID + ")");
+        db.execSQL("CREATE INDEX idx_songs_artist ON " + TABLE_SONGS + " (" + COLUMN_ARTIST + ")");
+        db.execSQL("CREATE INDEX idx_songs_date_added ON " + TABLE_SONGS + " (" + COLUMN_DATE_ADDED + ")");
+        db.execSQL("CREATE INDEX idx_songs_album_id ON " + TABLE_SONGS + " (" + COLUMN_ALBUM_ID + ")");
+        db.execSQL("CREATE TABLE " + TABLE_ALBUMS + " (" +
+                COLUMN_ALBUM_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_ALBUM + " TEXT, " +
+                COLUMN_ARTIST + " TEXT, " +
+                COLUMN_TRACK_COUNT + " INTEGER, " +
+                COLUMN_TOTAL_DURATION + " INTEGER)");
+        db.execSQL("CREATE TABLE " + TABLE_ARTISTS + " (" +
+                COLUMN_ARTIST + " TEXT PRIMARY KEY NOT NULL, " +
+                COLUMN_ALBUM_COUNT + " INTEGER, " +
+                COLUMN_TRACK_COUNT + " INTEGER, " +
+                COLUMN_TOTAL_DURATION + " INTEGER, " +
+                COLUMN_ART_ALBUM_ID + " INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "onUpgrade: oldVersion=" + oldVersion + ", newVersion=" + newVersion + ", droppingIndex");
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ALBUMS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ARTISTS);
+        onCreate(db);
+    }
+}
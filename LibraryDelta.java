@@ -0,0 +1,52 @@
+package com.example.promusic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rows that changed in the library index during one sync pass.
+ */
+public class LibraryDelta {
+    public static final LibraryDelta EMPTY = new LibraryDelta(Collections.emptyList(), Collections.emptySet(), false);
+
+    private final List<Song> upsertedSongs;
+    private final Set<Long> deletedIds;
+    private final boolean fullReload;
+
+    public LibraryDelta(List<Song> upsertedSongs, Set<Long> deletedIds, boolean fullReload) {
+        this.upsertedSongs = upsertedSongs;
+        this.deletedIds = deletedIds;
+        this.fullReload = fullReload;
+    }
+
+    public static LibraryDelta reload() {
+        return new LibraryDelta(new ArrayList<>(), new HashSet<>(), true);
+    }
+
+    public List<Song> getUpsertedSongs() {
+        return upsertedSongs;
+    }
+
+    public Set<Long> getDeletedIds() {
+        return deletedIds;
+    }
+
+    /**
+     * True when the index was rebuilt from scratch and readers should reload instead of patching.
+     */
+    public boolean isFullReload() {
+        return fullReload;
+    }
+
+    public boolean isEmpty() {
+        return !fullReload && upsertedSongs.isEmpty() && deletedIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryDelta{upserted=" + upsertedSongs.size() + ", deleted=" + deletedIds.size() + ", fullReload=" + fullReload + "}";
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.promusic;
+
+import android.net.Uri;
+
+/**
+ * One row of the album or artist grouping tables. Counts and durations are aggregated in the
+ * library index, so building a list of groups never touches the songs themselves.
+ */
+public class LibraryGroup {
+    private final long albumId;
+    private final String name;
+    private final String artist;
+    private final int albumCount;
+    private final int trackCount;
+    private final long totalDuration;
+    private final long artAlbumId;
+
+    public LibraryGroup(long albumId, String name, String artist, int albumCount, int trackCount,
+                        long totalDuration, long artAlbumId) {
+        this.albumId = albumId;
+        this.name = name;
+        this.artist = artist;
+        this.albumCount = albumCount;
+        this.trackCount = trackCount;
+        this.totalDuration = totalDuration;
+        this.artAlbumId = artAlbumId;
+    }
+
+    /**
+     * The album id for album groups, -1 for artist groups.
+     */
+    public long getAlbumId() {
+        return albumId;
+    }
+
+    public boolean isAlbum() {
+        return albumId >= 0;
+    }
+
+    /**
+     * Album title for album groups, artist name for artist groups.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public int getAlbumCount() {
+        return albumCount;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    public long getTotalDuration() {
+        return totalDuration;
+    }
+
+    /**
+     * Cover of the album itself, or of one of the artist's albums.
+     */
+    public Uri getAlbumArtUri() {
+        return Uri.parse("content://media/external/audio/albumart/" + artAlbumId);
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryGroup{name=" + name + ", albumId=" + albumId + ", tracks=" + trackCount + "}";
+    }
+}
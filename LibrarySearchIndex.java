@@ -0,0 +1,404 @@
+package com.example.promusic;
+
+import android.util.Log;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory search index over title, artist and album. Text is case- and accent-folded once when
+ * a row is added, so a query only folds the few characters the user typed. Each word is posted
+ * under its trigrams and under its one- and two-character prefixes. A query token is answered by
+ * intersecting those posting lists and checking the few surviving rows against the folded text.
+ *
+ * <p>Rows are never edited in place. An update tombstones the old document and appends a new
+ * one, and the arrays are compacted once tombstones outnumber live rows.
+ */
+public class LibrarySearchIndex {
+    private static final String TAG = "LibrarySearchIndex";
+    private static final int GRAM_LENGTH = 3;
+    private static final int FIELD_COUNT = 3;
+    private static final int[] FIELD_WEIGHTS = {8, 4, 2};
+    private static final int MIN_COMPACT_TOMBSTONES = 1024;
+
+    private long[] ids = new long[0];
+    private String[][] fields = new String[0][];
+    private boolean[] live = new boolean[0];
+    private int docCount = 0;
+    private int liveCount = 0;
+    private final Map<Long, Integer> docById = new HashMap<>();
+    private final Map<String, IntList> postings = new HashMap<>();
+
+    /**
+     * Adds a row, or replaces the row previously added with the same id.
+     */
+    public synchronized void put(long id, String title, String artist, String album) {
+        Integer previous = docById.get(id);
+        if (previous != null) {
+            kill(previous);
+        }
+        ensureCapacity(docCount + 1);
+        int doc = docCount++;
+        ids[doc] = id;
+        fields[doc] = new String[]{fold(title), fold(artist), fold(album)};
+        live[doc] = true;
+        liveCount++;
+        docById.put(id, doc);
+        for (String field : fields[doc]) {
+            postWords(field, doc);
+        }
+        compactIfNeeded();
+    }
+
+    public synchronized void remove(long id) {
+        Integer doc = docById.remove(id);
+        if (doc != null) {
+            live[doc] = false;
+            liveCount--;
+            compactIfNeeded();
+        }
+    }
+
+    public synchronized void clear() {
+        ids = new long[0];
+        fields = new String[0][];
+        live = new boolean[0];
+        docCount = 0;
+        liveCount = 0;
+        docById.clear();
+        postings.clear();
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Returns up to {@code limit} ids ordered by relevance. Every token of the query has to match
+     * some field. A match at the start of a field ranks above a match at the start of a word,
+     * and that ranks above a match inside a word. Title matches outrank artist matches, which
+     * outrank album matches, and a title equal to the whole query comes first. Equal scores keep
+     * index order.
+     */
+    public synchronized long[] search(String query, int limit) {
+        long startTime = System.nanoTime();
+        String folded = fold(query);
+        if (folded.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        String[] tokens = folded.split(" ");
+        String[] wordStarts = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            wordStarts[i] = " " + tokens[i];
+        }
+        int[] candidates = null;
+        int candidateCount = 0;
+        for (String token : tokens) {
+            IntList matches = candidatesFor(token);
+            if (matches == null) {
+                return new long[0];
+            }
+            if (candidates == null) {
+                candidates = Arrays.copyOf(matches.values, matches.size);
+                candidateCount = matches.size;
+            } else {
+                candidateCount = intersect(candidates, candidateCount, matches.values, matches.size);
+            }
+            if (candidateCount == 0) {
+                return new long[0];
+            }
+        }
+
+        TopScores top = new TopScores(limit);
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = candidates[i];
+            if (!live[doc]) {
+                continue;
+            }
+            int score = score(fields[doc], tokens, wordStarts);
+            if (fields[doc][0].equals(folded)) {
+                score += FIELD_WEIGHTS[0] * 3;
+            }
+            if (score > 0) {
+                top.offer(score, doc);
+            }
+        }
+        long[] result = top.drainIds(ids);
+        Log.d(TAG, "search: query=" + query + ", candidates=" + candidateCount + ", results=" + result.length +
+                ", time=" + (System.nanoTime() - startTime) / 1_000 + "us");
+        return result;
+    }
+
+    /**
+     * Lower-cases, strips diacritics and turns every run of non-alphanumeric characters into a
+     * single space, so "Beyoncé - Déjà Vu" and "beyonce deja vu" fold to the same text.
+     */
+    static String fold(String text) {
+        if (text == null || text.isEmpty()) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder builder = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && builder.length() > 0) {
+                    builder.append(' ');
+                }
+                pendingSpace = false;
+                builder.append(Character.toLowerCase(c));
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return builder.toString();
+    }
+
+    private IntList candidatesFor(String token) {
+        if (token.length() < GRAM_LENGTH) {
+            return postings.get(token);
+        }
+        IntList smallest = null;
+        for (int i = 0; i + GRAM_LENGTH <= token.length(); i++) {
+            IntList list = postings.get(token.substring(i, i + GRAM_LENGTH));
+            if (list == null) {
+                return null;
+            }
+            if (smallest == null || list.size < smallest.size) {
+                smallest = list;
+            }
+        }
+        if (token.length() == GRAM_LENGTH) {
+            return smallest;
+        }
+        IntList result = new IntList(smallest.size);
+        System.arraycopy(smallest.values, 0, result.values, 0, smallest.size);
+        result.size = smallest.size;
+        for (int i = 0; i + GRAM_LENGTH <= token.length() && result.size > 0; i++) {
+            IntList list = postings.get(token.substring(i, i + GRAM_LENGTH));
+            if (list != smallest) {
+                result.size = intersect(result.values, result.size, list.values, list.size);
+            }
+        }
+        return result;
+    }
+
+    private static int score(String[] docFields, String[] tokens, String[] wordStarts) {
+        int total = 0;
+        for (int t = 0; t < tokens.length; t++) {
+            String token = tokens[t];
+            int best = 0;
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                String text = docFields[field];
+                int position = text.indexOf(token);
+                if (position < 0) {
+                    continue;
+                }
+                int score;
+                if (position == 0) {
+                    score = FIELD_WEIGHTS[field] * 3;
+                } else if (text.charAt(position - 1) == ' ' || text.contains(wordStarts[t])) {
+                    score = FIELD_WEIGHTS[field] * 2;
+                } else if (token.length() >= GRAM_LENGTH) {
+                    score = FIELD_WEIGHTS[field];
+                } else {
+                    continue;
+                }
+                best = Math.max(best, score);
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    private void postWords(String field, int doc) {
+        int start = 0;
+        while (start < field.length()) {
+            int end = field.indexOf(' ', start);
+            if (end < 0) {
+                end = field.length();
+            }
+            post(field.substring(start, start + 1), doc);
+            if (end - start >= 2) {
+                post(field.substring(start, start + 2), doc);
+            }
+            for (int i = start; i + GRAM_LENGTH <= end; i++) {
+                post(field.substring(i, i + GRAM_LENGTH), doc);
+            }
+            start = end + 1;
+        }
+    }
+
+    private void post(String key, int doc) {
+        IntList list = postings.get(key);
+        if (list == null) {
+            list = new IntList(4);
+            postings.put(key, list);
+        }
+        list.addIfLast(doc);
+    }
+
+    private void kill(int doc) {
+        live[doc] = false;
+        liveCount--;
+    }
+
+    private void compactIfNeeded() {
+        int tombstones = docCount - liveCount;
+        if (tombstones < MIN_COMPACT_TOMBSTONES || tombstones < liveCount) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        long[] oldIds = ids;
+        String[][] oldFields = fields;
+        boolean[] oldLive = live;
+        int oldCount = docCount;
+        clear();
+        ensureCapacity(oldCount - tombstones);
+        for (int doc = 0; doc < oldCount; doc++) {
+            if (oldLive[doc]) {
+                int newDoc = docCount++;
+                ids[newDoc] = oldIds[doc];
+                fields[newDoc] = oldFields[doc];
+                live[newDoc] = true;
+                liveCount++;
+                docById.put(oldIds[doc], newDoc);
+                for (String field : oldFields[doc]) {
+                    postWords(field, newDoc);
+                }
+            }
+        }
+        Log.d(TAG, "compactIfNeeded: dropped " + tombstones + " tombstones, docs=" + docCount +
+                ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(required, Math.max(16, ids.length + (ids.length >> 1)));
+        ids = Arrays.copyOf(ids, capacity);
+        fields = Arrays.copyOf(fields, capacity);
+        live = Arrays.copyOf(live, capacity);
+    }
+
+    /**
+     * Intersects two ascending arrays into {@code target} and returns the new length.
+     */
+    private static int intersect(int[] target, int targetSize, int[] other, int otherSize) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < targetSize && j < otherSize) {
+            if (target[i] < other[j]) {
+                i++;
+            } else if (target[i] > other[j]) {
+                j++;
+            } else {
+                target[count++] = target[i];
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Ascending doc numbers. Docs are appended in increasing order, so a posting only needs to
+     * compare against its last element to stay sorted and free of duplicates.
+     */
+    private static class IntList {
+        int[] values;
+        int size;
+
+        IntList(int capacity) {
+            values = new int[Math.max(capacity, 1)];
+        }
+
+        void addIfLast(int value) {
+            if (size > 0 && values[size - 1] == value) {
+                return;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Bounded min-heap of (score, doc) packed into longs, so ranking a large candidate set does
+     * not sort it or box anything.
+     */
+    private static class TopScores {
+        private final long[] heap;
+        private int size;
+
+        TopScores(int limit) {
+            heap = new long[limit];
+        }
+
+        void offer(int score, int doc) {
+            long key = ((long) score << 32) | (Integer.MAX_VALUE - doc);
+            if (size < heap.length) {
+                heap[size] = key;
+                siftUp(size++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(0);
+            }
+        }
+
+        long[] drainIds(long[] docIds) {
+            long[] keys = Arrays.copyOf(heap, size);
+            Arrays.sort(keys);
+            long[] result = new long[size];
+            for (int i = 0; i < size; i++) {
+                int doc = Integer.MAX_VALUE - (int) keys[size - 1 - i];
+                result[i] = docIds[doc];
+            }
+            return result;
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent] <= heap[index]) {
+                    return;
+                }
+                swap(parent, index);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int left = index * 2 + 1;
+                if (left >= size) {
+                    return;
+                }
+                int smallest = left + 1 < size && heap[left + 1] < heap[left] ? left + 1 : left;
+                if (heap[index] <= heap[smallest]) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+        }
+    }
+}
@@ -32,8 +32,6 @@ import com.google.android.material.bottomnavigation.BottomNavigationView;
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
 
-import java.util.ArrayList;
-
 public class MainActivity extends AppCompatActivity implements CustomActionModeListener {
     private static final String TAG = "MainActivity";
     private BottomNavigationView bottomNavigationView;
@@ -48,6 +46,8 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
     private boolean isPlaying = false;
     private boolean hasPlaybackStarted = false;
     private Song currentSong;
+    private SongTable queue = new SongTable();
+    private long queueVersion = -1;
     private BroadcastReceiver songChangedReceiver;
     private BroadcastReceiver phoneStateReceiver;
     private BroadcastReceiver mediaChangeReceiver;
@@ -146,13 +146,14 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
 
                     if ("com.example.promusic.SONG_CHANGED".equals(action) || "com.example.promusic.PLAYBACK_STATE".equals(action)) {
                         int index = intent.getIntExtra("current_index", -1);
-                        ArrayList<Song> receivedSongList = intent.getParcelableArrayListExtra("song_list");
+                        Song eventSong = getQueuedSong(intent.getLongExtra("queue_version", -1), index,
+                                intent.getLongExtra("song_id", -1));
                         String error = intent.getStringExtra("error");
 
                         boolean newIsPlaying = intent.getBooleanExtra("is_playing", isPlaying);
 
-                        Log.d(TAG, "songChangedReceiver: action=" + action + ", index=" + index + ", songList size=" +
-                                (receivedSongList != null ? receivedSongList.size() : "null") + ", error=" + error +
+                        Log.d(TAG, "songChangedReceiver: action=" + action + ", index=" + index + ", queueVersion=" +
+                                queueVersion + ", queue size=" + queue.size() + ", error=" + error +
                                 ", isPlaying=" + newIsPlaying);
 
                         if (error != null) {
@@ -168,8 +169,8 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
                             return;
                         }
 
-                        if (receivedSongList != null && index >= 0 && index < receivedSongList.size()) {
-                            currentSong = receivedSongList.get(index);
+                        if (eventSong != null) {
+                            currentSong = eventSong;
                             Log.d(TAG, "songChangedReceiver: Valid song received: title=" + currentSong.getTitle() +
                                     ", path=" + currentSong.getData());
 
@@ -200,7 +201,7 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
                             }
                         } else {
                             Log.w(TAG, "songChangedReceiver: Invalid song list or index, index=" + index +
-                                    ", songList=" + (receivedSongList == null ? "null" : receivedSongList.size()));
+                                    ", queue size=" + queue.size());
                             currentSong = null;
                             isPlaying = false;
                             hasPlaybackStarted = false;
@@ -349,7 +350,7 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
                 @Override
                 public void handleOnBackPressed() {
                     SongsFragment songsFragment = findSongsFragment();
-                    if (songsFragment != null && !songsFragment.getSelectedSongs().isEmpty()) {
+                    if (songsFragment != null && songsFragment.hasSelection()) {
                         songsFragment.clearSelection();
                         Log.d(TAG, "handleOnBackPressed: Selection cleared in SongsFragment");
                     } else {
@@ -439,6 +440,24 @@ public class MainActivity extends AppCompatActivity implements CustomActionModeL
         Log.d(TAG, "requestPlaybackState: Sent CHECK_PLAYBACK_STATE intent");
     }
 
+    /**
+     * The song a playback event points at. The queue is read from {@link PlaybackStore} only
+     * when the event's queue version is not the one already held. If the queue changed again
+     * after the event was sent, the song is looked up by id.
+     */
+    private Song getQueuedSong(long version, int index, long songId) {
+        if (version != queueVersion) {
+            PlaybackSnapshot latest = PlaybackStore.getInstance().getSnapshot();
+            queue = latest.getSongTable();
+            queueVersion = latest.getQueueVersion();
+        }
+        if (index >= 0 && index < queue.size() && (songId < 0 || queue.getId(index) == songId)) {
+            return queue.get(index);
+        }
+        int row = songId < 0 ? -1 : queue.indexOfId(songId);
+        return row >= 0 ? queue.get(row) : null;
+    }
+
     @Override
     public void showCustomActionMode(int selectedCount) {
         Log.d(TAG, "showCustomActionMode called with selectedCount: " + selectedCount);
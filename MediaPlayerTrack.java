@@ -0,0 +1,175 @@
+package com.example.promusic;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.MediaTimestamp;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+
+/**
+ * {@link TrackPlayer} on top of {@link MediaPlayer}, the default backend. Tracks chain with
+ * {@link MediaPlayer#setNextMediaPlayer} when the next player is also a MediaPlayer.
+ *
+ * <p>MediaPlayer has no callback for audio reaching the sink, so after each start following a
+ * prepare the player polls {@link MediaPlayer#getTimestamp()} until the media clock runs.
+ */
+public class MediaPlayerTrack implements TrackPlayer {
+    static final String BACKEND = "media_player";
+    private static final long AUDIO_START_POLL_MS = 5;
+    private static final long AUDIO_START_TIMEOUT_MS = 5000;
+
+    private final MediaPlayer player = new MediaPlayer();
+    private final Handler handler = new Handler(Looper.myLooper());
+    private Listener listener;
+    private boolean awaitingAudioStart = false;
+    private long audioStartPollUntil = 0;
+
+    private final Runnable audioStartPoll = new Runnable() {
+        @Override
+        public void run() {
+            if (!awaitingAudioStart) {
+                return;
+            }
+            MediaTimestamp timestamp = null;
+            try {
+                timestamp = player.getTimestamp();
+            } catch (IllegalStateException e) {
+                awaitingAudioStart = false;
+                return;
+            }
+            if (timestamp != null && timestamp.getMediaClockRate() > 0f) {
+                awaitingAudioStart = false;
+                if (listener != null) {
+                    listener.onAudioStarted(MediaPlayerTrack.this);
+                }
+            } else if (SystemClock.uptimeMillis() < audioStartPollUntil) {
+                handler.postDelayed(this, AUDIO_START_POLL_MS);
+            } else {
+                awaitingAudioStart = false;
+            }
+        }
+    };
+
+    public MediaPlayerTrack() {
+        player.setAudioAttributes(new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build());
+        player.setOnPreparedListener(mp -> {
+            awaitingAudioStart = true;
+            listener.onPrepared(this);
+        });
+        player.setOnErrorListener((mp, what, extra) -> listener.onError(this, what, extra));
+        player.setOnCompletionListener(mp -> listener.onCompletion(this));
+        player.setOnSeekCompleteListener(mp -> listener.onSeekComplete(this));
+        player.setOnInfoListener((mp, what, extra) -> {
+            if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+                awaitingAudioStart = false;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public String getBackend() {
+        return BACKEND;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        player.setDataSource(path);
+    }
+
+    @Override
+    public void prepareAsync() {
+        player.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        player.start();
+        if (awaitingAudioStart) {
+            audioStartPollUntil = SystemClock.uptimeMillis() + AUDIO_START_TIMEOUT_MS;
+            handler.removeCallbacks(audioStartPoll);
+            handler.post(audioStartPoll);
+        }
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public void stop() {
+        player.stop();
+    }
+
+    @Override
+    public void reset() {
+        cancelAudioStartPoll();
+        player.reset();
+    }
+
+    @Override
+    public void release() {
+        cancelAudioStartPoll();
+        player.release();
+    }
+
+    @Override
+    public void seekTo(int positionMs) {
+        player.seekTo(positionMs);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return player.getDuration();
+    }
+
+    @Override
+    public void setVolume(float left, float right) {
+        player.setVolume(left, right);
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        player.setLooping(looping);
+    }
+
+    @Override
+    public boolean setNextPlayer(TrackPlayer next) {
+        if (next == null) {
+            player.setNextMediaPlayer(null);
+            return true;
+        }
+        if (!(next instanceof MediaPlayerTrack)) {
+            return false;
+        }
+        player.setNextMediaPlayer(((MediaPlayerTrack) next).player);
+        return true;
+    }
+
+    private void cancelAudioStartPoll() {
+        awaitingAudioStart = false;
+        handler.removeCallbacks(audioStartPoll);
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.promusic;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Time-to-byte table for one MP3 file, built by walking its frame headers once. It records the
+ * offset of the frame playing at every {@link #BUCKET_MS} of track time, the exact duration,
+ * and whether the file is VBR without a Xing or VBRI table of contents.
+ *
+ * <p>MediaPlayer cannot seek to a byte offset, but for such files the platform MP3 extractor
+ * turns a seek time into an offset as if the whole file had the first frame's bitrate. That
+ * estimate is easy to invert, so {@link #toPlayerTime(int)} returns the time to request for
+ * playback to land at the wanted position. For CBR files and files with a TOC the platform
+ * already seeks accurately and the index only passes times through.
+ */
+public class Mp3SeekIndex {
+    private static final String TAG = "Mp3SeekIndex";
+    static final int BUCKET_MS = 1000;
+    private static final int FORMAT_MAGIC = 0x4D534931;
+    private static final int MAX_SYNC_SEARCH = 64 * 1024;
+    private static final int[] MPEG1_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] MPEG2_BITRATES = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+    private final String path;
+    private final long lastModified;
+    private final int durationMs;
+    private final int firstFrameOffset;
+    private final int firstFrameBitrate;
+    private final boolean needsMapping;
+    private final int[] bucketOffsets;
+
+    private Mp3SeekIndex(String path, long lastModified, int durationMs, int firstFrameOffset,
+                         int firstFrameBitrate, boolean needsMapping, int[] bucketOffsets) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.durationMs = durationMs;
+        this.firstFrameOffset = firstFrameOffset;
+        this.firstFrameBitrate = firstFrameBitrate;
+        this.needsMapping = needsMapping;
+        this.bucketOffsets = bucketOffsets;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * True when the platform's own seek would be off, so times have to go through
+     * {@link #toPlayerTime(int)} and the reported duration should come from this index.
+     */
+    public boolean needsMapping() {
+        return needsMapping;
+    }
+
+    /**
+     * The time to pass to MediaPlayer.seekTo so playback resumes at {@code targetMs}. The
+     * offset is interpolated between the two surrounding buckets, so this is constant time.
+     */
+    public int toPlayerTime(int targetMs) {
+        if (!needsMapping || bucketOffsets.length == 0) {
+            return targetMs;
+        }
+        int clamped = Math.max(0, Math.min(targetMs, durationMs));
+        int bucket = Math.min(clamped / BUCKET_MS, bucketOffsets.length - 1);
+        long offset = bucketOffsets[bucket];
+        if (bucket + 1 < bucketOffsets.length) {
+            long next = bucketOffsets[bucket + 1];
+            offset += (next - offset) * (clamped - (long) bucket * BUCKET_MS) / BUCKET_MS;
+        }
+        return (int) ((offset - firstFrameOffset) * 8_000L / firstFrameBitrate);
+    }
+
+    /**
+     * Walks every frame header of {@code path}. Returns null for files that are not MPEG
+     * audio layer III. Call from a background thread.
+     */
+    static Mp3SeekIndex build(String path, long lastModified) throws IOException {
+        long startTime = System.nanoTime();
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int limit = (int) size;
+            int first = findFrame(data, skipId3v2(data), limit);
+            if (first < 0) {
+                Log.w(TAG, "build: noMpegFrameFound in " + path);
+                return null;
+            }
+            int firstHeader = data.getInt(first);
+            int firstBitrate = bitrate(firstHeader);
+            int sampleRate = sampleRate(firstHeader);
+            boolean hasToc = hasTableOfContents(data, first, firstHeader, limit);
+
+            IntArray buckets = new IntArray();
+            long samples = 0;
+            boolean variable = false;
+            int pos = first;
+            while (pos + 4 <= limit) {
+                int header = data.getInt(pos);
+                int length = frameLength(header);
+                if (length <= 0) {
+                    pos = findFrame(data, pos + 1, limit);
+                    if (pos < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                long timeMs = samples * 1000 / sampleRate;
+                while ((long) buckets.size * BUCKET_MS <= timeMs) {
+                    buckets.add(pos);
+                }
+                variable |= bitrate(header) != firstBitrate;
+                samples += samplesPerFrame(header);
+                pos += length;
+            }
+            int durationMs = (int) (samples * 1000 / sampleRate);
+            Mp3SeekIndex index = new Mp3SeekIndex(path, lastModified, durationMs, first, firstBitrate,
+                    variable && !hasToc, buckets.toArray());
+            Log.d(TAG, "build: " + path + ", duration=" + durationMs + "ms, vbr=" + variable + ", toc=" + hasToc +
+                    ", buckets=" + buckets.size + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+            return index;
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_MAGIC);
+        out.writeUTF(path);
+        out.writeLong(lastModified);
+        out.writeInt(durationMs);
+        out.writeInt(firstFrameOffset);
+        out.writeInt(firstFrameBitrate);
+        out.writeBoolean(needsMapping);
+        out.writeInt(bucketOffsets.length);
+        for (int offset : bucketOffsets) {
+            out.writeInt(offset);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutputStream)}, or returns null if the
+     * stream holds something else.
+     */
+    static Mp3SeekIndex readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FORMAT_MAGIC) {
+            return null;
+        }
+        String path = in.readUTF();
+        long lastModified = in.readLong();
+        int durationMs = in.readInt();
+        int firstFrameOffset = in.readInt();
+        int firstFrameBitrate = in.readInt();
+        boolean needsMapping = in.readBoolean();
+        int count = in.readInt();
+        if (count < 0 || firstFrameBitrate <= 0) {
+            return null;
+        }
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+        }
+        return new Mp3SeekIndex(path, lastModified, durationMs, firstFrameOffset, firstFrameBitrate, needsMapping, offsets);
+    }
+
+    private static int skipId3v2(MappedByteBuffer data) {
+        if (data.limit() < 10 || data.get(0) != 'I' || data.get(1) != 'D' || data.get(2) != '3') {
+            return 0;
+        }
+        int tagSize = (data.get(6) & 0x7F) << 21 | (data.get(7) & 0x7F) << 14 | (data.get(8) & 0x7F) << 7 | (data.get(9) & 0x7F);
+        boolean footer = (data.get(5) & 0x10) != 0;
+        return 10 + tagSize + (footer ? 10 : 0);
+    }
+
+    /**
+     * Finds a frame header at or after {@code from} that is followed by another valid header,
+     * so a stray sync word inside tag data is not taken for audio.
+     */
+    private static int findFrame(MappedByteBuffer data, int from, int limit) {
+        int end = Math.min(limit - 4, from + MAX_SYNC_SEARCH);
+        for (int pos = Math.max(from, 0); pos <= end; pos++) {
+            if ((data.get(pos) & 0xFF) != 0xFF) {
+                continue;
+            }
+            int length = frameLength(data.getInt(pos));
+            if (length <= 0) {
+                continue;
+            }
+            int next = pos + length;
+            if (next + 4 > limit || frameLength(data.getInt(next)) > 0) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean hasTableOfContents(MappedByteBuffer data, int frame, int header, int limit) {
+        boolean mpeg1 = ((header >>> 19) & 3) == 3;
+        boolean mono = ((header >>> 6) & 3) == 3;
+        int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        int xing = frame + 4 + sideInfo;
+        if (xing + 8 <= limit) {
+            int tag = data.getInt(xing);
+            if (tag == 0x58696E67 || tag == 0x496E666F) {
+                return (data.getInt(xing + 4) & 0x4) != 0;
+            }
+        }
+        int vbri = frame + 36;
+        return vbri + 4 <= limit && data.getInt(vbri) == 0x56425249;
+    }
+
+    private static int frameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000 || ((header >>> 17) & 3) != 1) {
+            return -1;
+        }
+        int bitrate = bitrate(header);
+        int sampleRate = sampleRate(header);
+        if (bitrate <= 0 || sampleRate <= 0) {
+            return -1;
+        }
+        int padding = (header >>> 9) & 1;
+        boolean mpeg1 = ((header >>> 19) & 3) == 3;
+        return (mpeg1 ? 144 : 72) * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * Bits per second, or -1 for free-format and invalid bitrates.
+     */
+    private static int bitrate(int header) {
+        int version = (header >>> 19) & 3;
+        int index = (header >>> 12) & 0xF;
+        if (version == 1 || index == 0 || index == 15) {
+            return -1;
+        }
+        return (version == 3 ? MPEG1_BITRATES[index] : MPEG2_BITRATES[index]) * 1000;
+    }
+
+    private static int sampleRate(int header) {
+        int version = (header >>> 19) & 3;
+        int index = (header >>> 10) & 3;
+        if (version == 1 || index == 3) {
+            return -1;
+        }
+        int rate = MPEG1_SAMPLE_RATES[index];
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    private static int samplesPerFrame(int header) {
+        return ((header >>> 19) & 3) == 3 ? 1152 : 576;
+    }
+
+    private static class IntArray {
+        int[] values = new int[256];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
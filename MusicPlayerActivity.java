@@ -7,16 +7,13 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaMetadataRetriever;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -28,11 +25,9 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -50,7 +45,10 @@ public class MusicPlayerActivity extends AppCompatActivity {
     private SeekBar seekBarTime;
     private TextView tvTime, tvTitle, tvArtist, tvDuration;
     private ImageView albumArtImageView, backgroundImageView;
-    private final List<Song> songList = new ArrayList<>();
+    private final SongTable songList = new SongTable();
+    private long queueVersion = -1;
+    private String pendingMediaId;
+    private int intentGeneration = 0;
     private int currentSongIndex = 0;
     private boolean isRepeating = false, isShuffling = false;
     private boolean isUpdatingFromBroadcast = false;
@@ -100,19 +98,11 @@ public class MusicPlayerActivity extends AppCompatActivity {
             musicService = binder.getService();
             isBound = true;
             Log.d(TAG, "onServiceConnected: theServiceIsLinked, musicService=" + musicService);
-            if (!songList.isEmpty()) {
-                musicService.setSongList(songList, currentSongIndex);
-                currentSongIndex = musicService.getCurrentSongIndex();
-                Log.d(TAG, "onServiceConnected: songList transferredToTheService, size=" + songList.size());
-                if (currentSongIndex >= 0 && currentSongIndex < songList.size() && musicService.isPlaying()) {
-                    Song song = songList.get(currentSongIndex);
-                    long songId = song.getId();
-                    if (songId > 0) {
-                        Log.d(TAG, "onServiceConnected: call onTrackPlayed for songId=" + songId);
-                        onTrackPlayed(songId);
-                        song.setLastPlayed(System.currentTimeMillis());
-                    }
-                }
+            if (pendingMediaId != null) {
+                musicService.playFromMediaId(pendingMediaId);
+                pendingMediaId = null;
+            } else if (!songList.isEmpty()) {
+                installSongListInService("onServiceConnected");
             }
             updateUIForCurrentSong();
         }
@@ -149,14 +139,7 @@ public class MusicPlayerActivity extends AppCompatActivity {
         Log.d(TAG, "onCreate: UI elementsAreInitialized");
 
 
-        Intent intent = getIntent();
-        extractSongListFromIntent(intent);
-        currentSongIndex = intent.getIntExtra("current_index", 0);
-        if (currentSongIndex < 0 || (currentSongIndex >= songList.size() && !songList.isEmpty())) {
-            currentSongIndex = 0;
-            Log.w(TAG, "onCreate: invalid currentSongIndex, resetTo 0");
-        }
-        Log.d(TAG, "onCreate: currentSongIndex из Intent = " + currentSongIndex);
+        loadSongListFromIntent(getIntent());
 
 
         tvTitle.setText(getString(R.string.unknown_song));
@@ -382,14 +365,10 @@ public class MusicPlayerActivity extends AppCompatActivity {
 
         executor.execute(() -> {
             try {
-                List<Song> serviceSongList = musicService.getSongList();
-                int serviceIndex = musicService.getCurrentSongIndex();
-                isRepeating = musicService.isRepeating();
-                if (!serviceSongList.isEmpty() && !serviceSongList.equals(songList)) {
-                    songList.clear();
-                    songList.addAll(serviceSongList);
-                    currentSongIndex = serviceIndex;
-                }
+                PlaybackSnapshot current = musicService.getSnapshot();
+                isRepeating = current.isRepeating();
+                isShuffling = current.isShuffling();
+                syncQueue(current);
 
                 if (songList.isEmpty() || currentSongIndex < 0 || currentSongIndex >= songList.size()) {
                     Log.w(TAG, "updateUIForCurrentSong: incorrectStateStubShowing");
@@ -462,17 +441,26 @@ public class MusicPlayerActivity extends AppCompatActivity {
         });
     }
     private void syncWithService() {
-        if (musicService != null && !songList.isEmpty()) {
-            List<Song> serviceSongList = musicService.getSongList();
-            int serviceIndex = musicService.getCurrentSongIndex();
-            if (!serviceSongList.isEmpty() && !serviceSongList.equals(songList)) {
-                songList.clear();
-                songList.addAll(serviceSongList);
-                currentSongIndex = serviceIndex;
-                Log.d(TAG, "syncWithService: synchronizedWith MusicService, songList.size=" + songList.size() + ", currentSongIndex=" + currentSongIndex);
-            }
+        if (musicService != null && !songList.isEmpty() && syncQueue(musicService.getSnapshot())) {
+            Log.d(TAG, "syncWithService: synchronizedWith MusicService, songList.size=" + songList.size() + ", currentSongIndex=" + currentSongIndex);
         }
     }
+
+    /**
+     * Takes the service's queue and index when the queue version differs from the one taken
+     * last. Comparing versions replaces comparing the lists element by element, and the columns
+     * are copied only when the queue really changed.
+     */
+    private boolean syncQueue(PlaybackSnapshot current) {
+        if (current.getQueueVersion() == queueVersion || current.getQueueSize() == 0) {
+            return false;
+        }
+        songList.clear();
+        songList.addAll(current.getSongTable());
+        currentSongIndex = current.getCurrentSongIndex();
+        queueVersion = current.getQueueVersion();
+        return true;
+    }
     private void onTrackPlayed(long songId) {
         if (songId <= 0) {
             Log.w(TAG, "onTrackPlayed: invalid songId=" + songId);
@@ -511,79 +499,69 @@ public class MusicPlayerActivity extends AppCompatActivity {
         Log.d(TAG, "onTrackPlayed: sent broadcast ACTION_PLAYLIST_UPDATED");
     }
 
-    private void extractSongListFromIntent(Intent intent) {
+    // A "media_id" extra is left to the service, which builds that queue itself. "song_ids" are
+    // resolved on the executor, since getSongsByIds may wait for the library index to be built.
+    private void loadSongListFromIntent(Intent intent) {
+        int generation = ++intentGeneration;
         songList.clear();
+        pendingMediaId = intent.getStringExtra("media_id");
+        if (pendingMediaId != null) {
+            currentSongIndex = 0;
+            Log.d(TAG, "loadSongListFromIntent: queueResolvedByService, media_id=" + pendingMediaId);
+            return;
+        }
         long[] ids = intent.getLongArrayExtra("song_ids");
+        int requestedIndex = intent.getIntExtra("current_index", 0);
         if (ids == null || ids.length == 0) {
-            Log.w(TAG, "extractSongListFromIntent: emptyOrMissingArray song_ids");
+            currentSongIndex = Math.max(requestedIndex, 0);
+            Log.w(TAG, "loadSongListFromIntent: emptyOrMissingArray song_ids");
             return;
         }
-        Log.d(TAG, "extractSongListFromIntent:received " + ids.length + " ID tracks");
-        for (long id : ids) {
-            if (id <= 0) {
-                Log.w(TAG, "extractSongListFromIntent: invalidTrackID: " + id);
-                continue;
-            }
-            Song song = getSongById(id);
-            if (song != null) {
-                songList.add(song);
-                Log.d(TAG, "extractSongListFromIntent: Добавлена песня с ID=" + id + ", title=" + song.getTitle());
-            } else {
-                Log.w(TAG, "extractSongListFromIntent:couldnTFindASongFor songId=" + id);
+        Log.d(TAG, "loadSongListFromIntent: received " + ids.length + " ID tracks");
+        Context context = getApplicationContext();
+        executor.execute(() -> {
+            SongTable songs = new SongTable();
+            try {
+                songs = SongRepository.getInstance(context).getSongsByIds(ids);
+            } catch (Exception e) {
+                Log.e(TAG, "loadSongListFromIntent: requestError", e);
             }
+            SongTable resolved = songs;
+            int index = resolved.isEmpty() ? requestedIndex : resolved.indexOfRequested(ids, requestedIndex);
+            handler.post(() -> onIntentSongsLoaded(generation, resolved, index, ids.length));
+        });
+    }
+
+    private void onIntentSongsLoaded(int generation, SongTable songs, int index, int requestedCount) {
+        if (generation != intentGeneration || isDestroyed()) {
+            return;
         }
+        songList.clear();
+        songList.addAll(songs);
         if (songList.isEmpty()) {
-            Log.e(TAG, "extractSongListFromIntent:Failed to generate songList, all songs are unavailable");
-        } else {
-            Log.d(TAG, "extractSongListFromIntent: songList.size=" + songList.size() +
-                    ", songList=" + songList);
+            Log.e(TAG, "onIntentSongsLoaded: Failed to generate songList, all songs are unavailable");
         }
+        currentSongIndex = index < 0 || index >= songList.size() ? 0 : index;
+        Log.d(TAG, "onIntentSongsLoaded: songList.size=" + songList.size() + ", skipped=" +
+                (requestedCount - songList.size()) + ", currentSongIndex=" + currentSongIndex);
+        if (isBound && musicService != null && !songList.isEmpty()) {
+            installSongListInService("onIntentSongsLoaded");
+        }
+        updateUIForCurrentSong();
     }
 
-    private Song getSongById(long id) {
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.DURATION,
-                MediaStore.Audio.Media.ALBUM_ID
-        };
-        String selection = MediaStore.Audio.Media._ID + " = ?";
-        String[] selectionArgs = { String.valueOf(id) };
-        try (Cursor cursor = getContentResolver().query(
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                projection,
-                selection,
-                selectionArgs,
-                null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                long songId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID));
-                String title = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
-                String artist = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-                String data = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA));
-                long duration = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION));
-                long albumId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
-                File file = new File(data);
-                if (!file.exists() || !file.canRead()) {
-                    Log.w(TAG, "getSongById: theFileIsNotAvailableOrDoesNotExist: " + data);
-                    return null;
-                }
-                Uri uri = Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, String.valueOf(songId));
-                Uri albumArtUri = Uri.parse("content://media/external/audio/albumart/" + albumId);
-                Song song = new Song(songId, title, artist, uri, albumArtUri, duration, data);
-
-                SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
-                song.setLastPlayed(prefs.getLong("last_played_" + songId, 0));
-                Log.d(TAG, "getSongById:createdASongWithtitle=" + title + ", path=" + data);
-                return song;
-            } else {
-                Log.w(TAG, "getSongById: theCursorIsEmptyOrNullFor songId=" + id);
+    private void installSongListInService(String caller) {
+        musicService.setSongList(songList, currentSongIndex);
+        Log.d(TAG, caller + ": installedSongListIn MusicService, size=" + songList.size() + ", currentSongIndex=" + currentSongIndex);
+        if (currentSongIndex >= 0 && currentSongIndex < songList.size() && musicService.isPlaying()) {
+            Song song = songList.get(currentSongIndex);
+            long songId = song.getId();
+            if (songId > 0) {
+                Log.d(TAG, caller + ": call onTrackPlayed for songId=" + songId);
+                onTrackPlayed(songId);
+                song.setLastPlayed(System.currentTimeMillis());
             }
-        } catch (Exception e) {
-            Log.e(TAG, "getSongById: requestError songId=" + id, e);
         }
-        return null;
     }
 
     private String formatTime(int millis) {
@@ -695,12 +673,7 @@ public class MusicPlayerActivity extends AppCompatActivity {
             Log.d(TAG, "onResume: bindingTo MusicService");
         } else if (musicService != null) {
 
-            List<Song> serviceSongList = musicService.getSongList();
-            int serviceIndex = musicService.getCurrentSongIndex();
-            if (!serviceSongList.isEmpty()) {
-                songList.clear();
-                songList.addAll(serviceSongList);
-                currentSongIndex = serviceIndex;
+            if (syncQueue(musicService.getSnapshot())) {
                 Log.d(TAG, "onResume: synchronizedWith MusicService, songList.size=" + songList.size() + ", currentSongIndex=" + currentSongIndex);
             }
         }
@@ -733,29 +706,12 @@ public class MusicPlayerActivity extends AppCompatActivity {
         super.onNewIntent(intent);
         Log.d(TAG, "onNewIntent: aNew intent, action=" + intent.getAction());
         setIntent(intent);
-        extractSongListFromIntent(intent);
-        currentSongIndex = intent.getIntExtra("current_index", 0);
-        if (currentSongIndex < 0 || (currentSongIndex >= songList.size() && !songList.isEmpty())) {
-            currentSongIndex = 0;
-            Log.w(TAG, "onNewIntent: invalid currentSongIndex, resetTo 0");
-        }
-        Log.d(TAG, "onNewIntent: extracted currentSongIndex=" + currentSongIndex + ", songList.size=" + songList.size());
+        loadSongListFromIntent(intent);
 
         if (isBound && musicService != null) {
-            if (!songList.isEmpty()) {
-                musicService.setSongList(songList, currentSongIndex);
-                Log.d(TAG, "onNewIntent: installedSongListIn MusicService, size=" + songList.size() + ", currentSongIndex=" + currentSongIndex);
-                if (currentSongIndex >= 0 && currentSongIndex < songList.size() && musicService.isPlaying()) {
-                    Song song = songList.get(currentSongIndex);
-                    long songId = song.getId();
-                    if (songId > 0) {
-                        Log.d(TAG, "onNewIntent: call onTrackPlayed for songId=" + songId);
-                        onTrackPlayed(songId);
-                        song.setLastPlayed(System.currentTimeMillis());
-                    }
-                }
-            } else {
-                Log.w(TAG, "onNewIntent: songList пуст, skippingInstallation в MusicService");
+            if (pendingMediaId != null) {
+                musicService.playFromMediaId(pendingMediaId);
+                pendingMediaId = null;
             }
         } else {
             Log.w(TAG, "onNewIntent: serviceUnboundDeferredUpdateInOnResume");
@@ -3,83 +3,239 @@ package com.example.promusic;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.AudioAttributes;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
-import android.media.MediaMetadataRetriever;
-import android.media.MediaPlayer;
-import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.provider.MediaStore;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
-import android.support.v4.media.MediaMetadataCompat;
 import android.util.Log;
 
-import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
+import androidx.media.MediaBrowserServiceCompat;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class MusicService extends Service {
+// All player and queue state belongs to the engine thread; the public methods only queue commands.
+public class MusicService extends MediaBrowserServiceCompat {
     private static final String TAG = "MusicService";
     private static final String CHANNEL_ID = "music_channel";
     private static final int NOTIFICATION_ID = 1;
     private static final String PREFS = "PlaybackPrefs";
     private static final String PREF_FAVORITES = "favorites";
+    private static final String PREF_GAPLESS = "gapless_playback";
+    private static final String PREF_CROSSFADE = "crossfade_seconds";
+    private static final int MAX_CROSSFADE_SECONDS = 12;
+    private static final long CROSSFADE_STEP_MS = 50;
+    private static final long SKIP_COALESCE_MS = 200;
+    private static final long QUEUE_SAVE_DELAY_MS = 2000;
+    private static final String PREF_BACKEND = "playback_backend";
+    private static final long POSITION_DRIFT_MS = 500;
+    private static final String[] PREWARM_MIME_TYPES = {"audio/mpeg", "audio/mp4a-latm", "audio/flac"};
 
     private final IBinder binder = new MusicBinder();
-    private final List<Song> songList = new ArrayList<>();
-    private final List<Song> originalSongList = new ArrayList<>();
+    private final PlayQueue songList = new PlayQueue();
     private int currentSongIndex = 0;
     private boolean isRepeating = false, isShuffling = false;
-    private MediaPlayer mediaPlayer;
+    private TrackPlayer mediaPlayer;
     private MediaSessionCompat mediaSessionCompat;
     private AudioManager audioManager;
     private AudioFocusRequest focusRequest;
     private boolean isUpdatingFromBroadcast = false;
     private boolean isExplicitlyStopped = false;
     private String currentSongPath = null;
+    private Song currentSong;
+    private boolean isPlayerPrepared = false;
+    private TrackPlayer nextPlayer;
+    private TrackPlayer sparePlayer;
+    private int nextPlayerIndex = -1;
+    private boolean nextPlayerChained = false;
+    private boolean nextPlayerPrepared = false;
+    private TrackPlayer fadingPlayer;
+    private long crossfadeStart = 0;
+    private long crossfadeMs = 0;
+    private final Runnable crossfadeCheckRunnable = this::scheduleCrossfade;
+    private final Runnable crossfadeStepRunnable = this::stepCrossfade;
+    private long nextPlayerPrepareStart = 0;
+    private long skipStartTime = 0;
+    private long firstAudioRequestedAt = 0;
+    private volatile long lastTimeToFirstAudioMs = -1;
+    private final Map<String, Long> averageTimeToFirstAudioMs = new ConcurrentHashMap<>();
+    private volatile long lastSkipLatencyMs = -1;
+    private volatile long averageSkipLatencyMs = -1;
+    private final ShuffleOrder shuffleOrder = new ShuffleOrder(new Random());
+
+    private HandlerThread engineThread;
+    private Handler engineHandler;
+    private volatile PlaybackSnapshot snapshot = PlaybackSnapshot.EMPTY;
+    private boolean skipPending = false;
+    private int pendingSkipIndex = -1;
+    private long skipRequestedAt = 0;
+    private final Runnable pendingSkipRunnable = this::playPendingSkip;
+    private final AtomicInteger queuedSeek = new AtomicInteger(-1);
+    private boolean seekInFlight = false;
+    private int deferredSeek = -1;
+    private QueueSnapshotStore queueStore;
+    private int resumePosition = 0;
+    private Mp3SeekIndex seekIndex;
+    private String seekIndexLookupPath;
+    private int seekAfterIndexMs = -1;
+    private NotificationRenderer notificationRenderer;
+    private Set<String> favoriteIds;
+    private int publishedState = -1;
+    private float publishedSpeed = 0f;
+    private int publishedIndex = -1;
+    private long publishedPosition = 0;
+    private long publishedUpdateTime = 0;
+    private int seekOffsetMs = 0;
+    private LibraryBrowseTree browseTree;
+    private final ExecutorService browseExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable queueSaveRunnable = () -> saveQueueSnapshot(false);
+
+    private void enqueue(String command, Runnable action) {
+        long queuedAt = SystemClock.uptimeMillis();
+        boolean queued = engineHandler.post(() -> {
+            long waitMs = SystemClock.uptimeMillis() - queuedAt;
+            WakeupCounter.getInstance().record("command");
+            Log.d(TAG, "enqueue: running " + command + ", waitedInQueue=" + waitMs + "ms");
+            try {
+                action.run();
+            } catch (Exception e) {
+                Log.e(TAG, "enqueue: " + command + " failed", e);
+            }
+            publishSnapshot();
+        });
+        if (!queued) {
+            Log.w(TAG, "enqueue: engineStopped, dropping " + command);
+        }
+    }
 
-    private final Handler timerHandler = new Handler(Looper.getMainLooper());
-    private final Runnable timerRunnable = new Runnable() {
-        @Override
-        public void run() {
-            updateNotificationWithProgress();
-            timerHandler.postDelayed(this, 1000);
+    // Engine thread only. The queue table is shared with the snapshot, not copied.
+    private void publishSnapshot() {
+        SongTable queue = songList.publish();
+        int duration = 0;
+        int position = resumePosition;
+        if (isPlayerPrepared) {
+            duration = getPlayerDuration();
+            position = getPlayerPosition();
+        } else if (currentSongIndex >= 0 && currentSongIndex < queue.size()) {
+            duration = queue.getDuration(currentSongIndex);
         }
-    };
+        snapshot = new PlaybackSnapshot(queue, songList.getVersion(), currentSongIndex, isPlayerPlaying(), isRepeating,
+                isShuffling, duration, position);
+        PlaybackStore.getInstance().publish(snapshot);
+        publishPlaybackState(snapshot);
+        engineHandler.removeCallbacks(queueSaveRunnable);
+        engineHandler.postDelayed(queueSaveRunnable, QUEUE_SAVE_DELAY_MS);
+    }
 
-    private void startNotificationTimer() {
-        timerHandler.removeCallbacks(timerRunnable);
-        timerHandler.post(timerRunnable);
+    // Republished on transitions and seeks only; the session extrapolates the position in between.
+    private void publishPlaybackState(PlaybackSnapshot current) {
+        if (mediaSessionCompat == null) {
+            return;
+        }
+        int state;
+        if (current.isPlaying()) {
+            state = PlaybackStateCompat.STATE_PLAYING;
+        } else if (mediaPlayer != null && !isPlayerPrepared && !isExplicitlyStopped) {
+            state = PlaybackStateCompat.STATE_BUFFERING;
+        } else {
+            state = PlaybackStateCompat.STATE_PAUSED;
+        }
+        float speed = state == PlaybackStateCompat.STATE_PLAYING ? 1.0f : 0f;
+        long position = current.getSampledPosition();
+        long updateTime = current.getSampledAt();
+        if (state == publishedState && speed == publishedSpeed && current.getCurrentSongIndex() == publishedIndex) {
+            long expected = publishedPosition + (long) ((updateTime - publishedUpdateTime) * publishedSpeed);
+            if (Math.abs(expected - position) <= POSITION_DRIFT_MS) {
+                return;
+            }
+        }
+        mediaSessionCompat.setPlaybackState(new PlaybackStateCompat.Builder()
+                .setState(state, position, speed, updateTime)
+                .setActions(
+                        PlaybackStateCompat.ACTION_PLAY |
+                                PlaybackStateCompat.ACTION_PAUSE |
+                                PlaybackStateCompat.ACTION_PLAY_PAUSE |
+                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+                                PlaybackStateCompat.ACTION_SEEK_TO |
+                                PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
+                ).build());
+        publishedState = state;
+        publishedSpeed = speed;
+        publishedIndex = current.getCurrentSongIndex();
+        publishedPosition = position;
+        publishedUpdateTime = updateTime;
+        Log.d(TAG, "publishPlaybackState: state=" + state + ", position=" + position + ", index=" + publishedIndex);
     }
 
-    private void stopNotificationTimer() {
-        timerHandler.removeCallbacks(timerRunnable);
+    private void saveQueueSnapshot(boolean force) {
+        if (songList.getVersion() != snapshot.getQueueVersion()) {
+            publishSnapshot();
+        }
+        engineHandler.removeCallbacks(queueSaveRunnable);
+        if (songList.isEmpty()) {
+            return;
+        }
+        int position = isPlayerPrepared ? getPlayerPosition() : resumePosition;
+        queueStore.save(snapshot.getSongTable(), currentSongIndex, position, isShuffling, isRepeating, shuffleOrder, force);
+    }
+
+    private void restoreQueueSnapshot() {
+        if (!songList.isEmpty()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        QueueSnapshotStore.Restored restored = queueStore.load();
+        if (restored == null) {
+            return;
+        }
+        songList.replace(restored.queue);
+        currentSongIndex = restored.currentIndex;
+        isRepeating = restored.repeating;
+        isShuffling = restored.shuffling;
+        if (isShuffling && (restored.shuffleOrder == null || restored.shuffleOrder.length != songList.size() ||
+                !shuffleOrder.restore(restored.shuffleOrder, restored.shuffleDrawn, restored.shufflePlayed))) {
+            shuffleOrder.reset(songList.size(), currentSongIndex);
+        }
+        isExplicitlyStopped = true;
+        resumePosition = restored.position;
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit()
+                .putString("last_song_path", songList.getData(currentSongIndex))
+                .putInt("last_playback_position", restored.position)
+                .apply();
+        snapshot = new PlaybackSnapshot(songList.publish(), songList.getVersion(), currentSongIndex, false, isRepeating,
+                isShuffling, songList.getDuration(currentSongIndex), resumePosition);
+        Log.d(TAG, "restoreQueueSnapshot: rows=" + songList.size() + ", index=" + currentSongIndex + ", position=" +
+                resumePosition + ", time=" + (System.nanoTime() - startTime) / 1_000 + "us");
     }
 
-    private void updateNotificationWithProgress() {
+    private void refreshNotification() {
+        Notification previous = notificationRenderer.getNotification();
         Notification notification = buildNotification();
-        if (notification != null) {
+        if (notification != null && notification != previous) {
             NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
             notificationManager.notify(NOTIFICATION_ID, notification);
         }
@@ -90,15 +246,27 @@ public class MusicService extends Service {
         public void onReceive(Context context, Intent intent) {
             if ("com.example.promusic.ACTION_FAVORITES_CHANGED".equals(intent.getAction())) {
                 Log.d(TAG, "favoritesChangedReceiver: Received ACTION_FAVORITES_CHANGED");
-                isUpdatingFromBroadcast = true;
-                startForegroundNotification();
-                isUpdatingFromBroadcast = false;
+                enqueue("FAVORITES_CHANGED", () -> {
+                    favoriteIds = null;
+                    isUpdatingFromBroadcast = true;
+                    startForegroundNotification();
+                    isUpdatingFromBroadcast = false;
+                });
+                notifyChildrenChanged(LibraryBrowseTree.FAVORITES_ID);
             }
         }
     };
 
     public boolean isRepeating() {
-        return  isRepeating;
+        return snapshot.isRepeating();
+    }
+
+    public boolean isShuffling() {
+        return snapshot.isShuffling();
+    }
+
+    public PlaybackSnapshot getSnapshot() {
+        return snapshot;
     }
 
     public class MusicBinder extends Binder {
@@ -110,32 +278,50 @@ public class MusicService extends Service {
     @Override
     public void onTaskRemoved(Intent rootIntent) {
         Log.d(TAG, "onTaskRemoved: appRemovedFromRecentTasksClearState");
-        if (mediaPlayer != null) {
-            try {
-                mediaPlayer.stop();
-                mediaPlayer.release();
-            } catch (Exception e) {
-                Log.e(TAG, "onTaskRemoved: errorStoppingReleasingMediaPlayer", e);
+        enqueue("TASK_REMOVED", () -> {
+            saveQueueSnapshot(true);
+            releaseNextPlayer();
+            finishCrossfade();
+            releaseSparePlayer();
+            if (mediaPlayer != null) {
+                try {
+                    mediaPlayer.stop();
+                    mediaPlayer.release();
+                } catch (Exception e) {
+                    Log.e(TAG, "onTaskRemoved: errorStoppingReleasingMediaPlayer", e);
+                }
+                mediaPlayer = null;
             }
-            mediaPlayer = null;
-        }
-        currentSongPath = null;
-        isExplicitlyStopped = true;
-        songList.clear();
-        originalSongList.clear();
-        currentSongIndex = 0;
-        stopNotificationTimer();
-        stopForeground(true);
-        stopSelf();
+            isPlayerPrepared = false;
+            currentSongPath = null;
+            isExplicitlyStopped = true;
+            cancelPendingSkip();
+            songList.clear();
+            currentSongIndex = 0;
+            stopForeground(true);
+            stopSelf();
+        });
         super.onTaskRemoved(rootIntent);
     }
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "onCreate: Service created");
+        engineThread = new HandlerThread("PlaybackEngine", Process.THREAD_PRIORITY_FOREGROUND);
+        engineThread.start();
+        engineHandler = new Handler(engineThread.getLooper());
+        queueStore = new QueueSnapshotStore(this);
+        SeekIndexCache.getInstance().init(this);
+        if (!MediaPlayerTrack.BACKEND.equals(getPlaybackBackend())) {
+            CodecPool.getInstance().prewarm(PREWARM_MIME_TYPES);
+        }
+        enqueue("RESTORE_QUEUE", this::restoreQueueSnapshot);
         createNotificationChannel();
         mediaSessionCompat = new MediaSessionCompat(this, TAG);
         mediaSessionCompat.setActive(true);
+        setSessionToken(mediaSessionCompat.getSessionToken());
+        browseTree = new LibraryBrowseTree(this);
+        notificationRenderer = new NotificationRenderer(this, mediaSessionCompat, CHANNEL_ID);
 
         mediaSessionCompat.setCallback(new MediaSessionCompat.Callback() {
             @Override
@@ -165,9 +351,7 @@ public class MusicService extends Service {
             @Override
             public void onStop() {
                 Log.d(TAG, "MediaSession: onStop");
-                pause();
-                stopForeground(true);
-                stopSelf();
+                enqueue("STOP", MusicService.this::handleStop);
             }
 
             @Override
@@ -175,10 +359,16 @@ public class MusicService extends Service {
                 Log.d(TAG, "MediaSession: onSeekTo, pos=" + pos);
                 seekTo((int) pos);
             }
+
+            @Override
+            public void onPlayFromMediaId(String mediaId, Bundle extras) {
+                Log.d(TAG, "MediaSession: onPlayFromMediaId, mediaId=" + mediaId);
+                playFromMediaId(mediaId);
+            }
         });
 
         audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        setupAudioFocus();
+        enqueue("SETUP_AUDIO_FOCUS", this::setupAudioFocus);
 
         IntentFilter favoritesFilter = new IntentFilter("com.example.promusic.ACTION_FAVORITES_CHANGED");
         try {
@@ -197,7 +387,7 @@ public class MusicService extends Service {
         focusRequest = new AudioFocusRequest.Builder(AudioManager.AUDIOFOCUS_GAIN)
                 .setAudioAttributes(audioAttributes)
                 .setAcceptsDelayedFocusGain(true)
-                .setOnAudioFocusChangeListener(focusChangeListener)
+                .setOnAudioFocusChangeListener(focusChangeListener, engineHandler)
                 .build();
         int result = audioManager.requestAudioFocus(focusRequest);
         Log.d(TAG, "setupAudioFocus: requestAudioFocus result=" + result);
@@ -213,12 +403,12 @@ public class MusicService extends Service {
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
                     Log.d(TAG, "AUDIOFOCUS_LOSS or TRANSIENT: pausePlayback");
                     if (mediaPlayer != null && mediaPlayer.isPlaying()) {
+                        finishCrossfade();
                         mediaPlayer.pause();
                         savePlaybackPosition();
                         isExplicitlyStopped = true;
                         sendSongChanged();
                         startForegroundNotification();
-                        stopNotificationTimer();
                     }
                     break;
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
@@ -229,7 +419,7 @@ public class MusicService extends Service {
                     break;
                 case AudioManager.AUDIOFOCUS_GAIN:
                     Log.d(TAG, "AUDIOFOCUS_GAIN: restoringTheVolume, isExplicitlyStopped=" + isExplicitlyStopped);
-                    if (mediaPlayer != null && !isExplicitlyStopped) {
+                    if (mediaPlayer != null && isPlayerPrepared && !isExplicitlyStopped) {
                         mediaPlayer.setVolume(1.0f, 1.0f);
                         if (!mediaPlayer.isPlaying()) {
                             int result = audioManager.requestAudioFocus(focusRequest);
@@ -237,7 +427,7 @@ public class MusicService extends Service {
                                 mediaPlayer.start();
                                 isExplicitlyStopped = false;
                                 startForegroundNotification();
-                                startNotificationTimer();
+                                scheduleCrossfade();
                                 sendSongChanged();
                                 Log.d(TAG, "AUDIOFOCUS_GAIN:playbackResumed");
                             } else {
@@ -250,6 +440,7 @@ public class MusicService extends Service {
                     }
                     break;
             }
+            publishSnapshot();
         }
     };
     private boolean isAppInForeground() {
@@ -270,15 +461,60 @@ public class MusicService extends Service {
     @Override
     public IBinder onBind(Intent intent) {
         Log.d(TAG, "onBind called, intent=" + intent);
+        if (SERVICE_INTERFACE.equals(intent.getAction())) {
+            return super.onBind(intent);
+        }
         return binder;
     }
 
+    @Override
+    public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
+        Log.d(TAG, "onGetRoot: clientPackageName=" + clientPackageName + ", clientUid=" + clientUid);
+        return new BrowserRoot(LibraryBrowseTree.ROOT_ID, null);
+    }
+
+    @Override
+    public void onLoadChildren(String parentId, Result<List<MediaBrowserCompat.MediaItem>> result) {
+        loadChildren(parentId, result, 0, LibraryBrowseTree.MAX_PAGE_SIZE);
+    }
+
+    @Override
+    public void onLoadChildren(String parentId, Result<List<MediaBrowserCompat.MediaItem>> result, Bundle options) {
+        int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            onLoadChildren(parentId, result);
+            return;
+        }
+        loadChildren(parentId, result, page, pageSize);
+    }
+
+    private void loadChildren(String parentId, Result<List<MediaBrowserCompat.MediaItem>> result, int page, int pageSize) {
+        result.detach();
+        browseExecutor.execute(() -> result.sendResult(browseTree.loadChildren(parentId, page, pageSize)));
+    }
+
+    public void playFromMediaId(String mediaId) {
+        String parentId = LibraryBrowseTree.getParentId(mediaId);
+        long songId = LibraryBrowseTree.getSongId(mediaId);
+        if (parentId == null || songId < 0) {
+            Log.w(TAG, "playFromMediaId: notPlayable " + mediaId);
+            return;
+        }
+        browseExecutor.execute(() -> {
+            SongTable queue = browseTree.loadQueue(parentId);
+            int index = queue == null ? -1 : queue.indexOfId(songId);
+            if (index < 0) {
+                Log.w(TAG, "playFromMediaId: songNotFound " + mediaId);
+                return;
+            }
+            setSongList(queue, index);
+        });
+    }
+
     private void sendPlaybackState() {
-        Intent intent = new Intent("com.example.mickey.PLAYBACK_STATE");
-        intent.setPackage(getApplicationContext().getPackageName());
+        Intent intent = createQueueEvent("com.example.mickey.PLAYBACK_STATE");
         intent.putExtra("is_playing", mediaPlayer != null && mediaPlayer.isPlaying());
-        intent.putExtra("current_index", currentSongIndex);
-        intent.putParcelableArrayListExtra("song_list", new ArrayList<>(songList));
         sendBroadcast(intent);
         Log.d(TAG, "[sendPlaybackState] BROADCAST SENT! isPlaying=" + (mediaPlayer != null && mediaPlayer.isPlaying()) + ", currentIndex=" + currentSongIndex);
     }
@@ -290,14 +526,7 @@ public class MusicService extends Service {
 
         if (intent == null) {
             Log.e(TAG, "onStartCommand: Intent == null (probablyARestartOfTheService)");
-            if (!isAppInForeground() || isExplicitlyStopped) {
-                stopForeground(true);
-                stopSelf();
-                Log.d(TAG, "onStartCommand: App not in foreground or playback stopped, service stopped");
-            } else {
-                startForegroundNotification();
-                Log.d(TAG, "onStartCommand: appInForegroundUpdateTheNotification");
-            }
+            enqueue("RESTART", this::handleRestart);
             return START_STICKY;
         }
 
@@ -307,39 +536,36 @@ public class MusicService extends Service {
 
         if (action == null) {
             Log.e(TAG, "onStartCommand: action == null");
-            if (!isAppInForeground() || isExplicitlyStopped) {
-                stopForeground(true);
-                stopSelf();
-                Log.d(TAG, "onStartCommand: App not in foreground or playback stopped, service stopped");
-            } else {
-                startForegroundNotification();
-                Log.d(TAG, "onStartCommand: appInForegroundUpdateTheNotification");
-            }
+            enqueue("RESTART", this::handleRestart);
             return START_STICKY;
         }
 
+        enqueue(action, () -> handleCommand(action, intent));
+        return "STOP".equals(action) || "CHECK_PLAYBACK_STATE".equals(action) ? START_NOT_STICKY : START_STICKY;
+    }
 
+    private void handleRestart() {
+        if (!isAppInForeground() || isExplicitlyStopped) {
+            stopForeground(true);
+            stopSelf();
+            Log.d(TAG, "onStartCommand: App not in foreground or playback stopped, service stopped");
+        } else {
+            startForegroundNotification();
+            Log.d(TAG, "onStartCommand: appInForegroundUpdateTheNotification");
+        }
+    }
+
+    private void handleCommand(String action, Intent intent) {
         switch (action) {
             case "PLAY":
                 long[] songIds = intent.getLongArrayExtra("song_ids");
                 int index = intent.getIntExtra("current_index", 0);
                 if (songIds != null && songIds.length > 0 && isAppInForeground()) {
-                    List<Song> newSongList = new ArrayList<>();
-                    for (long songId : songIds) {
-                        if (songId <= 0) {
-                            Log.w(TAG, "onStartCommand:  songId=" + songId);
-                            continue;
-                        }
-                        Song song = getSongById(songId);
-                        if (song != null) {
-                            newSongList.add(song);
-                            Log.d(TAG, "onStartCommand: addedASongTo newSongList: " + song.getTitle() + ", путь=" + song.getData());
-                        } else {
-                            Log.w(TAG, "onStartCommand: couldNotLoadASongFor songId=" + songId);
-                        }
-                    }
+                    SongTable newSongList = SongRepository.getInstance(this).getSongsByIds(songIds);
+                    index = newSongList.indexOfRequested(songIds, index);
+                    Log.d(TAG, "onStartCommand: resolved " + newSongList.size() + " of " + songIds.length + " songIds");
                     if (!newSongList.isEmpty()) {
-                        setSongList(newSongList, index);
+                        handleSetSongList(newSongList, index);
                         isExplicitlyStopped = false;
                         playSongAtIndex(index);
                         startForegroundNotification();
@@ -357,13 +583,13 @@ public class MusicService extends Service {
                 break;
             case "PLAY_PAUSE":
                 Log.d(TAG, "onStartCommand: PLAY_PAUSE");
-                playPause();
+                handlePlayPause();
                 startForegroundNotification();
                 sendPlaybackState();
                 break;
             case "PAUSE":
                 Log.d(TAG, "onStartCommand: PAUSE");
-                pause();
+                handlePause();
                 isExplicitlyStopped = true;
                 startForegroundNotification();
                 sendPlaybackState();
@@ -371,7 +597,7 @@ public class MusicService extends Service {
             case "NEXT":
                 Log.d(TAG, "onStartCommand: NEXT");
                 if (isAppInForeground() && mediaPlayer != null) {
-                    playNext();
+                    handleSkip(true);
                     isExplicitlyStopped = false;
                     startForegroundNotification();
                 } else {
@@ -382,7 +608,7 @@ public class MusicService extends Service {
             case "PREVIOUS":
                 Log.d(TAG, "onStartCommand: PREVIOUS");
                 if (isAppInForeground() && mediaPlayer != null) {
-                    playPrevious();
+                    handleSkip(false);
                     isExplicitlyStopped = false;
                     startForegroundNotification();
                 } else {
@@ -392,29 +618,86 @@ public class MusicService extends Service {
                 break;
             case "STOP":
                 Log.d(TAG, "onStartCommand: STOP");
-                pause();
-                isExplicitlyStopped = true;
-                stopForeground(true);
-                stopSelf();
-                return START_NOT_STICKY;
+                handleStop();
+                break;
             case "TOGGLE_FAVORITE":
                 Log.d(TAG, "onStartCommand: TOGGLE_FAVORITE");
-                toggleFavorite();
+                handleToggleFavorite();
                 break;
             case "CHECK_PLAYBACK_STATE":
                 Log.d(TAG, "onStartCommand: CHECK_PLAYBACK_STATE");
                 sendPlaybackState();
                 startForegroundNotification();
-                return START_NOT_STICKY;
+                break;
             default:
                 Log.e(TAG, "onStartCommand: unknownAction: " + action);
                 stopForeground(true);
         }
+    }
 
-        return START_STICKY;
+    private void handleStop() {
+        handlePause();
+        isExplicitlyStopped = true;
+        stopForeground(true);
+        stopSelf();
     }
 
     public void setSongList(List<Song> list, int index) {
+        List<Song> queued = null;
+        if (list instanceof SongTable) {
+            SongTable table = new SongTable(list.size());
+            table.addAll(list);
+            queued = table;
+        } else if (list != null) {
+            queued = new ArrayList<>(list);
+        }
+        List<Song> songs = queued;
+        enqueue("SET_QUEUE", () -> handleSetSongList(songs, index));
+    }
+
+    public void setRepeating(boolean repeating) {
+        enqueue("SET_REPEATING", () -> handleSetRepeating(repeating));
+    }
+
+    public void setShuffling(boolean shuffling) {
+        enqueue("SET_SHUFFLING", () -> handleSetShuffling(shuffling));
+    }
+
+    public void setGaplessEnabled(boolean enabled) {
+        enqueue("SET_GAPLESS", () -> handleSetGaplessEnabled(enabled));
+    }
+
+    public void playPause() {
+        enqueue("PLAY_PAUSE", this::handlePlayPause);
+    }
+
+    public void playNext() {
+        enqueue("NEXT", () -> handleSkip(true));
+    }
+
+    public void playPrevious() {
+        enqueue("PREVIOUS", () -> handleSkip(false));
+    }
+
+    public void pause() {
+        enqueue("PAUSE", this::handlePause);
+    }
+
+    // A seek still waiting in the queue only gets a new target.
+    public void seekTo(int progress) {
+        if (queuedSeek.getAndSet(Math.max(progress, 0)) < 0) {
+            enqueue("SEEK", () -> handleSeek(queuedSeek.getAndSet(-1)));
+        } else {
+            Log.d(TAG, "seekTo: coalescedIntoQueuedSeek, position=" + progress);
+        }
+    }
+
+    public void toggleFavorite() {
+        enqueue("TOGGLE_FAVORITE", this::handleToggleFavorite);
+    }
+
+    // A SongTable becomes the queue without a copy.
+    private void handleSetSongList(List<Song> list, int index) {
         Log.d(TAG, "setSongList: Called with list.size=" + (list == null ? 0 : list.size()) + ", index=" + index);
         if (list == null || list.isEmpty()) {
             Log.e(TAG, "setSongList: List is null or empty");
@@ -422,20 +705,25 @@ public class MusicService extends Service {
             return;
         }
 
+        releaseNextPlayer();
+        cancelPendingSkip();
         songList.clear();
-        originalSongList.clear();
-        for (Song song : list) {
-            if (song != null && song.getData() != null && !song.getData().isEmpty()) {
-                File file = new File(song.getData());
-                if (file.exists() && file.canRead()) {
-                    songList.add(song);
-                    originalSongList.add(song);
-                    Log.d(TAG, "setSongList: Added song: " + song.getTitle() + ", data=" + song.getData());
+        if (list instanceof SongTable) {
+            songList.replace((SongTable) list);
+            int skipped = songList.retainValidFiles();
+            Log.d(TAG, "setSongList: Added " + songList.size() + " songs, skipped " + skipped + " inaccessible files");
+        } else {
+            for (Song song : list) {
+                if (song != null && song.getData() != null && !song.getData().isEmpty()) {
+                    if (FileValidityCache.getInstance().isValid(song.getData())) {
+                        songList.add(song);
+                        Log.d(TAG, "setSongList: Added song: " + song.getTitle() + ", data=" + song.getData());
+                    } else {
+                        Log.w(TAG, "setSongList: Invalid or inaccessible file for song: " + song.getTitle() + ", data=" + song.getData());
+                    }
                 } else {
-                    Log.w(TAG, "setSongList: Invalid or inaccessible file for song: " + song.getTitle() + ", data=" + song.getData());
+                    Log.w(TAG, "setSongList: Invalid song data: " + (song != null ? song.getTitle() : "null"));
                 }
-            } else {
-                Log.w(TAG, "setSongList: Invalid song data: " + (song != null ? song.getTitle() : "null"));
             }
         }
 
@@ -446,47 +734,103 @@ public class MusicService extends Service {
         }
 
         currentSongIndex = Math.max(0, Math.min(index, songList.size() - 1));
+        if (isShuffling) {
+            shuffleOrder.reset(songList.size(), currentSongIndex);
+        }
         Log.d(TAG, "setSongList: Set currentSongIndex=" + currentSongIndex + ", songList.size=" + songList.size());
         playSongAtIndex(currentSongIndex);
     }
 
-    public void setRepeating(boolean repeating) {
+    private void handleSetRepeating(boolean repeating) {
         Log.d(TAG, "setRepeating: " + repeating);
         isRepeating = repeating;
         if (mediaPlayer != null) {
             mediaPlayer.setLooping(isRepeating);
             Log.d(TAG, "setRepeating: mediaPlayer.setLooping(" + isRepeating + ")");
         }
+        prepareNextPlayer();
 
         sendSongChanged();
     }
 
-    public void setShuffling(boolean shuffling) {
+    private void handleSetShuffling(boolean shuffling) {
         Log.d(TAG, "setShuffling: " + shuffling);
         if (isShuffling == shuffling) return;
         isShuffling = shuffling;
-        if (!shuffling) restoreOriginalOrder();
+        if (shuffling) {
+            shuffleOrder.reset(songList.size(), currentSongIndex);
+        }
+        prepareNextPlayer();
+    }
+
+    public boolean isGaplessEnabled() {
+        return getSharedPreferences(PREFS, MODE_PRIVATE).getBoolean(PREF_GAPLESS, true);
+    }
+
+    private void handleSetGaplessEnabled(boolean enabled) {
+        Log.d(TAG, "setGaplessEnabled: " + enabled);
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putBoolean(PREF_GAPLESS, enabled).apply();
+        prepareNextPlayer();
+    }
+
+    public int getCrossfadeSeconds() {
+        return getSharedPreferences(PREFS, MODE_PRIVATE).getInt(PREF_CROSSFADE, 0);
+    }
+
+    public void setCrossfadeSeconds(int seconds) {
+        enqueue("SET_CROSSFADE", () -> handleSetCrossfadeSeconds(seconds));
+    }
+
+    private void handleSetCrossfadeSeconds(int seconds) {
+        int clamped = Math.max(0, Math.min(seconds, MAX_CROSSFADE_SECONDS));
+        Log.d(TAG, "setCrossfadeSeconds: " + clamped);
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putInt(PREF_CROSSFADE, clamped).apply();
+        prepareNextPlayer();
+    }
+
+    public String getPlaybackBackend() {
+        return getSharedPreferences(PREFS, MODE_PRIVATE).getString(PREF_BACKEND, MediaPlayerTrack.BACKEND);
+    }
+
+    public void setPlaybackBackend(String backend) {
+        enqueue("SET_BACKEND", () -> handleSetPlaybackBackend(backend));
+    }
+
+    private void handleSetPlaybackBackend(String backend) {
+        if (!MediaPlayerTrack.BACKEND.equals(backend) && !CodecTrackPlayer.BACKEND.equals(backend) &&
+                !CodecTrackPlayer.BACKEND_LOW_POWER.equals(backend)) {
+            Log.w(TAG, "setPlaybackBackend: unknownBackend=" + backend);
+            return;
+        }
+        Log.d(TAG, "setPlaybackBackend: " + backend + ", previous " + WakeupCounter.getInstance());
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putString(PREF_BACKEND, backend).apply();
+        releaseSparePlayer();
+        if (!MediaPlayerTrack.BACKEND.equals(backend)) {
+            CodecPool.getInstance().prewarm(PREWARM_MIME_TYPES);
+        }
+        WakeupCounter.getInstance().reset();
+        prepareNextPlayer();
     }
 
     private void savePlaybackPosition() {
         if (mediaPlayer != null && currentSongIndex >= 0 && currentSongIndex < songList.size()) {
             SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
             SharedPreferences.Editor editor = prefs.edit();
-            editor.putInt("last_playback_position", mediaPlayer.getCurrentPosition());
+            editor.putInt("last_playback_position", getPlayerPosition());
             editor.putString("last_song_path", songList.get(currentSongIndex).getData());
             editor.apply();
-            Log.d(TAG, "savePlaybackPosition: Saved position=" + mediaPlayer.getCurrentPosition() + ", song=" + songList.get(currentSongIndex).getTitle());
+            Log.d(TAG, "savePlaybackPosition: Saved position=" + getPlayerPosition() + ", song=" + songList.get(currentSongIndex).getTitle());
+            saveQueueSnapshot(true);
         }
     }
 
-    public void playPause() {
+    private void handlePlayPause() {
         Log.d(TAG, "playPause: called, isExplicitlyStopped=" + isExplicitlyStopped + ", mediaPlayer=" + (mediaPlayer != null ? "not null" : "null") + ", isPlaying=" + (mediaPlayer != null && mediaPlayer.isPlaying()));
 
 
         if (!songList.isEmpty() && currentSongIndex >= 0 && currentSongIndex < songList.size()) {
             Song song = songList.get(currentSongIndex);
-            File file = new File(song.getData());
-            if (!file.exists() || !file.canRead()) {
+            if (!FileValidityCache.getInstance().isValid(song.getData())) {
                 Log.e(TAG, "playPause: fileNotFoundOrInaccessible: " + song.getData());
                 sendSongChangedError("File not found: " + song.getTitle());
                 startForegroundNotification();
@@ -495,11 +839,11 @@ public class MusicService extends Service {
 
             if (mediaPlayer != null && mediaPlayer.isPlaying()) {
                 try {
+                    finishCrossfade();
                     mediaPlayer.pause();
                     savePlaybackPosition();
                     isExplicitlyStopped = true;
                     Log.d(TAG, "playPause: suspendedEstablished isExplicitlyStopped=true");
-                    stopNotificationTimer();
                 } catch (IllegalStateException e) {
                     Log.e(TAG, "playPause: IllegalStateException onPause", e);
                     sendSongChangedError("Playback error: Invalid player state");
@@ -509,22 +853,16 @@ public class MusicService extends Service {
                 int result = audioManager.requestAudioFocus(focusRequest);
                 if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
                     try {
-                        if (mediaPlayer == null || !song.getData().equals(currentSongPath)) {
+                        if (mediaPlayer == null || !isPlayerPrepared || !song.getData().equals(currentSongPath)) {
                             Log.d(TAG, "playPause: mediaPlayer null orTheSongHasChangedWeLaunchANewSong");
+                            isExplicitlyStopped = false;
                             playSongAtIndex(currentSongIndex);
-
-                            SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
-                            String lastSongPath = prefs.getString("last_song_path", null);
-                            if (lastSongPath != null && lastSongPath.equals(song.getData())) {
-                                int lastPosition = prefs.getInt("last_playback_position", 0);
-                                mediaPlayer.seekTo(lastPosition);
-                                Log.d(TAG, "playPause: restoredPlaybackPosition: " + lastPosition);
-                            }
                         } else {
                             mediaPlayer.start();
                             isExplicitlyStopped = false;
                             Log.d(TAG, "playPause: startedInstalled isExplicitlyStopped=false");
-                            startNotificationTimer();
+                            refreshNotification();
+                            scheduleCrossfade();
                         }
                     } catch (IllegalStateException e) {
                         Log.e(TAG, "playPause: failedToStartMediaPlayerReset", e);
@@ -538,11 +876,8 @@ public class MusicService extends Service {
             }
 
             startForegroundNotification();
-
-            new Thread(() -> {
-                sendSongChanged();
-                sendPlaybackState();
-            }).start();
+            sendSongChanged();
+            sendPlaybackState();
         } else {
             Log.e(TAG, "playPause: noSongsAvailable");
             sendSongChangedError("No songs available");
@@ -551,19 +886,20 @@ public class MusicService extends Service {
     }
     private void resetAndPlayCurrentSong() {
         Log.d(TAG, "resetAndPlayCurrentSong: Attempting to reset and play current song, isExplicitlyStopped=" + isExplicitlyStopped);
+        releaseNextPlayer();
         if (mediaPlayer != null) {
             try {
-                mediaPlayer.stop();
-                mediaPlayer.release();
+                mediaPlayer.reset();
             } catch (Exception e) {
-                Log.e(TAG, "resetAndPlayCurrentSong: errorStopRelease mediaPlayer", e);
+                Log.e(TAG, "resetAndPlayCurrentSong: errorReset mediaPlayer", e);
+                mediaPlayer.release();
+                mediaPlayer = null;
             }
-            mediaPlayer = null;
+            isPlayerPrepared = false;
         }
         if (!songList.isEmpty() && currentSongIndex >= 0 && currentSongIndex < songList.size()) {
             Song song = songList.get(currentSongIndex);
-            File file = new File(song.getData());
-            if (file.exists() && file.canRead()) {
+            if (FileValidityCache.getInstance().isValid(song.getData())) {
                 isExplicitlyStopped = false;
                 Log.d(TAG, "resetAndPlayCurrentSong: Resetting and playing song, set isExplicitlyStopped=false");
                 playSongAtIndex(currentSongIndex);
@@ -581,7 +917,7 @@ public class MusicService extends Service {
         }
     }
 
-    public void playNext() {
+    private void handleNext() {
         Log.d(TAG, "playNext: called");
         if (songList.isEmpty()) {
             Log.d(TAG, "playNext: songList is empty");
@@ -589,55 +925,77 @@ public class MusicService extends Service {
             return;
         }
         int prevIndex = currentSongIndex;
-        if (isShuffling) {
-            int next;
-            do {
-                next = new Random().nextInt(songList.size());
-            } while (songList.size() > 1 && next == currentSongIndex);
-            currentSongIndex = next;
-            Log.d(TAG, "playNext: shuffling, prev=" + prevIndex + ", next=" + currentSongIndex);
-        } else {
-            currentSongIndex = (currentSongIndex + 1) % songList.size();
-            Log.d(TAG, "playNext: not shuffling, prev=" + prevIndex + ", next=" + currentSongIndex);
-        }
+        currentSongIndex = stepIndex(currentSongIndex, true);
+        Log.d(TAG, "playNext: isShuffling=" + isShuffling + ", prev=" + prevIndex + ", next=" + currentSongIndex);
         playSongAtIndex(currentSongIndex);
     }
 
-    public void playPrevious() {
-        Log.d(TAG, "playPrevious: called");
+    // Moves pendingSkipIndex only; the target is prepared once no skip arrives for SKIP_COALESCE_MS.
+    private void handleSkip(boolean forward) {
         if (songList.isEmpty()) {
-            Log.d(TAG, "playPrevious: songList is empty");
+            Log.d(TAG, "handleSkip: songList is empty");
             sendSongChangedError("No songs available");
             return;
         }
-        int prevIndex = currentSongIndex;
-        if (songList.size() > 1) {
-            currentSongIndex = (currentSongIndex - 1 + songList.size()) % songList.size();
-            Log.d(TAG, "playPrevious: prev=" + prevIndex + ", new index=" + currentSongIndex);
+        int from = skipPending ? pendingSkipIndex : currentSongIndex;
+        if (!skipPending) {
+            skipPending = true;
+            skipRequestedAt = System.nanoTime();
         }
-        playSongAtIndex(currentSongIndex);
+        releaseNextPlayer();
+        finishCrossfade();
+        pendingSkipIndex = stepIndex(from, forward);
+        Log.d(TAG, "handleSkip: forward=" + forward + ", from=" + from + ", target=" + pendingSkipIndex);
+        engineHandler.removeCallbacks(pendingSkipRunnable);
+        engineHandler.postDelayed(pendingSkipRunnable, SKIP_COALESCE_MS);
     }
 
-    public void pause() {
+    private void cancelPendingSkip() {
+        engineHandler.removeCallbacks(pendingSkipRunnable);
+        skipPending = false;
+        pendingSkipIndex = -1;
+    }
+
+    private void playPendingSkip() {
+        if (!skipPending) {
+            return;
+        }
+        long requestedAt = skipRequestedAt;
+        Log.d(TAG, "playPendingSkip: preparingCoalescedTarget index=" + pendingSkipIndex);
+        playSongAtIndex(pendingSkipIndex);
+        if (skipStartTime != 0) {
+            skipStartTime = requestedAt;
+            firstAudioRequestedAt = requestedAt;
+        }
+        publishSnapshot();
+    }
+
+    private void handlePause() {
         Log.d(TAG, "pause: called");
         if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-            Log.d(TAG, "pause: pausing player");
+            Log.d(TAG, "pause: pausing player, backend=" + mediaPlayer.getBackend() + ", " + WakeupCounter.getInstance());
+            finishCrossfade();
             mediaPlayer.pause();
             savePlaybackPosition();
             isExplicitlyStopped = true;
-            stopNotificationTimer();
             sendSongChanged();
             startForegroundNotification();
         } else {
             Log.d(TAG, "pause: mediaPlayer is null or not playing");
-            stopNotificationTimer();
         }
     }
 
-    public void seekTo(int progress) {
+    // One seek in flight at a time; the last target is applied when it completes.
+    private void handleSeek(int progress) {
         Log.d(TAG, "seekTo: " + progress);
-        if (mediaPlayer != null) {
-            mediaPlayer.seekTo(progress);
+        if (mediaPlayer != null && isPlayerPrepared) {
+            if (seekInFlight) {
+                deferredSeek = progress;
+                Log.d(TAG, "seekTo: seekInFlight, deferred " + progress);
+                return;
+            }
+            seekInFlight = true;
+            seekCurrentPlayer(progress);
             Log.d(TAG, "seekTo: seeked to " + progress);
         } else {
             Log.d(TAG, "seekTo: mediaPlayer is null");
@@ -651,20 +1009,18 @@ public class MusicService extends Service {
             sendSongChangedError("Invalid index or empty song list");
             isExplicitlyStopped = true;
             Log.d(TAG, "[playSongAtIndex] Set isExplicitlyStopped=true due to invalid index or empty list");
-            stopNotificationTimer();
             return;
         }
 
+        cancelPendingSkip();
         currentSongIndex = index;
         Song song = songList.get(currentSongIndex);
 
-        File file = new File(song.getData());
-        if (!file.exists() || !file.canRead()) {
+        if (!FileValidityCache.getInstance().isValid(song.getData())) {
             Log.e(TAG, "[playSongAtIndex] File not found or inaccessible: " + song.getData());
             sendSongChangedError("File not found or inaccessible: " + song.getTitle());
             isExplicitlyStopped = true;
             Log.d(TAG, "[playSongAtIndex] Set isExplicitlyStopped=true due to inaccessible file");
-            stopNotificationTimer();
             return;
         }
 
@@ -675,16 +1031,32 @@ public class MusicService extends Service {
             return;
         }
 
+        skipStartTime = System.nanoTime();
+        firstAudioRequestedAt = skipStartTime;
         try {
+            releaseNextPlayer();
+            finishCrossfade();
+            if (mediaPlayer != null && !mediaPlayer.getBackend().equals(getPlaybackBackend())) {
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
             if (mediaPlayer != null) {
                 try {
-                    mediaPlayer.stop();
-                    mediaPlayer.release();
+                    mediaPlayer.reset();
                 } catch (Exception e) {
-                    Log.e(TAG, "[playSongAtIndex] errorStopRelease mediaPlayer", e);
+                    Log.e(TAG, "[playSongAtIndex] errorReset mediaPlayer", e);
+                    mediaPlayer.release();
+                    mediaPlayer = null;
                 }
-                mediaPlayer = null;
+                isPlayerPrepared = false;
+                seekInFlight = false;
+                deferredSeek = -1;
             }
+            resumePosition = 0;
+            seekIndex = null;
+            seekIndexLookupPath = null;
+            seekAfterIndexMs = -1;
+            seekOffsetMs = 0;
 
             int result = audioManager.requestAudioFocus(focusRequest);
             if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
@@ -692,67 +1064,17 @@ public class MusicService extends Service {
                 sendSongChangedError("Cannot play: Audio focus denied");
                 isExplicitlyStopped = true;
                 Log.d(TAG, "[playSongAtIndex] Set isExplicitlyStopped=true due to audio focus failure");
-                stopNotificationTimer();
                 return;
             }
 
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setAudioAttributes(new AudioAttributes.Builder()
-                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                    .build());
+            if (mediaPlayer == null) {
+                mediaPlayer = obtainPlayer();
+            }
+            currentSong = song;
             mediaPlayer.setDataSource(song.getData());
             currentSongPath = song.getData();
-
-            mediaPlayer.setOnPreparedListener(mp -> {
-                try {
-                    mp.start();
-
-                    SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
-                    String lastSongPath = prefs.getString("last_song_path", null);
-                    if (lastSongPath != null && lastSongPath.equals(song.getData()) && !isExplicitlyStopped) {
-                        int lastPosition = prefs.getInt("last_playback_position", 0);
-                        mp.seekTo(lastPosition);
-                        Log.d(TAG, "[playSongAtIndex][onPrepared] restoredPlaybackPosition: " + lastPosition + " forTheSong: " + song.getTitle());
-                    } else {
-                        mp.seekTo(0);
-                        Log.d(TAG, "[playSongAtIndex][onPrepared] newSongResetPositionTo0For: " + song.getTitle());
-
-                        prefs.edit().putInt("last_playback_position", 0).apply();
-                    }
-                    isExplicitlyStopped = false;
-                    Log.d(TAG, "[playSongAtIndex][onPrepared] Started, set isExplicitlyStopped=false");
-                    sendSongChanged();
-                    startForegroundNotification();
-                    startNotificationTimer();
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "[playSongAtIndex][onPrepared] IllegalStateException", e);
-                    sendSongChangedError("Playback error: " + song.getTitle());
-                    isExplicitlyStopped = true;
-                    Log.d(TAG, "[playSongAtIndex][onPrepared] Set isExplicitlyStopped=true due to IllegalStateException");
-                    stopNotificationTimer();
-                }
-            });
-
-            mediaPlayer.setOnErrorListener((mp, what, extra) -> {
-                Log.e(TAG, "[playSongAtIndex][onError] what=" + what + ", extra=" + extra + ", file=" + song.getData());
-                sendSongChangedError("Playback error: " + song.getTitle() + " (code: " + what + ")");
-                isExplicitlyStopped = true;
-                Log.d(TAG, "[playSongAtIndex][onError] Set isExplicitlyStopped=true due to error");
-                stopNotificationTimer();
-                return true;
-            });
-
-            mediaPlayer.setOnCompletionListener(mp -> {
-                Log.d(TAG, "[playSongAtIndex][onCompletion] Song completed, isRepeating=" + isRepeating);
-                if (!isRepeating) {
-                    isExplicitlyStopped = false;
-                    Log.d(TAG, "[playSongAtIndex][onCompletion] Set isExplicitlyStopped=false before playNext");
-                    playNext();
-                }
-            });
-
             mediaPlayer.setLooping(isRepeating);
+            loadSeekIndex(currentSongPath);
             try {
                 mediaPlayer.prepareAsync();
                 Log.d(TAG, "[playSongAtIndex] Started async prepare for " + song.getTitle());
@@ -761,102 +1083,498 @@ public class MusicService extends Service {
                 sendSongChangedError("Failed to prepare: " + song.getTitle());
                 isExplicitlyStopped = true;
                 Log.d(TAG, "[playSongAtIndex] Set isExplicitlyStopped=true due to prepare failure");
-                stopNotificationTimer();
             }
         } catch (Exception e) {
             Log.e(TAG, "[playSongAtIndex] ERROR initializing MediaPlayer for " + song.getTitle(), e);
+            FileValidityCache.getInstance().invalidate(song.getData());
             sendSongChangedError("Error opening file: " + song.getTitle());
             isExplicitlyStopped = true;
             Log.d(TAG, "[playSongAtIndex] Set isExplicitlyStopped=true due to MediaPlayer initialization error");
-            stopNotificationTimer();
         }
     }
 
-    private PendingIntent servicePendingIntent(String action, int requestCode) {
-        Intent intent = new Intent(this, MusicService.class);
-        intent.setAction(action);
-        intent.setPackage(getPackageName());
-        Log.d(TAG, "servicePendingIntent: Creating PendingIntent for action=" + action + ", requestCode=" + requestCode);
+    // Listeners are bound once and dispatch on the player's current role.
+    private TrackPlayer createPlayer() {
+        String backend = getPlaybackBackend();
+        TrackPlayer player;
+        if (CodecTrackPlayer.BACKEND.equals(backend)) {
+            player = new CodecTrackPlayer(false);
+        } else if (CodecTrackPlayer.BACKEND_LOW_POWER.equals(backend)) {
+            player = new CodecTrackPlayer(true);
+        } else {
+            player = new MediaPlayerTrack();
+        }
+        player.setListener(new TrackPlayer.Listener() {
+            @Override
+            public void onPrepared(TrackPlayer mp) {
+                onPlayerPrepared(mp);
+                publishSnapshot();
+            }
 
-        PendingIntent pendingIntent = PendingIntent.getForegroundService(
-                this,
-                requestCode,
-                intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE
-        );
-        Log.d(TAG, "servicePendingIntent: PendingIntent created for action=" + action);
-        return pendingIntent;
+            @Override
+            public boolean onError(TrackPlayer mp, int what, int extra) {
+                boolean handled = onPlayerError(mp, what, extra);
+                publishSnapshot();
+                return handled;
+            }
+
+            @Override
+            public void onCompletion(TrackPlayer mp) {
+                onPlayerCompleted(mp);
+                publishSnapshot();
+            }
+
+            @Override
+            public void onSeekComplete(TrackPlayer mp) {
+                onPlayerSeekCompleted(mp);
+                publishSnapshot();
+            }
+
+            @Override
+            public void onAudioStarted(TrackPlayer mp) {
+                recordTimeToFirstAudio(mp);
+            }
+        });
+        Log.d(TAG, "createPlayer: newPlayerCreated, backend=" + backend);
+        return player;
     }
 
-    private Notification buildNotification() {
-        if (songList.isEmpty() || currentSongIndex < 0 || currentSongIndex >= songList.size()) {
-            Log.e(TAG, "buildNotification: Empty songList or invalid index!");
-            return null;
+    private TrackPlayer obtainPlayer() {
+        if (sparePlayer != null) {
+            TrackPlayer player = sparePlayer;
+            sparePlayer = null;
+            return player;
+        }
+        return createPlayer();
+    }
+
+    private void recyclePlayer(TrackPlayer player) {
+        if (!player.getBackend().equals(getPlaybackBackend())) {
+            player.release();
+            return;
+        }
+        try {
+            player.reset();
+            player.setVolume(1.0f, 1.0f);
+        } catch (Exception e) {
+            Log.e(TAG, "recyclePlayer: errorResettingPlayer", e);
+            player.release();
+            return;
+        }
+        if (sparePlayer == null) {
+            sparePlayer = player;
+        } else {
+            player.release();
+        }
+    }
+
+    private void releaseSparePlayer() {
+        if (sparePlayer != null) {
+            sparePlayer.release();
+            sparePlayer = null;
+        }
+    }
+
+    private void onPlayerPrepared(TrackPlayer mp) {
+        if (mp == nextPlayer) {
+            onNextPlayerPrepared(mp);
+            return;
+        }
+        if (mp != mediaPlayer || currentSong == null) {
+            return;
+        }
+        Song song = currentSong;
+        isPlayerPrepared = true;
+        try {
+            mp.start();
+
+            SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
+            String lastSongPath = prefs.getString("last_song_path", null);
+            if (lastSongPath != null && lastSongPath.equals(song.getData()) && !isExplicitlyStopped) {
+                int lastPosition = prefs.getInt("last_playback_position", 0);
+                seekCurrentPlayer(lastPosition);
+                Log.d(TAG, "[playSongAtIndex][onPrepared] restoredPlaybackPosition: " + lastPosition + " forTheSong: " + song.getTitle());
+            } else {
+                seekCurrentPlayer(0);
+                Log.d(TAG, "[playSongAtIndex][onPrepared] newSongResetPositionTo0For: " + song.getTitle());
+
+                prefs.edit().putInt("last_playback_position", 0).apply();
+            }
+            isExplicitlyStopped = false;
+            Log.d(TAG, "[playSongAtIndex][onPrepared] Started, set isExplicitlyStopped=false");
+            recordSkipLatency(song);
+            sendSongChanged();
+            startForegroundNotification();
+            prepareNextPlayer();
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "[playSongAtIndex][onPrepared] IllegalStateException", e);
+            sendSongChangedError("Playback error: " + song.getTitle());
+            isExplicitlyStopped = true;
+            Log.d(TAG, "[playSongAtIndex][onPrepared] Set isExplicitlyStopped=true due to IllegalStateException");
+        }
+    }
+
+    private boolean onPlayerError(TrackPlayer mp, int what, int extra) {
+        if (mp == nextPlayer) {
+            Log.e(TAG, "prepareNextPlayer: onError what=" + what + ", extra=" + extra + ", index=" + nextPlayerIndex);
+            releaseNextPlayer();
+            return true;
+        }
+        if (mp != mediaPlayer) {
+            return true;
+        }
+        isPlayerPrepared = false;
+        String title = currentSong != null ? currentSong.getTitle() : "";
+        Log.e(TAG, "[playSongAtIndex][onError] what=" + what + ", extra=" + extra + ", file=" + currentSongPath);
+        sendSongChangedError("Playback error: " + title + " (code: " + what + ")");
+        isExplicitlyStopped = true;
+        Log.d(TAG, "[playSongAtIndex][onError] Set isExplicitlyStopped=true due to error");
+        return true;
+    }
+
+    private void onPlayerCompleted(TrackPlayer mp) {
+        Log.d(TAG, "[playSongAtIndex][onCompletion] Song completed, isRepeating=" + isRepeating + ", nextPlayerChained=" + nextPlayerChained);
+        if (isRepeating || mp != mediaPlayer) {
+            return;
+        }
+        isExplicitlyStopped = false;
+        if (skipPending) {
+            playPendingSkip();
+            return;
+        }
+        if ((nextPlayerChained || nextPlayerPrepared) && nextPlayer != null && nextPlayerIndex < songList.size()) {
+            promoteNextPlayer();
+        } else {
+            Log.d(TAG, "[playSongAtIndex][onCompletion] Set isExplicitlyStopped=false before playNext");
+            handleNext();
+        }
+    }
+
+    private void onPlayerSeekCompleted(TrackPlayer mp) {
+        if (mp != mediaPlayer) {
+            return;
+        }
+        seekInFlight = false;
+        if (deferredSeek >= 0) {
+            int target = deferredSeek;
+            deferredSeek = -1;
+            handleSeek(target);
+        } else {
+            scheduleCrossfade();
+        }
+    }
+
+    private void recordSkipLatency(Song song) {
+        if (skipStartTime == 0) {
+            return;
         }
+        long latencyMs = (System.nanoTime() - skipStartTime) / 1_000_000;
+        skipStartTime = 0;
+        lastSkipLatencyMs = latencyMs;
+        averageSkipLatencyMs = averageSkipLatencyMs < 0 ? latencyMs : (averageSkipLatencyMs * 7 + latencyMs) / 8;
+        Log.d(TAG, "recordSkipLatency: " + song.getTitle() + " started " + latencyMs + "ms after the request, average=" +
+                averageSkipLatencyMs + "ms");
+    }
+
+    private void recordTimeToFirstAudio(TrackPlayer player) {
+        if (player != mediaPlayer || firstAudioRequestedAt == 0) {
+            return;
+        }
+        long latencyMs = (System.nanoTime() - firstAudioRequestedAt) / 1_000_000;
+        firstAudioRequestedAt = 0;
+        lastTimeToFirstAudioMs = latencyMs;
+        Long average = averageTimeToFirstAudioMs.get(player.getBackend());
+        long updated = average == null ? latencyMs : (average * 7 + latencyMs) / 8;
+        averageTimeToFirstAudioMs.put(player.getBackend(), updated);
+        Log.d(TAG, "recordTimeToFirstAudio: backend=" + player.getBackend() + ", ttfa=" + latencyMs +
+                "ms, average=" + updated + "ms");
+    }
+
+    public Map<String, Long> getWakeupsPerHour() {
+        return WakeupCounter.getInstance().getWakeupsPerHour();
+    }
+
+    public long getLastTimeToFirstAudioMs() {
+        return lastTimeToFirstAudioMs;
+    }
+
+    public long getAverageTimeToFirstAudioMs(String backend) {
+        Long average = averageTimeToFirstAudioMs.get(backend);
+        return average != null ? average : -1;
+    }
+
+    public long getLastSkipLatencyMs() {
+        return lastSkipLatencyMs;
+    }
+
+    public long getAverageSkipLatencyMs() {
+        return averageSkipLatencyMs;
+    }
+
+    // Stable in shuffle mode, so the pre-loaded player and playNext agree.
+    private int peekNextIndex() {
+        if (!isShuffling) {
+            return (currentSongIndex + 1) % songList.size();
+        }
+        syncShuffleOrder(currentSongIndex);
+        return shuffleOrder.peekNext();
+    }
+
+    private int stepIndex(int from, boolean forward) {
+        int size = songList.size();
+        if (!isShuffling) {
+            return forward ? (from + 1) % size : (from - 1 + size) % size;
+        }
+        syncShuffleOrder(from);
+        int index = forward ? shuffleOrder.next() : shuffleOrder.previous();
+        return index >= 0 ? index : from;
+    }
+
+    private void syncShuffleOrder(int index) {
+        if (shuffleOrder.size() != songList.size() || shuffleOrder.current() != index) {
+            shuffleOrder.reset(songList.size(), index);
+        }
+    }
+
+    // Drops any earlier pre-load; call again when the track, queue, repeat or shuffle changes.
+    private void prepareNextPlayer() {
+        releaseNextPlayer();
+        if ((!isGaplessEnabled() && getCrossfadeSeconds() == 0) || skipPending || fadingPlayer != null || isRepeating ||
+                mediaPlayer == null || !isPlayerPrepared || songList.size() < 2) {
+            return;
+        }
+        int index = peekNextIndex();
+        Song song = songList.get(index);
+        if (!FileValidityCache.getInstance().isValid(song.getData())) {
+            Log.w(TAG, "prepareNextPlayer: nextFileNotAccessible: " + song.getData());
+            return;
+        }
+        nextPlayerPrepareStart = System.nanoTime();
+        try {
+            nextPlayer = obtainPlayer();
+            nextPlayerIndex = index;
+            nextPlayer.setDataSource(song.getData());
+            nextPlayer.prepareAsync();
+        } catch (Exception e) {
+            Log.e(TAG, "prepareNextPlayer: Failed to open " + song.getData(), e);
+            FileValidityCache.getInstance().invalidate(song.getData());
+            releaseNextPlayer();
+        }
+    }
+
+    private void onNextPlayerPrepared(TrackPlayer mp) {
+        if (mediaPlayer == null || !isPlayerPrepared) {
+            releaseNextPlayer();
+            return;
+        }
+        nextPlayerPrepared = true;
+        if (getCrossfadeSeconds() > 0) {
+            Log.d(TAG, "prepareNextPlayer: readyForCrossfade index=" + nextPlayerIndex +
+                    ", prepareTime=" + (System.nanoTime() - nextPlayerPrepareStart) / 1_000_000 + "ms");
+            scheduleCrossfade();
+            return;
+        }
+        try {
+            if (!mediaPlayer.setNextPlayer(mp)) {
+                Log.d(TAG, "prepareNextPlayer: startsOnCompletion index=" + nextPlayerIndex +
+                        ", prepareTime=" + (System.nanoTime() - nextPlayerPrepareStart) / 1_000_000 + "ms");
+                return;
+            }
+            nextPlayerChained = true;
+            Log.d(TAG, "prepareNextPlayer: chained index=" + nextPlayerIndex +
+                    ", prepareTime=" + (System.nanoTime() - nextPlayerPrepareStart) / 1_000_000 + "ms");
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "prepareNextPlayer: setNextMediaPlayerFailed", e);
+            releaseNextPlayer();
+        }
+    }
+
+    private void releaseNextPlayer() {
+        engineHandler.removeCallbacks(crossfadeCheckRunnable);
+        if (nextPlayer == null) {
+            return;
+        }
+        if (nextPlayerChained && mediaPlayer != null) {
+            try {
+                mediaPlayer.setNextPlayer(null);
+            } catch (Exception e) {
+                Log.e(TAG, "releaseNextPlayer: errorUnchainingNextPlayer", e);
+            }
+        }
+        TrackPlayer player = nextPlayer;
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        nextPlayerChained = false;
+        nextPlayerPrepared = false;
+        recyclePlayer(player);
+    }
+
+    private void promoteNextPlayer() {
+        TrackPlayer finished = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        currentSongIndex = nextPlayerIndex;
+        nextPlayer = null;
+        nextPlayerIndex = -1;
+        nextPlayerChained = false;
+        nextPlayerPrepared = false;
+        if (isShuffling) {
+            shuffleOrder.next();
+        }
+        seekInFlight = false;
+        deferredSeek = -1;
+        if (finished != fadingPlayer) {
+            recyclePlayer(finished);
+        }
+
         Song song = songList.get(currentSongIndex);
-        Log.d(TAG, "buildNotification: Creating notification for song: " + song.getTitle());
+        currentSong = song;
+        currentSongPath = song.getData();
+        isPlayerPrepared = true;
+        seekOffsetMs = 0;
+        loadSeekIndex(currentSongPath);
+        mediaPlayer.setLooping(isRepeating);
+        try {
+            if (!mediaPlayer.isPlaying()) {
+                mediaPlayer.start();
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "promoteNextPlayer: IllegalStateException", e);
+            resetAndPlayCurrentSong();
+            return;
+        }
+        getSharedPreferences(PREFS, MODE_PRIVATE).edit().putInt("last_playback_position", 0).apply();
+        Log.d(TAG, "promoteNextPlayer: gaplessHandoffTo " + song.getTitle() + ", index=" + currentSongIndex);
+        sendSongChanged();
+        startForegroundNotification();
+        prepareNextPlayer();
+    }
 
-        PendingIntent prevIntent = servicePendingIntent("PREVIOUS", 1);
-        PendingIntent playPauseIntent = servicePendingIntent("PLAY_PAUSE", 2);
-        PendingIntent nextIntent = servicePendingIntent("NEXT", 3);
-        PendingIntent closeIntent = servicePendingIntent("STOP", 4);
-        PendingIntent likeIntent = servicePendingIntent("TOGGLE_FAVORITE", 5);
+    // VBR MP3s without a TOC seek through the seek index; seekOffsetMs holds the difference.
+    private void seekCurrentPlayer(int targetMs) {
+        if (seekIndexLookupPath != null && targetMs > 0) {
+            seekAfterIndexMs = targetMs;
+            Log.d(TAG, "seekCurrentPlayer: waitingForSeekIndex, target=" + targetMs);
+            return;
+        }
+        int playerTime = seekIndex != null ? seekIndex.toPlayerTime(targetMs) : targetMs;
+        seekOffsetMs = targetMs - playerTime;
+        mediaPlayer.seekTo(playerTime);
+    }
 
-        boolean isFavorite = isSongFavorite(song);
-        int likeIcon = isFavorite ? R.drawable.ic_heart_filled : R.drawable.ic_heart_outline;
-        Log.d(TAG, "buildNotification: isFavorite=" + isFavorite + ", likeIcon=" + likeIcon);
+    private void loadSeekIndex(String path) {
+        seekIndex = null;
+        seekIndexLookupPath = null;
+        seekAfterIndexMs = -1;
+        if (mediaPlayer == null || !MediaPlayerTrack.BACKEND.equals(mediaPlayer.getBackend())) {
+            return;
+        }
+        seekIndexLookupPath = path;
+        SeekIndexCache.getInstance().load(path, index -> enqueue("SEEK_INDEX_READY", () -> onSeekIndexLoaded(path, index)));
+    }
 
-        int playPauseIcon = isPlaying() ? R.drawable.ic_pause : R.drawable.ic_play;
+    private void onSeekIndexLoaded(String path, Mp3SeekIndex index) {
+        if (!path.equals(currentSongPath) || mediaPlayer == null ||
+                !MediaPlayerTrack.BACKEND.equals(mediaPlayer.getBackend())) {
+            return;
+        }
+        if (index != null && seekIndex == null) {
+            seekIndex = index;
+        }
+        if (path.equals(seekIndexLookupPath)) {
+            seekIndexLookupPath = null;
+            int target = seekAfterIndexMs;
+            seekAfterIndexMs = -1;
+            if (target >= 0 && isPlayerPrepared) {
+                seekCurrentPlayer(target);
+            }
+        }
+    }
 
-        Bitmap albumArt = getAlbumArt(song.getData());
+    private void scheduleCrossfade() {
+        engineHandler.removeCallbacks(crossfadeCheckRunnable);
+        int fadeMs = getCrossfadeSeconds() * 1000;
+        if (fadeMs == 0 || fadingPlayer != null || nextPlayer == null || !nextPlayerPrepared || !isPlayerPlaying()) {
+            return;
+        }
+        int duration = getPlayerDuration();
+        if (duration <= 0) {
+            return;
+        }
+        fadeMs = Math.min(fadeMs, duration / 2);
+        int remaining = duration - getPlayerPosition();
+        if (remaining > fadeMs) {
+            engineHandler.postDelayed(crossfadeCheckRunnable, remaining - fadeMs);
+        } else {
+            startCrossfade(Math.max(remaining, (int) CROSSFADE_STEP_MS));
+        }
+    }
 
-        int duration = getDuration();
-        int position = getCurrentPosition();
-        boolean playing = isPlaying();
+    private void startCrossfade(int fadeMs) {
+        Log.d(TAG, "startCrossfade: fadeMs=" + fadeMs + ", index=" + nextPlayerIndex);
+        fadingPlayer = mediaPlayer;
+        crossfadeMs = fadeMs;
+        crossfadeStart = SystemClock.uptimeMillis();
+        try {
+            nextPlayer.setVolume(0f, 0f);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "startCrossfade: IllegalStateException", e);
+        }
+        promoteNextPlayer();
+        if (fadingPlayer != null) {
+            stepCrossfade();
+        }
+    }
 
-        mediaSessionCompat.setMetadata(new MediaMetadataCompat.Builder()
-                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, song.getTitle())
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, song.getArtist())
-                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
-                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt)
-                .build());
+    // Equal-power ramps: cos out, sin in.
+    private void stepCrossfade() {
+        if (fadingPlayer == null || mediaPlayer == null) {
+            return;
+        }
+        float progress = Math.min(1f, (SystemClock.uptimeMillis() - crossfadeStart) / (float) crossfadeMs);
+        double angle = progress * Math.PI / 2;
+        float outGain = (float) Math.cos(angle);
+        float inGain = (float) Math.sin(angle);
+        try {
+            fadingPlayer.setVolume(outGain, outGain);
+            mediaPlayer.setVolume(inGain, inGain);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "stepCrossfade: IllegalStateException", e);
+            progress = 1f;
+        }
+        if (progress < 1f) {
+            engineHandler.postDelayed(crossfadeStepRunnable, CROSSFADE_STEP_MS);
+        } else {
+            finishCrossfade();
+            prepareNextPlayer();
+        }
+    }
 
-        mediaSessionCompat.setPlaybackState(new PlaybackStateCompat.Builder()
-                .setState(playing ? PlaybackStateCompat.STATE_PLAYING : PlaybackStateCompat.STATE_PAUSED,
-                        position, playing ? 1.0f : 0f)
-                .setActions(
-                        PlaybackStateCompat.ACTION_PLAY |
-                                PlaybackStateCompat.ACTION_PAUSE |
-                                PlaybackStateCompat.ACTION_PLAY_PAUSE |
-                                PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                                PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                                PlaybackStateCompat.ACTION_SEEK_TO
-                ).build());
+    private void finishCrossfade() {
+        if (fadingPlayer == null) {
+            return;
+        }
+        engineHandler.removeCallbacks(crossfadeStepRunnable);
+        TrackPlayer outgoing = fadingPlayer;
+        fadingPlayer = null;
+        recyclePlayer(outgoing);
+        if (mediaPlayer != null) {
+            try {
+                mediaPlayer.setVolume(1.0f, 1.0f);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "finishCrossfade: IllegalStateException", e);
+            }
+        }
+        Log.d(TAG, "finishCrossfade: outgoingPlayerReleased, elapsed=" + (SystemClock.uptimeMillis() - crossfadeStart) + "ms");
+    }
 
-        Intent notificationIntent = createNotificationIntent(song, currentSongIndex, songList);
-        PendingIntent contentIntent = PendingIntent.getActivity(
-                this, 0, notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
-                .setContentTitle(song.getTitle())
-                .setContentText(song.getArtist())
-                .setSmallIcon(R.drawable.ic_music_note)
-                .setLargeIcon(albumArt)
-                .setContentIntent(contentIntent)
-                .setOngoing(playing)
-                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-                .addAction(likeIcon, "Like", likeIntent)
-                .addAction(R.drawable.ic_previous, "Prev", prevIntent)
-                .addAction(playPauseIcon, playing ? "Pause" : "Play", playPauseIntent)
-                .addAction(R.drawable.ic_next, "Next", nextIntent)
-                .addAction(R.drawable.ic_close, "Close", closeIntent)
-                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
-                        .setShowActionsInCompactView(1, 2, 3)
-                        .setMediaSession(mediaSessionCompat.getSessionToken()));
-
-        Notification notification = builder.build();
-        Log.d(TAG, "buildNotification: Notification created for song: " + song.getTitle());
-        return notification;
+    private Notification buildNotification() {
+        if (songList.isEmpty() || currentSongIndex < 0 || currentSongIndex >= songList.size()) {
+            Log.e(TAG, "buildNotification: Empty songList or invalid index!");
+            return null;
+        }
+        Song song = songList.get(currentSongIndex);
+        return notificationRenderer.render(song, currentSongIndex, isPlayerPlaying(), isSongFavorite(song),
+                getPlayerDuration());
     }
 
     private void startForegroundNotification() {
@@ -875,32 +1593,16 @@ public class MusicService extends Service {
             stopForeground(true);
         }
     }
-    private Bitmap getAlbumArt(String path) {
-        Log.d(TAG, "getAlbumArt: path=" + path);
-        if (path == null) return BitmapFactory.decodeResource(getResources(), R.drawable.player);
-        try (MediaMetadataRetriever mmr = new MediaMetadataRetriever()) {
-            mmr.setDataSource(path);
-            byte[] artBytes = mmr.getEmbeddedPicture();
-            if (artBytes != null) {
-                Log.d(TAG, "getAlbumArt: loaded embedded album art");
-                return BitmapFactory.decodeByteArray(artBytes, 0, artBytes.length);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "getAlbumArt: error", e);
-        }
-        Log.d(TAG, "getAlbumArt: using default album art");
-        return BitmapFactory.decodeResource(getResources(), R.drawable.player);
-    }
-
     private boolean isSongFavorite(Song song) {
-        SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
-        Set<String> favorites = prefs.getStringSet(PREF_FAVORITES, new HashSet<>());
-        boolean isFavorite = favorites.contains(String.valueOf(song.getId()));
-        Log.d(TAG, "isSongFavorite: Song " + song.getTitle() + ", songId=" + song.getId() + ", isFavorite=" + isFavorite);
-        return isFavorite;
+        if (favoriteIds == null) {
+            SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
+            favoriteIds = new HashSet<>(prefs.getStringSet(PREF_FAVORITES, new HashSet<>()));
+            Log.d(TAG, "isSongFavorite: loaded " + favoriteIds.size() + " favorites");
+        }
+        return favoriteIds.contains(String.valueOf(song.getId()));
     }
 
-    public void toggleFavorite() {
+    private void handleToggleFavorite() {
         if (songList.isEmpty() || currentSongIndex < 0 || currentSongIndex >= songList.size()) {
             Log.e(TAG, "toggleFavorite: Empty list or invalid index");
             return;
@@ -919,6 +1621,7 @@ public class MusicService extends Service {
             Log.d(TAG, "toggleFavorite: Song " + song.getTitle() + " added to favorites");
         }
         prefs.edit().putStringSet(PREF_FAVORITES, favorites).apply();
+        favoriteIds = favorites;
 
         if (!isUpdatingFromBroadcast) {
             Intent intent = new Intent("com.example.promusic.ACTION_FAVORITES_CHANGED");
@@ -964,19 +1667,29 @@ public class MusicService extends Service {
     @Override
     public void onDestroy() {
         Log.e(TAG, "onDestroy: Service destroyed!");
-        if (mediaPlayer != null) {
-            mediaPlayer.stop();
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
-        if (audioManager != null && focusRequest != null) {
-            audioManager.abandonAudioFocusRequest(focusRequest);
-        }
+        engineHandler.removeCallbacksAndMessages(null);
+        Log.d(TAG, "onDestroy: backend=" + getPlaybackBackend() + ", " + WakeupCounter.getInstance());
+        engineHandler.post(() -> {
+            saveQueueSnapshot(true);
+            releaseNextPlayer();
+            finishCrossfade();
+            releaseSparePlayer();
+            if (mediaPlayer != null) {
+                mediaPlayer.stop();
+                mediaPlayer.release();
+                mediaPlayer = null;
+            }
+            if (audioManager != null && focusRequest != null) {
+                audioManager.abandonAudioFocusRequest(focusRequest);
+            }
+            if (mediaSessionCompat != null) {
+                mediaSessionCompat.release();
+            }
+            CodecPool.getInstance().clear();
+        });
+        engineThread.quitSafely();
+        browseExecutor.shutdownNow();
         stopForeground(true);
-        if (mediaSessionCompat != null) {
-            mediaSessionCompat.release();
-        }
-        stopNotificationTimer();
         try {
             unregisterReceiver(favoritesChangedReceiver);
         } catch (IllegalArgumentException e) {
@@ -985,28 +1698,25 @@ public class MusicService extends Service {
         super.onDestroy();
     }
 
-    private void restoreOriginalOrder() {
-        Log.d(TAG, "restoreOriginalOrder: called");
-        if (!originalSongList.isEmpty() && !songList.equals(originalSongList)) {
-            songList.clear();
-            songList.addAll(originalSongList);
-            Log.d(TAG, "restoreOriginalOrder: restored, songList.size=" + songList.size());
-            playSongAtIndex(currentSongIndex);
-        } else {
-            Log.d(TAG, "restoreOriginalOrder: order already correct, doing nothing");
-        }
-    }
-
     private void sendSongChangedError(String errorMsg) {
         Log.e(TAG, "[sendSongChangedError] " + errorMsg);
-        Intent intent = new Intent("com.example.promusic.SONG_CHANGED");
-        intent.setPackage(getApplicationContext().getPackageName());
-        intent.putExtra("current_index", currentSongIndex);
+        Intent intent = createQueueEvent("com.example.promusic.SONG_CHANGED");
         intent.putExtra("error", errorMsg);
-        intent.putParcelableArrayListExtra("song_list", new ArrayList<>(songList));
         sendBroadcast(intent);
     }
 
+    // Carries the queue version, never the queue; receivers read it from PlaybackStore.
+    private Intent createQueueEvent(String action) {
+        publishSnapshot();
+        Intent intent = new Intent(action);
+        intent.setPackage(getApplicationContext().getPackageName());
+        intent.putExtra("queue_version", snapshot.getQueueVersion());
+        intent.putExtra("current_index", currentSongIndex);
+        boolean validIndex = currentSongIndex >= 0 && currentSongIndex < songList.size();
+        intent.putExtra("song_id", validIndex ? songList.getId(currentSongIndex) : -1L);
+        return intent;
+    }
+
     private void sendSongChanged() {
         Log.d(TAG, "sendSongChanged: current_index=" + currentSongIndex + ", list.size=" + songList.size());
         if (songList.isEmpty() || currentSongIndex < 0 || currentSongIndex >= songList.size()) {
@@ -1019,21 +1729,20 @@ public class MusicService extends Service {
         if (song.getData() == null || song.getData().isEmpty()) {
             Log.w(TAG, "sendSongChanged: Song data is null or empty for title=" + song.getTitle());
         }
-        if (lastSentIndex != currentSongIndex || !lastSentIsPlaying.equals(isPlaying) || !lastSentSongList.equals(songList) || lastSentIsRepeating != isRepeating) {
+        if (lastSentIndex != currentSongIndex || !lastSentIsPlaying.equals(isPlaying) ||
+                lastSentQueueVersion != songList.getVersion() || lastSentIsRepeating != isRepeating) {
             Log.d(TAG, "sendSongChanged: Current index=" + currentSongIndex + ", songList.size=" + songList.size() +
                     ", isPlaying=" + isPlaying + ", isRepeating=" + isRepeating + ", Song=" + song.getTitle() + " (" + song.getData() + ")");
-            Intent intent = new Intent("com.example.promusic.SONG_CHANGED");
-            intent.setPackage(getApplicationContext().getPackageName());
-            intent.putExtra("current_index", currentSongIndex);
+            Intent intent = createQueueEvent("com.example.promusic.SONG_CHANGED");
             intent.putExtra("is_playing", isPlaying);
             intent.putExtra("is_repeating", isRepeating);
-            intent.putParcelableArrayListExtra("song_list", new ArrayList<>(songList));
+            intent.putExtra("is_shuffling", isShuffling);
             sendBroadcast(intent);
             Log.d(TAG, "sendSongChanged: Broadcast sent!");
             lastSentIndex = currentSongIndex;
             lastSentIsPlaying = isPlaying;
             lastSentIsRepeating = isRepeating;
-            lastSentSongList = new ArrayList<>(songList);
+            lastSentQueueVersion = songList.getVersion();
         } else {
             Log.d(TAG, "sendSongChanged: Skipping broadcast: data and state unchanged");
         }
@@ -1042,17 +1751,49 @@ public class MusicService extends Service {
     private int lastSentIndex = -1;
     private Boolean lastSentIsPlaying = false;
     private boolean lastSentIsRepeating = false;
-    private ArrayList<Song> lastSentSongList = new ArrayList<>();
+    private long lastSentQueueVersion = -1;
 
     public boolean isPlaying() {
-        boolean playing = mediaPlayer != null && mediaPlayer.isPlaying();
+        boolean playing = snapshot.isPlaying();
         Log.d(TAG, "isPlaying: " + playing);
         return playing;
     }
 
     public int getDuration() {
-        if (mediaPlayer != null) {
+        return snapshot.getDuration();
+    }
+
+    public int getCurrentPosition() {
+        return snapshot.getPosition();
+    }
+
+    public int getCurrentSongIndex() {
+        int index = snapshot.getCurrentSongIndex();
+        Log.d(TAG, "getCurrentSongIndex: " + index);
+        return index;
+    }
+
+    // Shared, not copied; compare getQueueVersion() to see a change.
+    public List<Song> getSongList() {
+        List<Song> queue = snapshot.getSongList();
+        Log.d(TAG, "getSongList: size=" + queue.size());
+        return queue;
+    }
+
+    public long getQueueVersion() {
+        return snapshot.getQueueVersion();
+    }
+
+    private boolean isPlayerPlaying() {
+        return mediaPlayer != null && mediaPlayer.isPlaying();
+    }
+
+    private int getPlayerDuration() {
+        if (mediaPlayer != null && isPlayerPrepared) {
             try {
+                if (seekIndex != null && seekIndex.needsMapping()) {
+                    return seekIndex.getDurationMs();
+                }
                 int duration = mediaPlayer.getDuration();
                 Log.d(TAG, "[getDuration] duration=" + duration + ", isPlaying=" + mediaPlayer.isPlaying() + ", isInitialized=" + (duration > 0));
                 return Math.max(duration, 0);
@@ -1065,10 +1806,10 @@ public class MusicService extends Service {
         return 0;
     }
 
-    public int getCurrentPosition() {
+    private int getPlayerPosition() {
         if (mediaPlayer != null) {
             try {
-                int pos = mediaPlayer.getCurrentPosition();
+                int pos = mediaPlayer.getCurrentPosition() + seekOffsetMs;
                 Log.d(TAG, "[getCurrentPosition] pos=" + pos + ", isPlaying=" + mediaPlayer.isPlaying());
                 return Math.max(pos, 0);
             } catch (IllegalStateException e) {
@@ -1079,74 +1820,5 @@ public class MusicService extends Service {
         Log.d(TAG, "[getCurrentPosition] mediaPlayer == null!");
         return 0;
     }
-
-    public int getCurrentSongIndex() {
-        Log.d(TAG, "getCurrentSongIndex: " + currentSongIndex);
-        return currentSongIndex;
-    }
-
-    public List<Song> getSongList() {
-        Log.d(TAG, "getSongList: size=" + songList.size());
-        return new ArrayList<>(songList);
-    }
-
-    private Intent createNotificationIntent(Song song, int currentSongIndex, List<Song> songList) {
-        Log.d(TAG, "createNotificationIntent: song=" + song.getTitle() + ", index=" + currentSongIndex + ", songList.size=" + songList.size());
-        long[] ids = new long[songList.size()];
-        for (int i = 0; i < songList.size(); i++) {
-            ids[i] = songList.get(i).getId();
-        }
-        Intent intent = new Intent(this, MusicPlayerActivity.class);
-        intent.putExtra("song_ids", ids);
-        intent.putExtra("current_index", currentSongIndex);
-        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        Log.d(TAG, "createNotificationIntent: Intent created, song_ids.length=" + ids.length + ", current_index=" + currentSongIndex);
-        return intent;
-    }
-
-    private Song getSongById(long id) {
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.DURATION,
-                MediaStore.Audio.Media.ALBUM_ID
-        };
-        String selection = MediaStore.Audio.Media._ID + " = ?";
-        String[] selectionArgs = { String.valueOf(id) };
-        try (Cursor cursor = getContentResolver().query(
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                projection,
-                selection,
-                selectionArgs,
-                null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                long songId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID));
-                String title = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
-                String artist = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-                String data = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA));
-                long duration = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION));
-                long albumId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
-                File file = new File(data);
-                if (!file.exists() || !file.canRead()) {
-                    Log.w(TAG, "getSongById: theFileIsNotAvailableOrDoesNotExist: " + data);
-                    return null;
-                }
-                Uri uri = Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, String.valueOf(songId));
-                Uri albumArtUri = Uri.parse("content://media/external/audio/albumart/" + albumId);
-                Song song = new Song(songId, title, artist, uri, albumArtUri, duration, data);
-                SharedPreferences prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
-                song.setLastPlayed(prefs.getLong("last_played_" + songId, 0));
-                Log.d(TAG, "getSongById: createdASongWithATitle=" + title + ", path=" + data);
-                return song;
-            } else {
-                Log.w(TAG, "getSongById:theCursorIsEmptyOrNullFor songId=" + id);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "getSongById: requestError songId=" + id, e);
-        }
-        return null;
-    }
 }
 
@@ -0,0 +1,207 @@
+package com.example.promusic;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.core.app.NotificationCompat;
+
+/**
+ * Builds the playback notification and the session metadata for {@link MusicService}, and
+ * keeps what it built. The notification depends only on the track, its queue position, the
+ * play state and the favorite flag; {@link #render} returns the previous instance unchanged
+ * while those are the same, so a refresh that changes none of them costs no file access, no
+ * bitmap decode and no notify. Artwork is decoded once per track at {@link #ART_SIZE_PX} and
+ * kept for recent tracks up to {@link #ART_CACHE_BYTES} of bitmap memory; a subsampled picture
+ * can still be almost twice that size on each side, so the cache is weighed in bytes rather
+ * than entries. The action intents are created once.
+ */
+public class NotificationRenderer {
+    private static final String TAG = "NotificationRenderer";
+    private static final int ART_SIZE_PX = 512;
+    private static final int ART_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private final Context context;
+    private final MediaSessionCompat mediaSession;
+    private final String channelId;
+    private final LruCache<String, Bitmap> artwork = new LruCache<String, Bitmap>(ART_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String path, Bitmap art) {
+            // The default artwork is one shared bitmap, whichever tracks it stands in for.
+            return art == defaultArt ? 1 : art.getAllocationByteCount();
+        }
+    };
+    private Bitmap defaultArt;
+
+    private PendingIntent prevIntent;
+    private PendingIntent playPauseIntent;
+    private PendingIntent nextIntent;
+    private PendingIntent closeIntent;
+    private PendingIntent likeIntent;
+    private PendingIntent contentIntent;
+    private int contentIndex = -1;
+
+    private String metadataPath;
+    private long metadataDuration = -1;
+
+    private Notification notification;
+    private String renderedPath;
+    private int renderedIndex = -1;
+    private boolean renderedPlaying;
+    private boolean renderedFavorite;
+
+    public NotificationRenderer(Context context, MediaSessionCompat mediaSession, String channelId) {
+        this.context = context;
+        this.mediaSession = mediaSession;
+        this.channelId = channelId;
+    }
+
+    /**
+     * Returns the notification for the given state, building it only if one of its inputs
+     * changed since the last call. The session metadata is updated when the track or its
+     * duration changed.
+     */
+    public Notification render(Song song, int index, boolean playing, boolean favorite, int duration) {
+        String path = song.getData();
+        if (!path.equals(metadataPath) || duration != metadataDuration) {
+            mediaSession.setMetadata(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, song.getTitle())
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, song.getArtist())
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
+                    .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, getArtwork(path))
+                    .build());
+            metadataPath = path;
+            metadataDuration = duration;
+        }
+        if (notification != null && path.equals(renderedPath) && index == renderedIndex &&
+                playing == renderedPlaying && favorite == renderedFavorite) {
+            return notification;
+        }
+        createActionIntents();
+        if (index != contentIndex) {
+            Intent intent = new Intent(context, MusicPlayerActivity.class);
+            intent.putExtra("current_index", index);
+            intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            contentIntent = PendingIntent.getActivity(
+                    context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+            contentIndex = index;
+        }
+        int likeIcon = favorite ? R.drawable.ic_heart_filled : R.drawable.ic_heart_outline;
+        int playPauseIcon = playing ? R.drawable.ic_pause : R.drawable.ic_play;
+        notification = new NotificationCompat.Builder(context, channelId)
+                .setContentTitle(song.getTitle())
+                .setContentText(song.getArtist())
+                .setSmallIcon(R.drawable.ic_music_note)
+                .setLargeIcon(getArtwork(path))
+                .setContentIntent(contentIntent)
+                .setOngoing(playing)
+                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                .addAction(likeIcon, "Like", likeIntent)
+                .addAction(R.drawable.ic_previous, "Prev", prevIntent)
+                .addAction(playPauseIcon, playing ? "Pause" : "Play", playPauseIntent)
+                .addAction(R.drawable.ic_next, "Next", nextIntent)
+                .addAction(R.drawable.ic_close, "Close", closeIntent)
+                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
+                        .setShowActionsInCompactView(1, 2, 3)
+                        .setMediaSession(mediaSession.getSessionToken()))
+                .build();
+        renderedPath = path;
+        renderedIndex = index;
+        renderedPlaying = playing;
+        renderedFavorite = favorite;
+        Log.d(TAG, "render: rebuilt for " + song.getTitle() + ", playing=" + playing + ", favorite=" + favorite);
+        return notification;
+    }
+
+    /**
+     * The notification returned by the last {@link #render} call, or null.
+     */
+    public Notification getNotification() {
+        return notification;
+    }
+
+    private void createActionIntents() {
+        if (prevIntent != null) {
+            return;
+        }
+        prevIntent = servicePendingIntent("PREVIOUS", 1);
+        playPauseIntent = servicePendingIntent("PLAY_PAUSE", 2);
+        nextIntent = servicePendingIntent("NEXT", 3);
+        closeIntent = servicePendingIntent("STOP", 4);
+        likeIntent = servicePendingIntent("TOGGLE_FAVORITE", 5);
+    }
+
+    private PendingIntent servicePendingIntent(String action, int requestCode) {
+        Intent intent = new Intent(context, MusicService.class);
+        intent.setAction(action);
+        intent.setPackage(context.getPackageName());
+        return PendingIntent.getForegroundService(context, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_MUTABLE);
+    }
+
+    /**
+     * The embedded picture of {@code path} scaled down to about {@link #ART_SIZE_PX}, or the
+     * default artwork. Either result is cached, so a file without a picture is opened once.
+     */
+    private Bitmap getArtwork(String path) {
+        Bitmap art = artwork.get(path);
+        if (art != null) {
+            return art;
+        }
+        long startTime = System.nanoTime();
+        art = decodeEmbeddedPicture(path);
+        if (art == null) {
+            if (defaultArt == null) {
+                defaultArt = decodeScaled(null, R.drawable.player);
+            }
+            art = defaultArt;
+        }
+        artwork.put(path, art);
+        Log.d(TAG, "getArtwork: loaded for " + path + " in " + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return art;
+    }
+
+    private Bitmap decodeEmbeddedPicture(String path) {
+        try (MediaMetadataRetriever mmr = new MediaMetadataRetriever()) {
+            mmr.setDataSource(path);
+            byte[] artBytes = mmr.getEmbeddedPicture();
+            if (artBytes != null) {
+                return decodeScaled(artBytes, 0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "decodeEmbeddedPicture: error for " + path, e);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes {@code bytes}, or the drawable {@code resId} when bytes is null, with the largest
+     * power-of-two subsampling that keeps both sides at least {@link #ART_SIZE_PX}.
+     */
+    private Bitmap decodeScaled(byte[] bytes, int resId) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(bytes, resId, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= ART_SIZE_PX && options.outHeight / (sampleSize * 2) >= ART_SIZE_PX) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return decode(bytes, resId, options);
+    }
+
+    private Bitmap decode(byte[] bytes, int resId, BitmapFactory.Options options) {
+        return bytes != null
+                ? BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options)
+                : BitmapFactory.decodeResource(context.getResources(), resId, options);
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.promusic;
+
+import android.util.Log;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read-only view of the whole library in title order that keeps only a window of pages in
+ * memory. Pages are read from the index with keyset pagination on (title, _id): the list
+ * starts with the boundary row of every page, so a page costs one index seek however deep the
+ * list is, fast-scroll jumps included. Pages are only ever read in the background. A row on a
+ * page that is not loaded yet comes back as an empty placeholder, and the
+ * {@link OnPageLoadedListener} hears when its page arrives. Pages ahead of the scroll
+ * direction are prefetched and pages far from the visible range are dropped.
+ *
+ * <p>The size is fixed when the list is created. When the library changes, build a new
+ * instance and swap it in on the main thread.
+ */
+public class PagedSongList extends AbstractList<Song> implements RandomAccess {
+    private static final String TAG = "PagedSongList";
+    static final int PAGE_SIZE = 100;
+    private static final int PREFETCH_PAGES = 2;
+    private static final int MAX_PAGES = 10;
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final SongRepository repository;
+    private final int size;
+    private final Map<Integer, SongTable> pages = new HashMap<>();
+    private final Map<Integer, PageKey> afterKeys = new HashMap<>();
+    private final Map<Integer, PageKey> beforeKeys = new HashMap<>();
+    private final Set<Integer> pendingPages = new HashSet<>();
+    private final Map<Long, Song> selectedSongs = new HashMap<>();
+    private final Set<Long> deselectedIds = new HashSet<>();
+    private boolean allSelected = false;
+    private int visibleFirst = 0;
+    private int visibleLast = 0;
+    private volatile OnPageLoadedListener pageLoadedListener;
+
+    /**
+     * Told, on the prefetch thread, which rows a newly loaded page covers.
+     */
+    public interface OnPageLoadedListener {
+        void onPageLoaded(int first, int count);
+    }
+
+    private static class PageKey {
+        final String title;
+        final long id;
+
+        PageKey(String title, long id) {
+            this.title = title;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Counts the library, reads the page boundaries and the first page. Call from a background
+     * thread.
+     */
+    public PagedSongList(SongRepository repository) {
+        this.repository = repository;
+        this.size = repository.getSongCount();
+        if (size > 0) {
+            SongTable boundaries = repository.getPageBoundaries(PAGE_SIZE);
+            for (int i = 0; i < boundaries.size(); i++) {
+                afterKeys.put(i + 1, new PageKey(boundaries.getTitle(i), boundaries.getId(i)));
+            }
+            getPage(0);
+        }
+        Log.d(TAG, "PagedSongList: size=" + size + ", pageSize=" + PAGE_SIZE);
+    }
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        pageLoadedListener = listener;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the row from its cached page without touching the database. If the page is not
+     * loaded yet this returns a placeholder with id -1 and loads the page in the background.
+     */
+    @Override
+    public Song get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int page = index / PAGE_SIZE;
+        SongTable rows;
+        synchronized (this) {
+            rows = pages.get(page);
+        }
+        if (rows == null) {
+            prefetch(page);
+            return placeholder();
+        }
+        int offset = index - page * PAGE_SIZE;
+        if (offset >= rows.size()) {
+            Log.w(TAG, "get: Row " + index + " disappeared since the list was counted");
+            return placeholder();
+        }
+        return rows.get(offset);
+    }
+
+    public long getId(int index) {
+        return get(index).getId();
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Song)) {
+            return -1;
+        }
+        Song song = (Song) o;
+        synchronized (this) {
+            for (Map.Entry<Integer, SongTable> entry : pages.entrySet()) {
+                int offset = entry.getValue().indexOfId(song.getId());
+                if (offset >= 0) {
+                    return entry.getKey() * PAGE_SIZE + offset;
+                }
+            }
+        }
+        int position = repository.getPositionOf(song.getTitle(), song.getId());
+        return position < size ? position : -1;
+    }
+
+    /**
+     * Called from the scroll listener with the visible adapter range. Prefetches pages in the
+     * scroll direction.
+     */
+    public void onVisibleRangeChanged(int first, int last) {
+        if (first < 0 || last < first) {
+            return;
+        }
+        int direction = Integer.compare(first, visibleFirst);
+        synchronized (this) {
+            visibleFirst = first;
+            visibleLast = last;
+        }
+        int firstPage = first / PAGE_SIZE;
+        int lastPage = last / PAGE_SIZE;
+        if (direction >= 0) {
+            for (int page = lastPage + 1; page <= lastPage + PREFETCH_PAGES; page++) {
+                prefetch(page);
+            }
+        }
+        if (direction <= 0) {
+            for (int page = firstPage - 1; page >= firstPage - PREFETCH_PAGES; page--) {
+                prefetch(page);
+            }
+        }
+    }
+
+    public synchronized void onSelectionChanged(Song song) {
+        if (song.getId() < 0) {
+            return;
+        }
+        if (allSelected) {
+            if (song.isSelected()) {
+                deselectedIds.remove(song.getId());
+            } else {
+                deselectedIds.add(song.getId());
+            }
+        } else if (song.isSelected()) {
+            selectedSongs.put(song.getId(), song);
+        } else {
+            selectedSongs.remove(song.getId());
+        }
+    }
+
+    public synchronized void selectAll() {
+        allSelected = true;
+        deselectedIds.clear();
+        for (SongTable rows : pages.values()) {
+            for (Song song : rows) {
+                song.setSelected(true);
+            }
+        }
+    }
+
+    public synchronized void clearSelection() {
+        allSelected = false;
+        deselectedIds.clear();
+        for (Song song : selectedSongs.values()) {
+            song.setSelected(false);
+        }
+        selectedSongs.clear();
+        for (SongTable rows : pages.values()) {
+            for (Song song : rows.getMaterializedSongs()) {
+                song.setSelected(false);
+            }
+        }
+    }
+
+    public synchronized int getSelectedCount() {
+        return allSelected ? size - deselectedIds.size() : selectedSongs.size();
+    }
+
+    /**
+     * Selected songs, including ones on pages that were dropped. After {@link #selectAll()} this
+     * reads the whole library from the index, so call it from a background thread.
+     */
+    public List<Song> getSelectedSongs() {
+        Set<Long> excluded;
+        synchronized (this) {
+            if (!allSelected) {
+                return new ArrayList<>(selectedSongs.values());
+            }
+            excluded = new HashSet<>(deselectedIds);
+        }
+        List<Song> result = new ArrayList<>();
+        SongTable all = repository.getAllSongs();
+        for (int i = 0; i < all.size(); i++) {
+            if (!excluded.contains(all.getId(i))) {
+                Song song = all.get(i);
+                song.setSelected(true);
+                result.add(song);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Carries the selection over to a list built after a library change.
+     */
+    public synchronized void copySelectionTo(PagedSongList target) {
+        synchronized (target) {
+            target.allSelected = allSelected;
+            target.deselectedIds.addAll(deselectedIds);
+            target.selectedSongs.putAll(selectedSongs);
+            for (SongTable rows : target.pages.values()) {
+                target.applySelection(rows);
+            }
+        }
+    }
+
+    private void prefetch(int page) {
+        if (page < 0 || page * PAGE_SIZE >= size) {
+            return;
+        }
+        synchronized (this) {
+            if (pages.containsKey(page) || !pendingPages.add(page)) {
+                return;
+            }
+        }
+        PREFETCH_EXECUTOR.execute(() -> {
+            SongTable rows;
+            try {
+                rows = getPage(page);
+            } finally {
+                synchronized (this) {
+                    pendingPages.remove(page);
+                }
+            }
+            OnPageLoadedListener listener = pageLoadedListener;
+            if (listener != null && rows.size() > 0) {
+                listener.onPageLoaded(page * PAGE_SIZE, rows.size());
+            }
+        });
+    }
+
+    private static Song placeholder() {
+        return SongRepository.createSong(-1, "", "", "", -1, 0);
+    }
+
+    private SongTable getPage(int page) {
+        PageKey after;
+        PageKey before;
+        synchronized (this) {
+            SongTable cached = pages.get(page);
+            if (cached != null) {
+                return cached;
+            }
+            after = afterKeys.get(page);
+            before = beforeKeys.get(page);
+        }
+
+        long startTime = System.nanoTime();
+        SongTable rows;
+        if (page == 0) {
+            rows = repository.getSongsPage(0, PAGE_SIZE);
+        } else if (after != null) {
+            rows = repository.getSongsAfter(after.title, after.id, PAGE_SIZE);
+        } else if (before != null) {
+            rows = repository.getSongsBefore(before.title, before.id, PAGE_SIZE);
+        } else {
+            rows = repository.getSongsPage(page * PAGE_SIZE, PAGE_SIZE);
+        }
+        Log.d(TAG, "getPage: page=" + page + ", rows=" + rows.size() + ", keyset=" + (after != null || before != null) +
+                ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+
+        synchronized (this) {
+            SongTable cached = pages.get(page);
+            if (cached != null) {
+                return cached;
+            }
+            if (rows.size() > 0) {
+                int last = rows.size() - 1;
+                afterKeys.put(page + 1, new PageKey(rows.getTitle(last), rows.getId(last)));
+                if (page > 0) {
+                    beforeKeys.put(page - 1, new PageKey(rows.getTitle(0), rows.getId(0)));
+                }
+            }
+            applySelection(rows);
+            pages.put(page, rows);
+            evictDistantPages();
+        }
+        return rows;
+    }
+
+    private void applySelection(SongTable rows) {
+        if (!allSelected && selectedSongs.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            long id = rows.getId(i);
+            boolean selected = allSelected ? !deselectedIds.contains(id) : selectedSongs.containsKey(id);
+            if (selected) {
+                Song song = rows.get(i);
+                song.setSelected(true);
+                if (!allSelected) {
+                    selectedSongs.put(id, song);
+                }
+            }
+        }
+    }
+
+    private void evictDistantPages() {
+        int centerPage = (visibleFirst + visibleLast) / 2 / PAGE_SIZE;
+        while (pages.size() > MAX_PAGES) {
+            int farthest = -1;
+            for (int page : pages.keySet()) {
+                if (farthest < 0 || Math.abs(page - centerPage) > Math.abs(farthest - centerPage)) {
+                    farthest = page;
+                }
+            }
+            pages.remove(farthest);
+            Log.d(TAG, "evictDistantPages: dropped page=" + farthest + ", centerPage=" + centerPage);
+        }
+    }
+}
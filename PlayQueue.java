@@ -0,0 +1,108 @@
+package com.example.promusic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The play queue owned by the playback engine thread. Every change takes a new version from a
+ * process-wide counter, so within a process two versions are equal only when the queue is the
+ * same and "did the queue change" is one comparison. The counter starts over with the process.
+ *
+ * <p>{@link #publish()} hands out the current table without copying it. From then on the table
+ * belongs to its readers and its rows are never written again: the next change first copies
+ * the whole table, and snapshots keep sharing the old one. That copy is O(n), a few array
+ * copies per column, and is paid once per publish rather than per edit. A queue replaced as a
+ * whole adopts the new table and copies nothing.
+ */
+public class PlayQueue {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private SongTable table = new SongTable();
+    private boolean published = false;
+    private long version = VERSIONS.incrementAndGet();
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The current table, from now on {@link SongTable#freeze() frozen}. Calling it again
+     * without a change in between returns the same instance.
+     */
+    public SongTable publish() {
+        table.freeze();
+        published = true;
+        return table;
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean isEmpty() {
+        return table.isEmpty();
+    }
+
+    public Song get(int index) {
+        return table.get(index);
+    }
+
+    public long getId(int index) {
+        return table.getId(index);
+    }
+
+    public String getData(int index) {
+        return table.getData(index);
+    }
+
+    public int getDuration(int index) {
+        return table.getDuration(index);
+    }
+
+    /**
+     * Makes {@code songs} the queue. The caller hands over the table and must not change it.
+     */
+    public void replace(SongTable songs) {
+        table = songs;
+        published = false;
+        changed();
+    }
+
+    public void clear() {
+        replace(new SongTable());
+    }
+
+    public void add(Song song) {
+        writable().add(song);
+        changed();
+    }
+
+    /**
+     * Drops rows whose file is not accessible; see {@link SongTable#retainValidFiles()}.
+     */
+    public int retainValidFiles() {
+        int removed = writable().retainValidFiles();
+        if (removed > 0) {
+            changed();
+        }
+        return removed;
+    }
+
+    private SongTable writable() {
+        if (published) {
+            SongTable copy = new SongTable(table.size());
+            copy.addAll(table);
+            table = copy;
+            published = false;
+        }
+        return table;
+    }
+
+    private void changed() {
+        version = VERSIONS.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "PlayQueue{size=" + table.size() + ", version=" + version + ", published=" + published + "}";
+    }
+}
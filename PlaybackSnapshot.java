@@ -0,0 +1,118 @@
+package com.example.promusic;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of the playback state, published by the playback engine thread after every
+ * command and player callback. Other threads read it instead of touching the players or the
+ * queue, which belong to the engine thread.
+ *
+ * <p>The queue table is shared between snapshots until the queue changes and is never modified
+ * after it is published; see {@link PlayQueue}. Comparing queue versions tells whether the
+ * queue changed. The position is sampled when the snapshot is taken and extrapolated
+ * while playing, so the seek bar can poll it without a new snapshot every second.
+ */
+public class PlaybackSnapshot {
+    static final PlaybackSnapshot EMPTY = new PlaybackSnapshot(new SongTable(), 0, 0, false, false, false, 0, 0);
+
+    private final SongTable songList;
+    private final long queueVersion;
+    private final int currentSongIndex;
+    private final boolean playing;
+    private final boolean repeating;
+    private final boolean shuffling;
+    private final int duration;
+    private final int position;
+    private final long sampledAt;
+
+    PlaybackSnapshot(SongTable songList, long queueVersion, int currentSongIndex, boolean playing,
+                     boolean repeating, boolean shuffling, int duration, int position) {
+        this.songList = songList;
+        this.queueVersion = queueVersion;
+        this.currentSongIndex = currentSongIndex;
+        this.playing = playing;
+        this.repeating = repeating;
+        this.shuffling = shuffling;
+        this.duration = duration;
+        this.position = position;
+        this.sampledAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * The queue as a read-only view. Nothing is copied; compare {@link #getQueueVersion()} to
+     * tell whether it changed.
+     */
+    public List<Song> getSongList() {
+        return Collections.unmodifiableList(songList);
+    }
+
+    /**
+     * The published queue itself. Callers must not modify it.
+     */
+    SongTable getSongTable() {
+        return songList;
+    }
+
+    public long getQueueVersion() {
+        return queueVersion;
+    }
+
+    public int getQueueSize() {
+        return songList.size();
+    }
+
+    public int getCurrentSongIndex() {
+        return currentSongIndex;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public boolean isRepeating() {
+        return repeating;
+    }
+
+    public boolean isShuffling() {
+        return shuffling;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * The position when the snapshot was taken, at {@link #getSampledAt()}.
+     */
+    int getSampledPosition() {
+        return position;
+    }
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} when the snapshot was taken.
+     */
+    long getSampledAt() {
+        return sampledAt;
+    }
+
+    /**
+     * The sampled position plus the time since, capped at the duration while playing.
+     */
+    public int getPosition() {
+        if (!playing) {
+            return position;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - sampledAt;
+        long extrapolated = position + elapsed;
+        return (int) (duration > 0 ? Math.min(extrapolated, duration) : extrapolated);
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackSnapshot{index=" + currentSongIndex + ", queue=" + songList.size() + "@" + queueVersion +
+                ", playing=" + playing + ", position=" + position + "/" + duration + "}";
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.promusic;
+
+/**
+ * In-process home of the latest {@link PlaybackSnapshot}. The service's SONG_CHANGED and
+ * PLAYBACK_STATE broadcasts carry only the queue version, the current index and song id and
+ * the play flags; a receiver reads the queue from here, and only when the version differs
+ * from the one it already holds. No state change sends the queue through Binder.
+ */
+public class PlaybackStore {
+    private static final PlaybackStore instance = new PlaybackStore();
+
+    private volatile PlaybackSnapshot snapshot = PlaybackSnapshot.EMPTY;
+
+    private PlaybackStore() {
+    }
+
+    public static PlaybackStore getInstance() {
+        return instance;
+    }
+
+    void publish(PlaybackSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public PlaybackSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -7,13 +7,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.MenuItem;
 import android.widget.TextView;
@@ -29,7 +27,6 @@ import androidx.cardview.widget.CardView;
 import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -374,14 +371,8 @@ public class PlaylistsActivity extends AppCompatActivity {
             return 0;
         }
 
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {MediaStore.Audio.Media._ID};
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media._ID + " IN (" + String.join(",", Collections.nCopies(validIds.size(), "?")) + ")";
-        String[] selectionArgs = validIds.toArray(new String[0]);
-
-        try (Cursor cursor = getContentResolver().query(uri, projection, selection, selectionArgs, null)) {
-            int count = cursor != null ? cursor.getCount() : 0;
+        try {
+            int count = SongRepository.getInstance(this).getExistingIds(validIds).size();
             Log.d(TAG, "countValidSongs: found " + count + " tracksFor ID: " + validIds);
             return count;
         } catch (SecurityException e) {
@@ -400,19 +391,9 @@ public class PlaylistsActivity extends AppCompatActivity {
             return;
         }
 
-        Set<String> validIds = new HashSet<>();
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {MediaStore.Audio.Media._ID};
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media._ID + " IN (" + String.join(",", Collections.nCopies(songIds.size(), "?")) + ")";
-        String[] selectionArgs = songIds.toArray(new String[0]);
-
-        try (Cursor cursor = getContentResolver().query(uri, projection, selection, selectionArgs, null)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    validIds.add(String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID))));
-                }
-            }
+        Set<String> validIds;
+        try {
+            validIds = SongRepository.getInstance(this).getExistingIds(songIds);
         } catch (Exception e) {
             Log.e(TAG, "cleanInvalidSongIds: mediastoreRequestErrorFor " + prefix, e);
             return;
@@ -434,13 +415,9 @@ public class PlaylistsActivity extends AppCompatActivity {
 
     private int getRecentlyAddedCount() {
         Log.d(TAG, "getRecentlyAddedCount: mediaInquiry");
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {MediaStore.Audio.Media._ID};
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media.DATE_ADDED + " > ?";
-        String[] selectionArgs = {String.valueOf((System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000) / 1000)};
-        try (Cursor cursor = getContentResolver().query(uri, projection, selection, selectionArgs, null)) {
-            int count = cursor != null ? cursor.getCount() : 0;
+        long addedAfter = (System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000) / 1000;
+        try {
+            int count = SongRepository.getInstance(this).getRecentlyAddedCount(addedAfter);
             Log.d(TAG, "getRecentlyAddedCount: found " + count + " tracks");
             return count;
         } catch (SecurityException e) {
@@ -0,0 +1,246 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary copy of the play queue in the app's files directory, so a cold start can put the last
+ * queue back without a MediaStore or library query. All values are big-endian:
+ *
+ * <pre>
+ * int magic, int version, int flags, int currentIndex, int position, int count,
+ * int shuffleSize, int shuffleDrawn, int shufflePlayed, int[shuffleSize] shuffle order,
+ * count rows of: long id, long albumId, int duration, then title, artist and path as
+ *                int byte length (-1 for null) followed by UTF-8 bytes
+ * </pre>
+ *
+ * <p>The rows section is encoded once per queue and reused, so saving after an index or
+ * shuffle change only writes bytes that are already built. Writes go through {@link AtomicFile},
+ * so a crash mid-write leaves the previous copy in place. Reads memory-map the file.
+ */
+public class QueueSnapshotStore {
+    private static final String TAG = "QueueSnapshotStore";
+    private static final String FILE_NAME = "queue_snapshot.bin";
+    private static final int MAGIC = 0x504D5153;
+    private static final int VERSION = 1;
+    private static final int FLAG_SHUFFLING = 1;
+    private static final int FLAG_REPEATING = 2;
+
+    private final AtomicFile file;
+    private SongTable encodedQueue;
+    private byte[] encodedRows;
+    private String savedState;
+
+    public QueueSnapshotStore(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * The queue and playback state read back from the file.
+     */
+    public static class Restored {
+        public final SongTable queue;
+        public final int currentIndex;
+        public final int position;
+        public final boolean shuffling;
+        public final boolean repeating;
+        public final int[] shuffleOrder;
+        public final int shuffleDrawn;
+        public final int shufflePlayed;
+
+        Restored(SongTable queue, int currentIndex, int position, boolean shuffling, boolean repeating,
+                 int[] shuffleOrder, int shuffleDrawn, int shufflePlayed) {
+            this.queue = queue;
+            this.currentIndex = currentIndex;
+            this.position = position;
+            this.shuffling = shuffling;
+            this.repeating = repeating;
+            this.shuffleOrder = shuffleOrder;
+            this.shuffleDrawn = shuffleDrawn;
+            this.shufflePlayed = shufflePlayed;
+        }
+    }
+
+    /**
+     * Writes the snapshot unless it matches the last one written. The position alone only counts
+     * as a change when {@code force} is set, so a playing track does not rewrite the file every
+     * time it is asked to save. {@code queue} must not be modified afterwards; the rows are
+     * re-encoded only when a different instance is passed.
+     */
+    public boolean save(SongTable queue, int currentIndex, int position, boolean shuffling, boolean repeating,
+                        ShuffleOrder shuffleOrder, boolean force) {
+        boolean withShuffle = shuffling && shuffleOrder.size() == queue.size();
+        String state = stateKey(currentIndex, shuffling, repeating, withShuffle,
+                shuffleOrder.getDrawn(), shuffleOrder.getPlayed());
+        if (!force && queue == encodedQueue && state.equals(savedState)) {
+            return false;
+        }
+        long startTime = System.nanoTime();
+        FileOutputStream stream = null;
+        try {
+            if (queue != encodedQueue) {
+                encodedRows = encodeRows(queue);
+                encodedQueue = queue;
+            }
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt((shuffling ? FLAG_SHUFFLING : 0) | (repeating ? FLAG_REPEATING : 0));
+            out.writeInt(currentIndex);
+            out.writeInt(position);
+            out.writeInt(queue.size());
+            if (withShuffle) {
+                int[] order = shuffleOrder.copyOrder();
+                out.writeInt(order.length);
+                out.writeInt(shuffleOrder.getDrawn());
+                out.writeInt(shuffleOrder.getPlayed());
+                for (int value : order) {
+                    out.writeInt(value);
+                }
+            } else {
+                out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(0);
+            }
+            out.write(encodedRows);
+            out.flush();
+            file.finishWrite(stream);
+            savedState = state;
+            Log.d(TAG, "save: rows=" + queue.size() + ", index=" + currentIndex + ", position=" + position +
+                    ", bytes=" + file.getBaseFile().length() + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "save: writeFailed", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Maps the file and decodes it, or returns null when there is no usable snapshot. The rows
+     * are kept encoded for the returned queue, so saving it again only rewrites the header.
+     */
+    public Restored load() {
+        long startTime = System.nanoTime();
+        try (FileInputStream stream = file.openRead(); FileChannel channel = stream.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 36 || buffer.getInt() != MAGIC) {
+                Log.w(TAG, "load: notASnapshotFile");
+                return null;
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                Log.w(TAG, "load: unsupportedVersion=" + version);
+                return null;
+            }
+            int flags = buffer.getInt();
+            int currentIndex = buffer.getInt();
+            int position = buffer.getInt();
+            int count = buffer.getInt();
+            int shuffleSize = buffer.getInt();
+            int shuffleDrawn = buffer.getInt();
+            int shufflePlayed = buffer.getInt();
+            if (count <= 0 || shuffleSize < 0 || (long) count * 20 + (long) shuffleSize * 4 > buffer.remaining()) {
+                Log.w(TAG, "load: truncatedSnapshot, count=" + count + ", shuffleSize=" + shuffleSize);
+                return null;
+            }
+            int[] order = null;
+            if (shuffleSize > 0) {
+                order = new int[shuffleSize];
+                buffer.asIntBuffer().get(order);
+                buffer.position(buffer.position() + shuffleSize * 4);
+            }
+
+            SongTable queue = new SongTable(count);
+            int rowsStart = buffer.position();
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                long albumId = buffer.getLong();
+                int duration = buffer.getInt();
+                String title = readString(buffer, scratch);
+                String artist = readString(buffer, scratch);
+                String path = readString(buffer, scratch);
+                queue.addRow(id, title, artist, path, albumId, duration);
+            }
+            if (queue.isEmpty() || currentIndex < 0 || currentIndex >= queue.size()) {
+                Log.w(TAG, "load: emptyQueueOrBadIndex, rows=" + queue.size() + ", index=" + currentIndex);
+                return null;
+            }
+            byte[] rows = new byte[buffer.position() - rowsStart];
+            buffer.position(rowsStart);
+            buffer.get(rows);
+            boolean shuffling = (flags & FLAG_SHUFFLING) != 0;
+            encodedQueue = queue;
+            encodedRows = rows;
+            savedState = stateKey(currentIndex, shuffling, (flags & FLAG_REPEATING) != 0, shuffling && shuffleSize == count,
+                    shuffleDrawn, shufflePlayed);
+            Log.d(TAG, "load: rows=" + count + ", index=" + currentIndex + ", time=" +
+                    (System.nanoTime() - startTime) / 1_000 + "us");
+            return new Restored(queue, currentIndex, Math.max(position, 0), shuffling,
+                    (flags & FLAG_REPEATING) != 0, order, shuffleDrawn, shufflePlayed);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "load: noSnapshotYet");
+            return null;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "load: unreadableSnapshot", e);
+            return null;
+        }
+    }
+
+    private static String stateKey(int currentIndex, boolean shuffling, boolean repeating, boolean withShuffle,
+                                   int shuffleDrawn, int shufflePlayed) {
+        return currentIndex + ":" + shuffling + ":" + repeating + (withShuffle ? ":" + shuffleDrawn + ":" + shufflePlayed : "");
+    }
+
+    private static byte[] encodeRows(SongTable queue) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(queue.size() * 128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < queue.size(); i++) {
+            out.writeLong(queue.getId(i));
+            out.writeLong(queue.getAlbumId(i));
+            out.writeInt(queue.getDuration(i));
+            writeString(out, queue.getTitle(i));
+            writeString(out, queue.getArtist(i));
+            writeString(out, queue.getData(i));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(MappedByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Seek indexes for MP3 files, kept in memory for recently played tracks and on disk under the
+ * cache directory, keyed by path and modification time. A file is scanned once, in the
+ * background, the first time it is played; later plays read the saved index, which is a few
+ * kilobytes even for long mixes. Lookups, which stat the file and may read the saved index,
+ * run on their own background thread so they never wait behind a build.
+ */
+public class SeekIndexCache {
+    private static final String TAG = "SeekIndexCache";
+    private static final String DIRECTORY = "seek_index";
+    private static final int MAX_LOADED = 32;
+    private static final ExecutorService LOAD_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final ExecutorService BUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static final SeekIndexCache instance = new SeekIndexCache();
+
+    private final Map<String, Mp3SeekIndex> loaded = new LinkedHashMap<String, Mp3SeekIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mp3SeekIndex> eldest) {
+            return size() > MAX_LOADED;
+        }
+    };
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+    private volatile File directory;
+
+    private SeekIndexCache() {
+    }
+
+    public static SeekIndexCache getInstance() {
+        return instance;
+    }
+
+    public void init(Context context) {
+        directory = new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    /**
+     * Looks up the index for {@code path} in the background and hands it to {@code onLoaded} on
+     * the lookup thread, or null if there is none yet. A missing index is then built, and
+     * {@code onLoaded} runs a second time, on the builder thread, once it is available. Non-MP3
+     * files get null.
+     */
+    public void load(String path, Consumer<Mp3SeekIndex> onLoaded) {
+        LOAD_EXECUTOR.execute(() -> onLoaded.accept(get(path, () -> {
+            Mp3SeekIndex built;
+            synchronized (loaded) {
+                built = loaded.get(path);
+            }
+            if (built != null) {
+                onLoaded.accept(built);
+            }
+        })));
+    }
+
+    /**
+     * Returns the index for {@code path} from memory or disk if it matches the file's current
+     * modification time. Otherwise starts building it and returns null; {@code onBuilt} runs on
+     * the builder thread once the build is done. Non-MP3 files return null.
+     */
+    private Mp3SeekIndex get(String path, Runnable onBuilt) {
+        if (path == null || directory == null || !path.toLowerCase(Locale.ROOT).endsWith(".mp3")) {
+            return null;
+        }
+        long lastModified = new File(path).lastModified();
+        synchronized (loaded) {
+            Mp3SeekIndex index = loaded.get(path);
+            if (index != null && index.getLastModified() == lastModified) {
+                return index;
+            }
+        }
+        Mp3SeekIndex index = readFromDisk(path, lastModified);
+        if (index != null) {
+            synchronized (loaded) {
+                loaded.put(path, index);
+            }
+            return index;
+        }
+        if (building.add(path)) {
+            BUILD_EXECUTOR.execute(() -> {
+                try {
+                    build(path, lastModified);
+                    onBuilt.run();
+                } finally {
+                    building.remove(path);
+                }
+            });
+        }
+        return null;
+    }
+
+    private void build(String path, long lastModified) {
+        try {
+            Mp3SeekIndex index = Mp3SeekIndex.build(path, lastModified);
+            if (index == null) {
+                return;
+            }
+            synchronized (loaded) {
+                loaded.put(path, index);
+            }
+            writeToDisk(index);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "build: failed for " + path, e);
+        }
+    }
+
+    private Mp3SeekIndex readFromDisk(String path, long lastModified) {
+        File file = fileFor(path);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Mp3SeekIndex index = Mp3SeekIndex.readFrom(in);
+            if (index != null && index.getPath().equals(path) && index.getLastModified() == lastModified) {
+                return index;
+            }
+            Log.d(TAG, "readFromDisk: staleIndex for " + path);
+        } catch (IOException e) {
+            Log.e(TAG, "readFromDisk: unreadable index for " + path, e);
+        }
+        return null;
+    }
+
+    private void writeToDisk(Mp3SeekIndex index) {
+        File file = fileFor(index.getPath());
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            Log.e(TAG, "writeToDisk: cannot create " + parent);
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            index.writeTo(out);
+        } catch (IOException e) {
+            Log.e(TAG, "writeToDisk: failed for " + index.getPath(), e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "writeToDisk: rename failed for " + file);
+            temp.delete();
+        }
+    }
+
+    private File fileFor(String path) {
+        return new File(directory, Integer.toHexString(path.hashCode()) + ".idx");
+    }
+}
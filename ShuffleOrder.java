@@ -0,0 +1,175 @@
+package com.example.promusic;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Shuffled play order over queue positions. The permutation is drawn lazily, one Fisher-Yates
+ * step per track, so every position plays exactly once per cycle and Next costs one random
+ * number and one swap. The drawn prefix of the permutation doubles as the back history:
+ * Previous walks it backwards and Next replays it before drawing anything new.
+ *
+ * <p>When a cycle is used up a new one is drawn, and it never starts with the track that just
+ * ended. Peeking past the end picks the first track of the new cycle but leaves the old one in
+ * place, so {@link #current()} still returns the last track; the new cycle starts on
+ * {@link #next()}. History does not reach back into the previous cycle.
+ */
+public class ShuffleOrder {
+    private static final String TAG = "ShuffleOrder";
+
+    private final Random random;
+    private int[] order = new int[0];
+    private int size = 0;
+    private int drawn = 0;
+    private int played = 0;
+    private int nextCycleSlot = -1;
+
+    public ShuffleOrder(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Starts a new cycle over {@code size} positions with {@code startIndex} as the track that is
+     * playing. Costs one pass over an int array; no Song is touched.
+     */
+    public void reset(int size, int startIndex) {
+        if (order.length < size) {
+            order = new int[size];
+        }
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        this.size = size;
+        drawn = 0;
+        played = 0;
+        nextCycleSlot = -1;
+        if (startIndex >= 0 && startIndex < size) {
+            swap(0, startIndex);
+            drawn = 1;
+            played = 1;
+        }
+        Log.d(TAG, "reset: size=" + size + ", startIndex=" + startIndex);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The position currently playing, or -1 when the cycle has not started.
+     */
+    public int current() {
+        return played > 0 ? order[played - 1] : -1;
+    }
+
+    /**
+     * The position that {@link #next()} will return. Repeated calls return the same position.
+     */
+    public int peekNext() {
+        if (size == 0) {
+            return -1;
+        }
+        if (played == size) {
+            return order[nextCycleSlot()];
+        }
+        if (played == drawn) {
+            swap(played, played + random.nextInt(size - played));
+            drawn++;
+        }
+        return order[played];
+    }
+
+    public int next() {
+        if (size > 0 && played == size) {
+            startNewCycle();
+        }
+        int index = peekNext();
+        if (index >= 0) {
+            played++;
+        }
+        return index;
+    }
+
+    /**
+     * Steps back through the positions played in this cycle. Returns -1 at the start of the cycle.
+     */
+    public int previous() {
+        if (played <= 1) {
+            return -1;
+        }
+        played--;
+        return order[played - 1];
+    }
+
+    int[] copyOrder() {
+        return Arrays.copyOf(order, size);
+    }
+
+    int getDrawn() {
+        return drawn;
+    }
+
+    int getPlayed() {
+        return played;
+    }
+
+    /**
+     * Puts back a state taken with {@link #copyOrder()}, {@link #getDrawn()} and
+     * {@link #getPlayed()}. Returns false and changes nothing if it is not a valid permutation.
+     */
+    boolean restore(int[] savedOrder, int savedDrawn, int savedPlayed) {
+        int count = savedOrder.length;
+        if (savedPlayed < 0 || savedPlayed > savedDrawn || savedDrawn > count) {
+            return false;
+        }
+        boolean[] seen = new boolean[count];
+        for (int value : savedOrder) {
+            if (value < 0 || value >= count || seen[value]) {
+                return false;
+            }
+            seen[value] = true;
+        }
+        order = savedOrder.clone();
+        size = count;
+        drawn = savedDrawn;
+        played = savedPlayed;
+        nextCycleSlot = -1;
+        Log.d(TAG, "restore: size=" + size + ", drawn=" + drawn + ", played=" + played);
+        return true;
+    }
+
+    private void startNewCycle() {
+        int last = order[size - 1];
+        swap(0, nextCycleSlot());
+        nextCycleSlot = -1;
+        drawn = 1;
+        played = 0;
+        Log.d(TAG, "startNewCycle: size=" + size + ", previousLast=" + last);
+    }
+
+    /**
+     * The slot holding the first position of the next cycle. It is drawn once, so a peek and the
+     * {@link #next()} after it agree, and it never holds the track that ends this cycle.
+     */
+    private int nextCycleSlot() {
+        if (nextCycleSlot < 0) {
+            int first = 0;
+            if (size > 1) {
+                first = random.nextInt(size);
+                if (first == size - 1) {
+                    first = random.nextInt(size - 1);
+                }
+            }
+            nextCycleSlot = first;
+        }
+        return nextCycleSlot;
+    }
+
+    private void swap(int a, int b) {
+        int tmp = order[a];
+        order[a] = order[b];
+        order[b] = tmp;
+    }
+}
@@ -0,0 +1,921 @@
+package com.example.promusic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Single owner of the on-device library index. The index mirrors the MediaStore audio table
+ * into a local SQLite database so lists, lookups and counts never walk a MediaStore cursor.
+ * After the first build it is kept in sync incrementally using the MediaStore generation
+ * numbers of each external volume.
+ */
+public class SongRepository {
+    private static final String TAG = "SongRepository";
+    private static final String PREFS = "PlaybackPrefs";
+    private static final String PREF_INDEX_VERSION = "library_index_version";
+    private static final String PREF_GENERATION_PREFIX = "library_generation_";
+    private static final String PREF_LAST_SYNC_SECONDS = "library_last_sync_seconds";
+    private static final long SYNC_DEBOUNCE_MS = 500;
+    private static final int MAX_QUERY_ARGS = 900;
+    private static final String TITLE_ORDER = LibraryDatabase.COLUMN_TITLE + ", " + LibraryDatabase.COLUMN_ID;
+
+    private static final String[] MEDIA_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.IS_MUSIC
+    };
+
+    private static final String INDEXABLE_SELECTION = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
+            MediaStore.Audio.Media.DATA + " IS NOT NULL AND " + MediaStore.Audio.Media.DATA + " != ''";
+
+    private static final String[] INDEX_PROJECTION = {
+            LibraryDatabase.COLUMN_ID,
+            LibraryDatabase.COLUMN_TITLE,
+            LibraryDatabase.COLUMN_ARTIST,
+            LibraryDatabase.COLUMN_DATA,
+            LibraryDatabase.COLUMN_ALBUM_ID,
+            LibraryDatabase.COLUMN_DURATION
+    };
+
+    private static volatile SongRepository instance;
+
+    private final Context context;
+    private final LibraryDatabase database;
+    private volatile boolean indexReady = false;
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnLibraryChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final Runnable syncRunnable = this::requestSync;
+    private boolean isObserving = false;
+    private final LibrarySearchIndex searchIndex = new LibrarySearchIndex();
+    private boolean searchIndexReady = false;
+
+    private final ContentObserver mediaObserver = new ContentObserver(mainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            Log.d(TAG, "mediaObserver: MediaStore changed, schedulingSync");
+            mainHandler.removeCallbacks(syncRunnable);
+            mainHandler.postDelayed(syncRunnable, SYNC_DEBOUNCE_MS);
+        }
+    };
+
+    public interface OnLibraryChangedListener {
+        void onLibraryChanged(LibraryDelta delta);
+    }
+
+    private SongRepository(Context context) {
+        this.context = context.getApplicationContext();
+        this.database = new LibraryDatabase(this.context);
+    }
+
+    public static SongRepository getInstance(Context context) {
+        if (instance == null) {
+            synchronized (SongRepository.class) {
+                if (instance == null) {
+                    instance = new SongRepository(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Builds the index the first time it is needed, or again when MediaStore reports a different
+     * database version (e.g. after a wipe of the media provider). A schema change empties the
+     * index and so rebuilds it too. Below Q MediaStore has no version; an existing index is kept
+     * and {@link #syncIndex()} applies the DATE_MODIFIED/DATE_ADDED deltas.
+     */
+    public synchronized void ensureIndex() {
+        if (indexReady) {
+            return;
+        }
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        String storedVersion = prefs.getString(PREF_INDEX_VERSION, null);
+        String mediaStoreVersion = getMediaStoreVersion();
+        long indexedCount = DatabaseUtils.queryNumEntries(database.getReadableDatabase(), LibraryDatabase.TABLE_SONGS);
+        boolean versionChanged = mediaStoreVersion != null && !mediaStoreVersion.equals(storedVersion);
+        if (indexedCount == 0 || versionChanged) {
+            Log.d(TAG, "ensureIndex: rebuildRequired, indexedCount=" + indexedCount +
+                    ", storedVersion=" + storedVersion + ", mediaStoreVersion=" + mediaStoreVersion);
+            indexReady = rebuildIndex();
+        } else {
+            Log.d(TAG, "ensureIndex: indexUpToDate, indexedCount=" + indexedCount);
+            indexReady = true;
+            warmValidityCache();
+        }
+    }
+
+    public synchronized boolean rebuildIndex() {
+        long startTime = System.nanoTime();
+        SQLiteDatabase db = database.getWritableDatabase();
+        int inserted = 0;
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit();
+        recordSyncPoint(editor);
+        synchronized (searchIndex) {
+            searchIndexReady = false;
+            searchIndex.clear();
+        }
+        try (Cursor cursor = context.getContentResolver().query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MEDIA_PROJECTION, INDEXABLE_SELECTION, null, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "rebuildIndex: Cursor is null");
+                return false;
+            }
+            MediaRowReader reader = new MediaRowReader(cursor);
+            db.beginTransaction();
+            try (SQLiteStatement insert = compileInsert(db)) {
+                db.delete(LibraryDatabase.TABLE_SONGS, null, null);
+                while (cursor.moveToNext()) {
+                    reader.bind(insert, cursor);
+                    insert.executeInsert();
+                    inserted++;
+                }
+                GroupKeys.rebuildAll(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "rebuildIndex: Error indexing MediaStore", e);
+            return false;
+        }
+
+        editor.putString(PREF_INDEX_VERSION, getMediaStoreVersion()).apply();
+        FileValidityCache.getInstance().invalidateAll();
+        warmValidityCache();
+        Log.d(TAG, "rebuildIndex: indexed " + inserted + " songs, time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return true;
+    }
+
+    /**
+     * Pulls only the MediaStore rows inserted or updated since the last recorded generation and
+     * drops rows that disappeared. When nothing changed this costs a single id query.
+     */
+    public synchronized LibraryDelta syncIndex() {
+        if (!indexReady) {
+            ensureIndex();
+            return indexReady ? LibraryDelta.reload() : LibraryDelta.EMPTY;
+        }
+        long startTime = System.nanoTime();
+        SharedPreferences prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        List<Song> upserted = new ArrayList<>();
+        Set<Long> deleted = new HashSet<>();
+        GroupKeys groups = new GroupKeys();
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement insert = compileInsert(db)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                for (String volume : MediaStore.getExternalVolumeNames(context)) {
+                    String key = PREF_GENERATION_PREFIX + volume;
+                    long lastGeneration = prefs.getLong(key, -1);
+                    long generation = MediaStore.getGeneration(context, volume);
+                    if (generation == lastGeneration) {
+                        continue;
+                    }
+                    Log.d(TAG, "syncIndex: volume=" + volume + ", generation " + lastGeneration + " -> " + generation);
+                    pullChangedRows(db, insert, MediaStore.Audio.Media.getContentUri(volume),
+                            MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?",
+                            new String[]{String.valueOf(lastGeneration)}, upserted, deleted, groups);
+                    editor.putLong(key, generation);
+                }
+            } else {
+                String lastSync = String.valueOf(prefs.getLong(PREF_LAST_SYNC_SECONDS, 0));
+                editor.putLong(PREF_LAST_SYNC_SECONDS, System.currentTimeMillis() / 1000);
+                pullChangedRows(db, insert, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        MediaStore.Audio.Media.DATE_MODIFIED + " > ? OR " + MediaStore.Audio.Media.DATE_ADDED + " > ?",
+                        new String[]{lastSync, lastSync}, upserted, deleted, groups);
+            }
+            removeMissingRows(db, deleted, groups);
+            groups.refresh(db);
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "syncIndex: Error syncing index", e);
+            return LibraryDelta.EMPTY;
+        } finally {
+            db.endTransaction();
+        }
+        editor.apply();
+
+        List<String> upsertedPaths = new ArrayList<>(upserted.size());
+        for (Song song : upserted) {
+            FileValidityCache.getInstance().invalidate(song.getData());
+            upsertedPaths.add(song.getData());
+        }
+        FileValidityCache.getInstance().validateAll(upsertedPaths);
+        updateSearchIndex(upserted, deleted);
+
+        LibraryDelta delta = new LibraryDelta(upserted, deleted, false);
+        Log.d(TAG, "syncIndex: " + delta + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return delta;
+    }
+
+    /**
+     * Runs {@link #syncIndex()} off the main thread and hands non-empty deltas to the listeners
+     * on the main thread.
+     */
+    public void requestSync() {
+        syncExecutor.execute(() -> {
+            LibraryDelta delta = syncIndex();
+            if (delta.isEmpty()) {
+                Log.d(TAG, "requestSync: noChanges");
+                return;
+            }
+            mainHandler.post(() -> {
+                for (OnLibraryChangedListener listener : listeners) {
+                    listener.onLibraryChanged(delta);
+                }
+            });
+        });
+    }
+
+    public void addListener(OnLibraryChangedListener listener) {
+        listeners.add(listener);
+        if (!isObserving) {
+            context.getContentResolver().registerContentObserver(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mediaObserver);
+            isObserving = true;
+            Log.d(TAG, "addListener: registered mediaObserver");
+        }
+    }
+
+    public void removeListener(OnLibraryChangedListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && isObserving) {
+            context.getContentResolver().unregisterContentObserver(mediaObserver);
+            mainHandler.removeCallbacks(syncRunnable);
+            isObserving = false;
+            Log.d(TAG, "removeListener: unregistered mediaObserver");
+        }
+    }
+
+    public SongTable getAllSongs() {
+        ensureIndex();
+        return querySongs(null, null, TITLE_ORDER);
+    }
+
+    /**
+     * The first {@code limit} rows of {@link #getAllSongs()}, read through the title index.
+     */
+    public SongTable getAllSongs(int limit) {
+        ensureIndex();
+        return querySongs(null, null, TITLE_ORDER, String.valueOf(limit));
+    }
+
+    public int getSongCount() {
+        ensureIndex();
+        return (int) DatabaseUtils.queryNumEntries(database.getReadableDatabase(), LibraryDatabase.TABLE_SONGS);
+    }
+
+    /**
+     * Rows of {@link #getAllSongs()} by position. Only used when no page key is known;
+     * {@link #getSongsAfter} and {@link #getSongsBefore} do not scan skipped rows.
+     */
+    public SongTable getSongsPage(int offset, int limit) {
+        ensureIndex();
+        return querySongs(null, null, TITLE_ORDER, offset + ", " + limit);
+    }
+
+    /**
+     * Up to {@code limit} rows that sort after ({@code title}, {@code id}) in title order.
+     */
+    public SongTable getSongsAfter(String title, long id, int limit) {
+        ensureIndex();
+        return querySongs(keysetSelection(title, true), keysetArgs(title, id), TITLE_ORDER, String.valueOf(limit));
+    }
+
+    /**
+     * Up to {@code limit} rows that sort directly before ({@code title}, {@code id}), returned in
+     * ascending title order.
+     */
+    public SongTable getSongsBefore(String title, long id, int limit) {
+        ensureIndex();
+        String sql = "SELECT * FROM (SELECT " + TextUtils.join(", ", INDEX_PROJECTION) + " FROM " + LibraryDatabase.TABLE_SONGS +
+                " WHERE " + keysetSelection(title, false) + " ORDER BY " + LibraryDatabase.COLUMN_TITLE + " DESC, " +
+                LibraryDatabase.COLUMN_ID + " DESC LIMIT " + limit + ") ORDER BY " + TITLE_ORDER;
+        try (Cursor cursor = database.getReadableDatabase().rawQuery(sql, keysetArgs(title, id))) {
+            return readSongs(cursor);
+        } catch (Exception e) {
+            Log.e(TAG, "getSongsBefore: Error querying index", e);
+            return new SongTable();
+        }
+    }
+
+    /**
+     * The last row of every full block of {@code pageSize} rows in title order, with only id and
+     * title set, so a page anywhere in the list can be read with {@link #getSongsAfter}. One pass
+     * over the title index that keeps a row per block.
+     */
+    public SongTable getPageBoundaries(int pageSize) {
+        ensureIndex();
+        long startTime = System.nanoTime();
+        SongTable boundaries = new SongTable();
+        try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_SONGS,
+                new String[]{LibraryDatabase.COLUMN_ID, LibraryDatabase.COLUMN_TITLE}, null, null, null, null, TITLE_ORDER)) {
+            for (int row = pageSize - 1; cursor.moveToPosition(row); row += pageSize) {
+                boundaries.addRow(cursor.getLong(0), cursor.getString(1), null, null, -1, 0);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getPageBoundaries: Error querying index", e);
+        }
+        Log.d(TAG, "getPageBoundaries: pages=" + boundaries.size() + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return boundaries;
+    }
+
+    /**
+     * Position of ({@code title}, {@code id}) in title order, counted through the title index.
+     */
+    public int getPositionOf(String title, long id) {
+        ensureIndex();
+        return (int) DatabaseUtils.queryNumEntries(database.getReadableDatabase(), LibraryDatabase.TABLE_SONGS,
+                keysetSelection(title, false), keysetArgs(title, id));
+    }
+
+    public SongTable getRecentlyAddedSongs(long addedAfterSeconds) {
+        ensureIndex();
+        return querySongs(LibraryDatabase.COLUMN_DATE_ADDED + " > ?",
+                new String[]{String.valueOf(addedAfterSeconds)},
+                LibraryDatabase.COLUMN_DATE_ADDED + " DESC");
+    }
+
+    public SongTable getSongsByIds(Collection<String> songIds, String orderBy) {
+        ensureIndex();
+        SongTable songs = new SongTable();
+        if (songIds == null || songIds.isEmpty()) {
+            return songs;
+        }
+        List<String> ids = new ArrayList<>(songIds);
+        for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+            songs.addAll(querySongs(LibraryDatabase.COLUMN_ID + " IN (" + placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]), orderBy));
+        }
+        return songs;
+    }
+
+    /**
+     * Resolves a play queue in as few queries as SQLite's variable limit allows. The result
+     * keeps the order (and duplicates) of {@code songIds} and drops ids that are not in the
+     * library or whose file is not accessible.
+     */
+    public SongTable getSongsByIds(long[] songIds) {
+        ensureIndex();
+        long startTime = System.nanoTime();
+        if (songIds == null || songIds.length == 0) {
+            return new SongTable();
+        }
+        Set<Long> uniqueIds = new HashSet<>();
+        for (long id : songIds) {
+            if (id > 0) {
+                uniqueIds.add(id);
+            }
+        }
+        List<String> ids = new ArrayList<>(uniqueIds.size());
+        for (long id : uniqueIds) {
+            ids.add(String.valueOf(id));
+        }
+        SongTable found = new SongTable(ids.size());
+        for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+            found.addAll(querySongs(LibraryDatabase.COLUMN_ID + " IN (" + placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]), null));
+        }
+
+        Map<Long, Integer> rowById = new HashMap<>(found.size() * 2);
+        for (int i = 0; i < found.size(); i++) {
+            rowById.put(found.getId(i), i);
+        }
+        FileValidityCache validityCache = FileValidityCache.getInstance();
+        SongTable ordered = new SongTable(songIds.length);
+        for (long id : songIds) {
+            Integer row = rowById.get(id);
+            if (row != null && validityCache.isValid(found.getData(row))) {
+                ordered.addRow(found, row);
+            }
+        }
+        Log.d(TAG, "getSongsByIds: requested=" + songIds.length + ", resolved=" + ordered.size() +
+                ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return ordered;
+    }
+
+    /**
+     * Ranked ids of the songs whose title, artist or album match {@code query}. The in-memory
+     * search index is built from the library index on first use and is then kept current by
+     * {@link #syncIndex()}. Call from a background thread.
+     */
+    public long[] searchSongIds(String query, int limit) {
+        ensureIndex();
+        synchronized (searchIndex) {
+            if (!searchIndexReady) {
+                long startTime = System.nanoTime();
+                searchIndex.clear();
+                searchIndexReady = loadSearchRows(null, null);
+                Log.d(TAG, "searchSongIds: searchIndexBuilt, size=" + searchIndex.size() +
+                        ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+            }
+        }
+        return searchIndex.search(query, limit);
+    }
+
+    public SongTable searchSongs(String query, int limit) {
+        return getSongsByIds(searchSongIds(query, limit));
+    }
+
+    /**
+     * Albums with their aggregated counts, read from the grouping table rather than the songs.
+     */
+    public List<LibraryGroup> getAlbums() {
+        return queryAlbums(null);
+    }
+
+    /**
+     * Rows {@code offset} to {@code offset + limit} of {@link #getAlbums()}.
+     */
+    public List<LibraryGroup> getAlbums(int offset, int limit) {
+        return queryAlbums(offset + ", " + limit);
+    }
+
+    private List<LibraryGroup> queryAlbums(String limit) {
+        ensureIndex();
+        long startTime = System.nanoTime();
+        List<LibraryGroup> albums = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_ALBUMS,
+                new String[]{LibraryDatabase.COLUMN_ALBUM_ID, LibraryDatabase.COLUMN_ALBUM, LibraryDatabase.COLUMN_ARTIST,
+                        LibraryDatabase.COLUMN_TRACK_COUNT, LibraryDatabase.COLUMN_TOTAL_DURATION},
+                null, null, null, null, LibraryDatabase.COLUMN_ALBUM + " COLLATE NOCASE", limit)) {
+            while (cursor.moveToNext()) {
+                long albumId = cursor.getLong(0);
+                albums.add(new LibraryGroup(albumId, cursor.getString(1), cursor.getString(2), 1,
+                        cursor.getInt(3), cursor.getLong(4), albumId));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getAlbums: Error querying album index", e);
+        }
+        Log.d(TAG, "getAlbums: " + albums.size() + " albums, time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return albums;
+    }
+
+    /**
+     * Artists with their aggregated counts. Tracks without an artist are grouped under "".
+     */
+    public List<LibraryGroup> getArtists() {
+        return queryArtists(null);
+    }
+
+    /**
+     * Rows {@code offset} to {@code offset + limit} of {@link #getArtists()}.
+     */
+    public List<LibraryGroup> getArtists(int offset, int limit) {
+        return queryArtists(offset + ", " + limit);
+    }
+
+    private List<LibraryGroup> queryArtists(String limit) {
+        ensureIndex();
+        long startTime = System.nanoTime();
+        List<LibraryGroup> artists = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_ARTISTS,
+                new String[]{LibraryDatabase.COLUMN_ARTIST, LibraryDatabase.COLUMN_ALBUM_COUNT, LibraryDatabase.COLUMN_TRACK_COUNT,
+                        LibraryDatabase.COLUMN_TOTAL_DURATION, LibraryDatabase.COLUMN_ART_ALBUM_ID},
+                null, null, null, null, LibraryDatabase.COLUMN_ARTIST + " COLLATE NOCASE", limit)) {
+            while (cursor.moveToNext()) {
+                String artist = cursor.getString(0);
+                artists.add(new LibraryGroup(-1, artist, artist, cursor.getInt(1), cursor.getInt(2),
+                        cursor.getLong(3), cursor.getLong(4)));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getArtists: Error querying artist index", e);
+        }
+        Log.d(TAG, "getArtists: " + artists.size() + " artists, time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        return artists;
+    }
+
+    public SongTable getSongsByAlbum(long albumId) {
+        ensureIndex();
+        return querySongs(LibraryDatabase.COLUMN_ALBUM_ID + " = ?", new String[]{String.valueOf(albumId)}, TITLE_ORDER);
+    }
+
+    public SongTable getSongsByArtist(String artist) {
+        ensureIndex();
+        if (TextUtils.isEmpty(artist)) {
+            return querySongs(LibraryDatabase.COLUMN_ARTIST + " IS NULL OR " + LibraryDatabase.COLUMN_ARTIST + " = ''",
+                    null, TITLE_ORDER);
+        }
+        return querySongs(LibraryDatabase.COLUMN_ARTIST + " = ?", new String[]{artist}, TITLE_ORDER);
+    }
+
+    public Song getSongById(long id) {
+        ensureIndex();
+        List<Song> songs = querySongs(LibraryDatabase.COLUMN_ID + " = ?", new String[]{String.valueOf(id)}, null);
+        return songs.isEmpty() ? null : songs.get(0);
+    }
+
+    public int getRecentlyAddedCount(long addedAfterSeconds) {
+        ensureIndex();
+        return (int) DatabaseUtils.queryNumEntries(database.getReadableDatabase(), LibraryDatabase.TABLE_SONGS,
+                LibraryDatabase.COLUMN_DATE_ADDED + " > ?", new String[]{String.valueOf(addedAfterSeconds)});
+    }
+
+    /**
+     * Returns the subset of {@code songIds} that are still present in the library.
+     */
+    public Set<String> getExistingIds(Collection<String> songIds) {
+        ensureIndex();
+        Set<String> existing = new HashSet<>();
+        if (songIds == null || songIds.isEmpty()) {
+            return existing;
+        }
+        List<String> ids = new ArrayList<>(songIds);
+        SQLiteDatabase db = database.getReadableDatabase();
+        for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+            try (Cursor cursor = db.query(LibraryDatabase.TABLE_SONGS, new String[]{LibraryDatabase.COLUMN_ID},
+                    LibraryDatabase.COLUMN_ID + " IN (" + placeholders(chunk.size()) + ")",
+                    chunk.toArray(new String[0]), null, null, null)) {
+                while (cursor.moveToNext()) {
+                    existing.add(String.valueOf(cursor.getLong(0)));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "getExistingIds: Error querying index", e);
+            }
+        }
+        return existing;
+    }
+
+    public void removeSongs(Collection<Long> songIds) {
+        if (songIds == null || songIds.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            GroupKeys groups = new GroupKeys();
+            for (long id : songIds) {
+                groups.collect(db, id);
+                db.delete(LibraryDatabase.TABLE_SONGS, LibraryDatabase.COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+            }
+            groups.refresh(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        updateSearchIndex(Collections.emptyList(), songIds);
+        Log.d(TAG, "removeSongs: removed " + songIds.size() + " songs from index");
+    }
+
+    private void updateSearchIndex(List<Song> upserted, Collection<Long> deleted) {
+        synchronized (searchIndex) {
+            if (!searchIndexReady) {
+                return;
+            }
+            for (long id : deleted) {
+                searchIndex.remove(id);
+            }
+            List<String> ids = new ArrayList<>(upserted.size());
+            for (Song song : upserted) {
+                ids.add(String.valueOf(song.getId()));
+            }
+            for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+                List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+                loadSearchRows(LibraryDatabase.COLUMN_ID + " IN (" + placeholders(chunk.size()) + ")",
+                        chunk.toArray(new String[0]));
+            }
+        }
+    }
+
+    private boolean loadSearchRows(String selection, String[] selectionArgs) {
+        try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_SONGS,
+                new String[]{LibraryDatabase.COLUMN_ID, LibraryDatabase.COLUMN_TITLE,
+                        LibraryDatabase.COLUMN_ARTIST, LibraryDatabase.COLUMN_ALBUM},
+                selection, selectionArgs, null, null, TITLE_ORDER)) {
+            while (cursor.moveToNext()) {
+                searchIndex.put(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3));
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "loadSearchRows: Error reading index, selection=" + selection, e);
+            return false;
+        }
+    }
+
+    private void warmValidityCache() {
+        syncExecutor.execute(() -> {
+            List<String> paths = new ArrayList<>();
+            try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_SONGS,
+                    new String[]{LibraryDatabase.COLUMN_DATA}, null, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    paths.add(cursor.getString(0));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "warmValidityCache: Error reading indexed paths", e);
+                return;
+            }
+            FileValidityCache.getInstance().validateAll(paths);
+        });
+    }
+
+    private void pullChangedRows(SQLiteDatabase db, SQLiteStatement insert, Uri uri, String selection,
+                                 String[] selectionArgs, List<Song> upserted, Set<Long> deleted, GroupKeys groups) {
+        try (Cursor cursor = context.getContentResolver().query(uri, MEDIA_PROJECTION, selection, selectionArgs, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "pullChangedRows: Cursor is null for " + uri);
+                return;
+            }
+            MediaRowReader reader = new MediaRowReader(cursor);
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(reader.idColumn);
+                groups.collect(db, id);
+                if (reader.isIndexable(cursor)) {
+                    reader.bind(insert, cursor);
+                    insert.executeInsert();
+                    groups.add(cursor.getLong(reader.albumIdColumn), cursor.getString(reader.artistColumn));
+                    upserted.add(reader.toSong(cursor));
+                } else if (db.delete(LibraryDatabase.TABLE_SONGS, LibraryDatabase.COLUMN_ID + " = ?",
+                        new String[]{String.valueOf(id)}) > 0) {
+                    deleted.add(id);
+                }
+            }
+        }
+    }
+
+    private void removeMissingRows(SQLiteDatabase db, Set<Long> deleted, GroupKeys groups) {
+        try (Cursor cursor = context.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Media._ID}, INDEXABLE_SELECTION, null, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "removeMissingRows: Cursor is null");
+                return;
+            }
+            long indexedCount = DatabaseUtils.queryNumEntries(db, LibraryDatabase.TABLE_SONGS);
+            if (cursor.getCount() == indexedCount) {
+                return;
+            }
+            Set<Long> mediaIds = new HashSet<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                mediaIds.add(cursor.getLong(0));
+            }
+            List<Long> missingIds = new ArrayList<>();
+            try (Cursor indexCursor = db.query(LibraryDatabase.TABLE_SONGS, new String[]{LibraryDatabase.COLUMN_ID},
+                    null, null, null, null, null)) {
+                while (indexCursor.moveToNext()) {
+                    long id = indexCursor.getLong(0);
+                    if (!mediaIds.contains(id)) {
+                        missingIds.add(id);
+                    }
+                }
+            }
+            for (long id : missingIds) {
+                groups.collect(db, id);
+                db.delete(LibraryDatabase.TABLE_SONGS, LibraryDatabase.COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+            }
+            deleted.addAll(missingIds);
+            Log.d(TAG, "removeMissingRows: mediaCount=" + mediaIds.size() + ", indexedCount=" + indexedCount +
+                    ", removed=" + missingIds.size());
+        }
+    }
+
+    private void recordSyncPoint(SharedPreferences.Editor editor) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            try {
+                for (String volume : MediaStore.getExternalVolumeNames(context)) {
+                    editor.putLong(PREF_GENERATION_PREFIX + volume, MediaStore.getGeneration(context, volume));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "recordSyncPoint: Error reading MediaStore generation", e);
+            }
+        } else {
+            editor.putLong(PREF_LAST_SYNC_SECONDS, System.currentTimeMillis() / 1000);
+        }
+    }
+
+    private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR REPLACE INTO " + LibraryDatabase.TABLE_SONGS +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+
+    static Song createSong(long id, String title, String artist, String data, long albumId, long duration) {
+        Uri uri = Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, String.valueOf(id));
+        Uri albumArtUri = Uri.parse("content://media/external/audio/albumart/" + albumId);
+        return new Song(id, title, artist, uri, albumArtUri, duration, data);
+    }
+
+    private SongTable querySongs(String selection, String[] selectionArgs, String orderBy) {
+        return querySongs(selection, selectionArgs, orderBy, null);
+    }
+
+    private SongTable querySongs(String selection, String[] selectionArgs, String orderBy, String limit) {
+        try (Cursor cursor = database.getReadableDatabase().query(LibraryDatabase.TABLE_SONGS, INDEX_PROJECTION,
+                selection, selectionArgs, null, null, orderBy, limit)) {
+            return readSongs(cursor);
+        } catch (Exception e) {
+            Log.e(TAG, "querySongs: Error querying index, selection=" + selection, e);
+            return new SongTable();
+        }
+    }
+
+    private static SongTable readSongs(Cursor cursor) {
+        SongTable songs = new SongTable(cursor.getCount());
+        int idColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_ID);
+        int titleColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_TITLE);
+        int artistColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_ARTIST);
+        int dataColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_DATA);
+        int albumIdColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_ALBUM_ID);
+        int durationColumn = cursor.getColumnIndexOrThrow(LibraryDatabase.COLUMN_DURATION);
+        while (cursor.moveToNext()) {
+            songs.addRow(cursor.getLong(idColumn), cursor.getString(titleColumn), cursor.getString(artistColumn),
+                    cursor.getString(dataColumn), cursor.getLong(albumIdColumn), cursor.getLong(durationColumn));
+        }
+        return songs;
+    }
+
+    private static String keysetSelection(String title, boolean after) {
+        String titleColumn = LibraryDatabase.COLUMN_TITLE;
+        String idColumn = LibraryDatabase.COLUMN_ID;
+        if (title == null) {
+            return after ? "(" + titleColumn + " IS NULL AND " + idColumn + " > ?) OR " + titleColumn + " IS NOT NULL"
+                    : titleColumn + " IS NULL AND " + idColumn + " < ?";
+        }
+        return after ? titleColumn + " > ? OR (" + titleColumn + " = ? AND " + idColumn + " > ?)"
+                : titleColumn + " < ? OR (" + titleColumn + " = ? AND " + idColumn + " < ?) OR " + titleColumn + " IS NULL";
+    }
+
+    private static String[] keysetArgs(String title, long id) {
+        return title == null ? new String[]{String.valueOf(id)} : new String[]{title, title, String.valueOf(id)};
+    }
+
+    private String getMediaStoreVersion() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                return MediaStore.getVersion(context);
+            } catch (Exception e) {
+                Log.e(TAG, "getMediaStoreVersion: Error reading MediaStore version", e);
+            }
+        }
+        return null;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Albums and artists touched by one write pass. Only those groups are aggregated again, each
+     * through the album_id or artist index, so a sync costs time proportional to the groups it
+     * changed rather than to the library.
+     */
+    private static class GroupKeys {
+        private static final String ARTIST_KEY = "IFNULL(" + LibraryDatabase.COLUMN_ARTIST + ", '')";
+        private static final String ALBUM_AGGREGATE = "INSERT INTO " + LibraryDatabase.TABLE_ALBUMS + " SELECT " +
+                LibraryDatabase.COLUMN_ALBUM_ID + ", " + LibraryDatabase.COLUMN_ALBUM + ", " + LibraryDatabase.COLUMN_ARTIST +
+                ", COUNT(*), SUM(" + LibraryDatabase.COLUMN_DURATION + ") FROM " + LibraryDatabase.TABLE_SONGS;
+        private static final String ARTIST_AGGREGATE = "INSERT INTO " + LibraryDatabase.TABLE_ARTISTS + " SELECT " +
+                ARTIST_KEY + ", COUNT(DISTINCT " + LibraryDatabase.COLUMN_ALBUM_ID + "), COUNT(*), SUM(" +
+                LibraryDatabase.COLUMN_DURATION + "), MIN(" + LibraryDatabase.COLUMN_ALBUM_ID + ") FROM " + LibraryDatabase.TABLE_SONGS;
+
+        final Set<Long> albumIds = new HashSet<>();
+        final Set<String> artists = new HashSet<>();
+
+        static void rebuildAll(SQLiteDatabase db) {
+            db.delete(LibraryDatabase.TABLE_ALBUMS, null, null);
+            db.delete(LibraryDatabase.TABLE_ARTISTS, null, null);
+            db.execSQL(ALBUM_AGGREGATE + " GROUP BY " + LibraryDatabase.COLUMN_ALBUM_ID);
+            db.execSQL(ARTIST_AGGREGATE + " GROUP BY " + ARTIST_KEY);
+        }
+
+        /**
+         * Records the groups a song belongs to right now. Call before the row is replaced or
+         * deleted so the group it leaves is refreshed too.
+         */
+        void collect(SQLiteDatabase db, long songId) {
+            try (Cursor cursor = db.query(LibraryDatabase.TABLE_SONGS,
+                    new String[]{LibraryDatabase.COLUMN_ALBUM_ID, LibraryDatabase.COLUMN_ARTIST},
+                    LibraryDatabase.COLUMN_ID + " = ?", new String[]{String.valueOf(songId)}, null, null, null)) {
+                if (cursor.moveToFirst()) {
+                    add(cursor.getLong(0), cursor.getString(1));
+                }
+            }
+        }
+
+        void add(long albumId, String artist) {
+            albumIds.add(albumId);
+            artists.add(artist == null ? "" : artist);
+        }
+
+        void refresh(SQLiteDatabase db) {
+            if (albumIds.isEmpty() && artists.isEmpty()) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            List<String> albumKeys = new ArrayList<>(albumIds.size());
+            for (long albumId : albumIds) {
+                albumKeys.add(String.valueOf(albumId));
+            }
+            for (int start = 0; start < albumKeys.size(); start += MAX_QUERY_ARGS) {
+                String[] chunk = albumKeys.subList(start, Math.min(start + MAX_QUERY_ARGS, albumKeys.size())).toArray(new String[0]);
+                String selection = LibraryDatabase.COLUMN_ALBUM_ID + " IN (" + placeholders(chunk.length) + ")";
+                db.delete(LibraryDatabase.TABLE_ALBUMS, selection, chunk);
+                db.execSQL(ALBUM_AGGREGATE + " WHERE " + selection + " GROUP BY " + LibraryDatabase.COLUMN_ALBUM_ID, chunk);
+            }
+            List<String> artistKeys = new ArrayList<>(artists);
+            for (int start = 0; start < artistKeys.size(); start += MAX_QUERY_ARGS) {
+                List<String> chunkList = artistKeys.subList(start, Math.min(start + MAX_QUERY_ARGS, artistKeys.size()));
+                String[] chunk = chunkList.toArray(new String[0]);
+                String in = " IN (" + placeholders(chunk.length) + ")";
+                db.delete(LibraryDatabase.TABLE_ARTISTS, LibraryDatabase.COLUMN_ARTIST + in, chunk);
+                String selection = LibraryDatabase.COLUMN_ARTIST + in;
+                if (chunkList.contains("")) {
+                    selection = "(" + selection + " OR " + LibraryDatabase.COLUMN_ARTIST + " IS NULL)";
+                }
+                db.execSQL(ARTIST_AGGREGATE + " WHERE " + selection + " GROUP BY " + ARTIST_KEY, chunk);
+            }
+            Log.d(TAG, "GroupKeys: refreshed " + albumIds.size() + " albums and " + artists.size() + " artists, time=" +
+                    (System.nanoTime() - startTime) / 1_000_000 + "ms");
+        }
+    }
+
+    private static class MediaRowReader {
+        final int idColumn;
+        final int titleColumn;
+        final int artistColumn;
+        final int albumColumn;
+        final int dataColumn;
+        final int albumIdColumn;
+        final int durationColumn;
+        final int dateAddedColumn;
+        final int dateModifiedColumn;
+        final int isMusicColumn;
+
+        MediaRowReader(Cursor cursor) {
+            idColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            titleColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+            artistColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            albumColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM);
+            dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
+            albumIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
+            durationColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION);
+            dateAddedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_ADDED);
+            dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATE_MODIFIED);
+            isMusicColumn = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.IS_MUSIC);
+        }
+
+        boolean isIndexable(Cursor cursor) {
+            String data = cursor.getString(dataColumn);
+            return cursor.getInt(isMusicColumn) != 0 && data != null && !data.isEmpty();
+        }
+
+        void bind(SQLiteStatement insert, Cursor cursor) {
+            insert.clearBindings();
+            insert.bindLong(1, cursor.getLong(idColumn));
+            bindStringOrNull(insert, 2, cursor.getString(titleColumn));
+            bindStringOrNull(insert, 3, cursor.getString(artistColumn));
+            bindStringOrNull(insert, 4, cursor.getString(albumColumn));
+            insert.bindString(5, cursor.getString(dataColumn));
+            insert.bindLong(6, cursor.getLong(albumIdColumn));
+            insert.bindLong(7, cursor.getLong(durationColumn));
+            insert.bindLong(8, cursor.getLong(dateAddedColumn));
+            insert.bindLong(9, cursor.getLong(dateModifiedColumn));
+        }
+
+        Song toSong(Cursor cursor) {
+            return createSong(cursor.getLong(idColumn), cursor.getString(titleColumn), cursor.getString(artistColumn),
+                    cursor.getString(dataColumn), cursor.getLong(albumIdColumn), cursor.getLong(durationColumn));
+        }
+    }
+}
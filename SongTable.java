@@ -0,0 +1,423 @@
+package com.example.promusic;
+
+import android.content.ContentUris;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Column-oriented song list. Rows are kept in primitive and string arrays and a {@link Song}
+ * (with its two Uris) is only created the first time a row is read through {@link #get(int)};
+ * after that the same instance is returned so selection state and identity stay stable.
+ * Code that only needs ids, titles or paths should use the per-column accessors, which never
+ * create a Song.
+ *
+ * <p>Rows appended as {@link Song} objects keep that instance. Their duration is the Song's and
+ * their album id is read back from its album art Uri, the same Uri {@link SongRepository}
+ * builds from the album id.
+ *
+ * <p>A table shared between threads is {@link #freeze() frozen} first. Its rows never change
+ * again and every write throws; only the Song cache is still filled in, under the table's lock,
+ * so a frozen table also returns the same Song for a row on every read.
+ */
+public class SongTable extends AbstractList<Song> implements RandomAccess {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] ids;
+    private long[] albumIds;
+    private int[] durations;
+    private String[] titles;
+    private String[] artists;
+    private String[] paths;
+    private Song[] songs;
+    private int size;
+    private boolean frozen = false;
+    private final Map<String, String> stringPool = new HashMap<>();
+
+    public SongTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SongTable(int capacity) {
+        allocate(Math.max(capacity, DEFAULT_CAPACITY));
+    }
+
+    /**
+     * Appends a row without creating a Song for it.
+     */
+    public void addRow(long id, String title, String artist, String path, long albumId, long duration) {
+        checkWritable();
+        ensureCapacity(size + 1);
+        setRow(size, id, title, artist, path, albumId, duration, null);
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Appends row {@code index} of {@code source}, including its Song if it already has one.
+     */
+    public void addRow(SongTable source, int index) {
+        checkWritable();
+        source.checkIndex(index);
+        ensureCapacity(size + 1);
+        setRow(size, source.ids[index], source.titles[index], source.artists[index], source.paths[index],
+                source.albumIds[index], source.durations[index], source.songAt(index));
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Maps a start position in the id array a queue was requested with to the same track's
+     * position in this table, which may have dropped unknown or unreadable ids.
+     */
+    public int indexOfRequested(long[] requestedIds, int requestedIndex) {
+        if (requestedIds == null || requestedIndex < 0 || requestedIndex >= requestedIds.length) {
+            return 0;
+        }
+        int index = indexOfId(requestedIds[requestedIndex]);
+        return index >= 0 ? index : 0;
+    }
+
+    public long getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    public String getTitle(int index) {
+        checkIndex(index);
+        return titles[index];
+    }
+
+    public String getArtist(int index) {
+        checkIndex(index);
+        return artists[index];
+    }
+
+    public String getData(int index) {
+        checkIndex(index);
+        return paths[index];
+    }
+
+    public long getAlbumId(int index) {
+        checkIndex(index);
+        return albumIds[index];
+    }
+
+    public int getDuration(int index) {
+        checkIndex(index);
+        return durations[index];
+    }
+
+    public Uri getUri(int index) {
+        checkIndex(index);
+        Song song = songAt(index);
+        return song != null ? song.getUri()
+                : ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, ids[index]);
+    }
+
+    public long[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * Rows that already have a Song instance. Only these can carry selection state.
+     */
+    public List<Song> getMaterializedSongs() {
+        List<Song> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Song song = songAt(i);
+            if (song != null) {
+                result.add(song);
+            }
+        }
+        return result;
+    }
+
+    public int indexOfId(long id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops rows whose file is missing or unreadable according to {@link FileValidityCache},
+     * compacting the columns in place.
+     */
+    public int retainValidFiles() {
+        checkWritable();
+        FileValidityCache cache = FileValidityCache.getInstance();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (cache.isValid(paths[i])) {
+                if (kept != i) {
+                    moveRow(i, kept);
+                }
+                kept++;
+            }
+        }
+        int removed = size - kept;
+        if (removed > 0) {
+            clearRange(kept, size);
+            size = kept;
+            modCount++;
+        }
+        return removed;
+    }
+
+    @Override
+    public Song get(int index) {
+        checkIndex(index);
+        if (frozen) {
+            synchronized (this) {
+                return materialize(index);
+            }
+        }
+        return materialize(index);
+    }
+
+    /**
+     * Makes the rows read-only so the table can be handed to other threads. From then on the
+     * Song cache is read and filled only under the table's lock.
+     */
+    void freeze() {
+        frozen = true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Song set(int index, Song song) {
+        checkWritable();
+        Song previous = get(index);
+        setRow(index, song.getId(), song.getTitle(), song.getArtist(), song.getData(), albumIdOf(song),
+                song.getDuration(), song);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, Song song) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        checkWritable();
+        ensureCapacity(size + 1);
+        shift(index, index + 1, size - index);
+        setRow(index, song.getId(), song.getTitle(), song.getArtist(), song.getData(), albumIdOf(song),
+                song.getDuration(), song);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Song> collection) {
+        checkWritable();
+        if (!(collection instanceof SongTable)) {
+            return super.addAll(collection);
+        }
+        SongTable other = (SongTable) collection;
+        int count = other.size;
+        if (count == 0) {
+            return false;
+        }
+        ensureCapacity(size + count);
+        System.arraycopy(other.ids, 0, ids, size, count);
+        System.arraycopy(other.albumIds, 0, albumIds, size, count);
+        System.arraycopy(other.durations, 0, durations, size, count);
+        System.arraycopy(other.titles, 0, titles, size, count);
+        System.arraycopy(other.paths, 0, paths, size, count);
+        other.copySongs(songs, size, count);
+        for (int i = 0; i < count; i++) {
+            artists[size + i] = intern(other.artists[i]);
+        }
+        size += count;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Song remove(int index) {
+        checkWritable();
+        Song removed = get(index);
+        shift(index + 1, index, size - index - 1);
+        size--;
+        clearRange(size, size + 1);
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        checkWritable();
+        clearRange(0, size);
+        size = 0;
+        stringPool.clear();
+        modCount++;
+    }
+
+    /**
+     * Looks only at rows that already have a Song, plus rows with the same id. This way a
+     * lookup does not create a Song for every row.
+     */
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof Song)) {
+            return -1;
+        }
+        long id = ((Song) o).getId();
+        for (int i = 0; i < size; i++) {
+            if ((ids[i] == id || songAt(i) != null) && get(i).equals(o)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void setRow(int index, long id, String title, String artist, String path, long albumId, long duration, Song song) {
+        ids[index] = id;
+        titles[index] = title;
+        artists[index] = intern(artist);
+        paths[index] = path;
+        albumIds[index] = albumId;
+        durations[index] = (int) Math.min(duration, Integer.MAX_VALUE);
+        songs[index] = song;
+    }
+
+    private Song materialize(int index) {
+        Song song = songs[index];
+        if (song == null) {
+            song = SongRepository.createSong(ids[index], titles[index], artists[index], paths[index],
+                    albumIds[index], durations[index]);
+            songs[index] = song;
+        }
+        return song;
+    }
+
+    /**
+     * The cached Song of row {@code index}, or null, without creating one.
+     */
+    private Song songAt(int index) {
+        if (frozen) {
+            synchronized (this) {
+                return songs[index];
+            }
+        }
+        return songs[index];
+    }
+
+    private void copySongs(Song[] target, int targetIndex, int count) {
+        if (frozen) {
+            synchronized (this) {
+                System.arraycopy(songs, 0, target, targetIndex, count);
+            }
+            return;
+        }
+        System.arraycopy(songs, 0, target, targetIndex, count);
+    }
+
+    /**
+     * The album id at the end of the Song's album art Uri, or -1 if it has none.
+     */
+    private static long albumIdOf(Song song) {
+        Uri albumArtUri = song.getAlbumArtUri();
+        if (albumArtUri == null) {
+            return -1;
+        }
+        try {
+            return ContentUris.parseId(albumArtUri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            return value;
+        }
+        return pooled;
+    }
+
+    private void moveRow(int from, int to) {
+        ids[to] = ids[from];
+        albumIds[to] = albumIds[from];
+        durations[to] = durations[from];
+        titles[to] = titles[from];
+        artists[to] = artists[from];
+        paths[to] = paths[from];
+        songs[to] = songs[from];
+    }
+
+    private void shift(int from, int to, int count) {
+        if (count <= 0) {
+            return;
+        }
+        System.arraycopy(ids, from, ids, to, count);
+        System.arraycopy(albumIds, from, albumIds, to, count);
+        System.arraycopy(durations, from, durations, to, count);
+        System.arraycopy(titles, from, titles, to, count);
+        System.arraycopy(artists, from, artists, to, count);
+        System.arraycopy(paths, from, paths, to, count);
+        System.arraycopy(songs, from, songs, to, count);
+    }
+
+    private void clearRange(int from, int to) {
+        Arrays.fill(titles, from, to, null);
+        Arrays.fill(artists, from, to, null);
+        Arrays.fill(paths, from, to, null);
+        Arrays.fill(songs, from, to, null);
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(required, ids.length + (ids.length >> 1));
+        ids = Arrays.copyOf(ids, capacity);
+        albumIds = Arrays.copyOf(albumIds, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        artists = Arrays.copyOf(artists, capacity);
+        paths = Arrays.copyOf(paths, capacity);
+        songs = Arrays.copyOf(songs, capacity);
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        albumIds = new long[capacity];
+        durations = new int[capacity];
+        titles = new String[capacity];
+        artists = new String[capacity];
+        paths = new String[capacity];
+        songs = new Song[capacity];
+    }
+
+    private void checkWritable() {
+        if (frozen) {
+            throw new IllegalStateException("SongTable is frozen");
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
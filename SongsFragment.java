@@ -9,8 +9,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -18,6 +16,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.MediaStore;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -26,29 +25,51 @@ import android.widget.Toast;import androidx.activity.result.ActivityResultLaunch
 import androidx.activity.result.IntentSenderRequest;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.SearchView;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;public class SongsFragment extends Fragment implements LocalSongAdapter.OnSongInteractionListener {
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;public class SongsFragment extends Fragment implements LocalSongAdapter.OnSongInteractionListener,
+        SongRepository.OnLibraryChangedListener {
     private static final String TAG = "SongsFragment";
     private RecyclerView recyclerView;
     private View emptyStateView;
     private LocalSongAdapter adapter;
-    private final List<Song> songList = new ArrayList<>();
+    private final SongTable songList = new SongTable();
     private boolean isFavorites = false;
     private boolean isRecentlyAdded = false;
     private boolean isRecentlyPlayed = false;
     private boolean isFrequentlyPlayed = false;
+    private long albumId = -1;
+    private String artistFilter = null;
     private boolean isLongClickInProgress = false;
     private CustomActionModeListener actionModeListener;
     private ActivityResultLauncher<IntentSenderRequest> deleteLauncher;
     private BroadcastReceiver mediaScanReceiver;
+    private final List<Long> pendingDeleteIds = new ArrayList<>();
+    private static final int FIRST_PAGE_SIZE = 50;
+    private static final int PAGING_THRESHOLD = 2000;
+    private PagedSongList pagedSongs;
+    private final ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile int loadGeneration = 0;
+    private int listVersion = 0;
+    private static final int SEARCH_LIMIT = 500;
+    private static final long SEARCH_DEBOUNCE_MS = 150;
+    private SearchView searchView;
+    private String searchQuery = "";
+    private boolean showingSearchResults = false;
+    private final Runnable searchRunnable = this::loadSongs;
 
     public void onAttach(@NonNull Context context) {
         super.onAttach(context);
@@ -65,6 +86,7 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         View view = inflater.inflate(R.layout.fragment_songs, container, false);
         recyclerView = view.findViewById(R.id.recycler_view_songs);
         emptyStateView = view.findViewById(R.id.empty_state_container);
+        searchView = view.findViewById(R.id.search_view_songs);
 
 
         Bundle args = getArguments();
@@ -73,14 +95,28 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
             isRecentlyAdded = args.getBoolean("isRecentlyAdded", false);
             isRecentlyPlayed = args.getBoolean("isRecentlyPlayed", false);
             isFrequentlyPlayed = args.getBoolean("isFrequentlyPlayed", false);
+            albumId = args.getLong("albumId", -1);
+            artistFilter = args.getString("artist");
             Log.d(TAG, "onCreateView: isFavorites=" + isFavorites + ", isRecentlyAdded=" + isRecentlyAdded +
-                    ", isRecentlyPlayed=" + isRecentlyPlayed + ", isFrequentlyPlayed=" + isFrequentlyPlayed);
+                    ", isRecentlyPlayed=" + isRecentlyPlayed + ", isFrequentlyPlayed=" + isFrequentlyPlayed +
+                    ", albumId=" + albumId + ", artist=" + artistFilter);
         }
+        setupSearchView();
 
 
         recyclerView.setLayoutManager(new LocalSongAdapter.CustomLinearLayoutManager(requireContext()));
         adapter = new LocalSongAdapter(songList, this);
         recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (pagedSongs != null && view.getLayoutManager() instanceof LinearLayoutManager) {
+                    LinearLayoutManager layoutManager = (LinearLayoutManager) view.getLayoutManager();
+                    pagedSongs.onVisibleRangeChanged(layoutManager.findFirstVisibleItemPosition(),
+                            layoutManager.findLastVisibleItemPosition());
+                }
+            }
+        });
 
 
         deleteLauncher = registerForActivityResult(
@@ -88,9 +124,12 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
                 result -> {
                     if (result.getResultCode() == Activity.RESULT_OK) {
                         Toast.makeText(requireContext(), "songsRemoved", Toast.LENGTH_SHORT).show();
+                        removeFromIndex(new ArrayList<>(pendingDeleteIds));
+                        pendingDeleteIds.clear();
                         loadSongs();
                         clearSelection();
                     } else {
+                        pendingDeleteIds.clear();
                         Toast.makeText(requireContext(), "deletionCanceled", Toast.LENGTH_SHORT).show();
                     }
                 }
@@ -116,6 +155,8 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
             Toast.makeText(requireContext(), "mediaScannerRegistrationError", Toast.LENGTH_SHORT).show();
         }
 
+        SongRepository.getInstance(requireContext()).addListener(this);
+
 
         adapter.preloadImages(requireContext());
 
@@ -128,6 +169,9 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        loadGeneration++;
+        mainHandler.removeCallbacks(searchRunnable);
+        SongRepository.getInstance(requireContext()).removeListener(this);
 
         if (mediaScanReceiver != null) {
             try {
@@ -139,6 +183,12 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        loadExecutor.shutdownNow();
+    }
+
     private void checkPermissionsAndLoadSongs() {
         Log.d(TAG, "checkPermissionsAndLoadSongs: Checking permissions");
 
@@ -157,50 +207,285 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         }
     }
 
+    // Runs on loadExecutor, so a later loadSongs() reads the index without these songs.
+    private void removeFromIndex(List<Long> songIds) {
+        final Context context = requireContext().getApplicationContext();
+        loadExecutor.execute(() -> SongRepository.getInstance(context).removeSongs(songIds));
+    }
+
     private void loadSongs() {
-        Log.d(TAG, "loadSongs: Loading songs for playlist, current songList size=" + songList.size());
-        songList.clear();
-        Log.d(TAG, "loadSongs: Cleared songList");
-        List<Song> loadedSongs;
-        if (isFavorites) {
-            loadedSongs = loadFavoritesSongs();
-        } else if (isRecentlyAdded) {
-            loadedSongs = loadRecentlyAddedSongs();
-        } else if (isRecentlyPlayed) {
-            loadedSongs = loadRecentlyPlayedSongs();
-        } else if (isFrequentlyPlayed) {
-            loadedSongs = loadFrequentlyPlayedSongs();
+        final int generation = ++loadGeneration;
+        final Context context = requireContext().getApplicationContext();
+        final String query = isAllSongsTab() ? searchQuery : "";
+        final boolean searching = !query.isEmpty();
+        final boolean modeChanged = searching != showingSearchResults;
+        final boolean showFirstPage = songList.isEmpty() && !searching && isAllSongsTab();
+        final SongTable previous = new SongTable(songList.size());
+        previous.addAll(songList);
+        final int snapshotVersion = listVersion;
+        Log.d(TAG, "loadSongs: generation=" + generation + ", current songList size=" + songList.size());
+
+        loadExecutor.execute(() -> {
+            if (generation != loadGeneration) {
+                Log.d(TAG, "loadSongs: generation " + generation + " superseded before start");
+                return;
+            }
+            long startTime = System.nanoTime();
+            if (isAllSongsTab() && !searching && SongRepository.getInstance(context).getSongCount() > PAGING_THRESHOLD) {
+                PagedSongList paged = new PagedSongList(SongRepository.getInstance(context));
+                Log.d(TAG, "loadSongs: pagedMode, size=" + paged.size() + ", time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+                mainHandler.post(() -> {
+                    if (generation == loadGeneration && recyclerView != null) {
+                        showPagedSongs(paged);
+                    }
+                });
+                return;
+            }
+            if (showFirstPage) {
+                SongTable firstPage = SongRepository.getInstance(context).getAllSongs(FIRST_PAGE_SIZE);
+                firstPage.retainValidFiles();
+                mainHandler.post(() -> {
+                    if (generation != loadGeneration || recyclerView == null || !songList.isEmpty() || pagedSongs != null) {
+                        return;
+                    }
+                    songList.addAll(firstPage);
+                    listVersion++;
+                    updateUI();
+                    Log.d(TAG, "loadSongs: firstPageShown, size=" + firstPage.size() + ", time=" +
+                            (System.nanoTime() - startTime) / 1_000_000 + "ms");
+                });
+            }
+
+            List<Song> loadedSongs;
+            if (isFavorites) {
+                loadedSongs = loadFavoritesSongs(context);
+            } else if (isRecentlyAdded) {
+                loadedSongs = loadRecentlyAddedSongs(context);
+            } else if (isRecentlyPlayed) {
+                loadedSongs = loadRecentlyPlayedSongs(context);
+            } else if (isFrequentlyPlayed) {
+                loadedSongs = loadFrequentlyPlayedSongs(context);
+            } else if (isGroupTab()) {
+                loadedSongs = loadGroupSongs(context);
+            } else if (searching) {
+                loadedSongs = searchSongs(context, query);
+            } else {
+                loadedSongs = loadAllSongs(context);
+            }
+            if (generation != loadGeneration) {
+                Log.d(TAG, "loadSongs: generation " + generation + " superseded after query");
+                return;
+            }
+            SongTable loaded = new SongTable(loadedSongs.size());
+            loaded.addAll(loadedSongs);
+            DiffUtil.DiffResult diff = modeChanged ? null : DiffUtil.calculateDiff(new SongTableDiff(previous, loaded), false);
+            Log.d(TAG, "loadSongs: Loaded " + loaded.size() + " songs, time=" + (System.nanoTime() - startTime) / 1_000_000 + "ms");
+
+            mainHandler.post(() -> {
+                if (generation != loadGeneration || recyclerView == null) {
+                    return;
+                }
+                boolean diffStillValid = listVersion == snapshotVersion && pagedSongs == null;
+                if (pagedSongs != null) {
+                    pagedSongs = null;
+                    adapter = new LocalSongAdapter(songList, this);
+                    recyclerView.swapAdapter(adapter, false);
+                }
+                songList.clear();
+                songList.addAll(loaded);
+                listVersion++;
+                showingSearchResults = searching;
+                if (diffStillValid && diff != null) {
+                    // The adapter shares songList, so the diff is all it needs to hear.
+                    updateViews();
+                    diff.dispatchUpdatesTo(adapter);
+                } else {
+                    updateUI();
+                    if (modeChanged) {
+                        recyclerView.scrollToPosition(0);
+                    }
+                }
+            });
+        });
+    }
+
+    private void setupSearchView() {
+        if (!isAllSongsTab()) {
+            searchView.setVisibility(View.GONE);
+            return;
+        }
+        searchView.setVisibility(View.VISIBLE);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                scheduleSearch(newText);
+                return true;
+            }
+        });
+        Log.d(TAG, "setupSearchView: SearchView listener set");
+    }
+
+    private void scheduleSearch(String text) {
+        String query = text == null ? "" : text.trim();
+        if (query.equals(searchQuery)) {
+            return;
+        }
+        searchQuery = query;
+        mainHandler.removeCallbacks(searchRunnable);
+        if (query.isEmpty()) {
+            loadSongs();
         } else {
-            loadedSongs = loadAllSongs();
+            mainHandler.postDelayed(searchRunnable, SEARCH_DEBOUNCE_MS);
         }
-        songList.addAll(loadedSongs);
-        Log.d(TAG, "loadSongs: Loaded " + loadedSongs.size() + " songs, new songList size=" + songList.size());
-        for (Song song : songList) {
-            Log.d(TAG, "loadSongs: Song in list: " + song.getTitle() + ", ID=" + song.getId() + ", path=" + song.getData());
+    }
+
+    private boolean isAllSongsTab() {
+        return !isFavorites && !isRecentlyAdded && !isRecentlyPlayed && !isFrequentlyPlayed && !isGroupTab();
+    }
+
+    private boolean isGroupTab() {
+        return albumId >= 0 || artistFilter != null;
+    }
+
+    private List<Song> displayedSongs() {
+        return pagedSongs != null ? pagedSongs : songList;
+    }
+
+    private void showPagedSongs(PagedSongList paged) {
+        if (pagedSongs != null) {
+            pagedSongs.copySelectionTo(paged);
         }
+        pagedSongs = paged;
+        paged.setOnPageLoadedListener((first, count) -> mainHandler.post(() -> {
+            if (pagedSongs == paged && adapter != null) {
+                adapter.notifyItemRangeChanged(first, count);
+            }
+        }));
+        showingSearchResults = false;
+        songList.clear();
+        listVersion++;
+        adapter = new LocalSongAdapter(pagedSongs, this);
+        adapter.setActionMode(isLongClickInProgress);
+        recyclerView.swapAdapter(adapter, false);
         updateUI();
+        Log.d(TAG, "showPagedSongs: size=" + pagedSongs.size());
+    }
+
+    @Override
+    public void onLibraryChanged(LibraryDelta delta) {
+        if (recyclerView == null || !isAdded()) {
+            return;
+        }
+        Log.d(TAG, "onLibraryChanged: " + delta);
+        if (delta.isFullReload() || !isAllSongsTab() || pagedSongs != null || showingSearchResults) {
+            loadSongs();
+            return;
+        }
+        applyLibraryDelta(delta);
+    }
+
+    private void applyLibraryDelta(LibraryDelta delta) {
+        Map<Long, Song> upserts = new HashMap<>();
+        for (Song song : delta.getUpsertedSongs()) {
+            upserts.put(song.getId(), song);
+        }
+
+        List<Integer> removedPositions = new ArrayList<>();
+        for (int i = songList.size() - 1; i >= 0; i--) {
+            long id = songList.getId(i);
+            Song replacement = upserts.get(id);
+            if (replacement != null) {
+                replacement.setSelected(songList.get(i).isSelected());
+            }
+            if (replacement != null || delta.getDeletedIds().contains(id)) {
+                songList.remove(i);
+                removedPositions.add(i);
+            }
+        }
+
+        List<Integer> insertedPositions = new ArrayList<>();
+        for (Song song : delta.getUpsertedSongs()) {
+            if (!FileValidityCache.getInstance().isValid(song.getData())) {
+                Log.w(TAG, "applyLibraryDelta: Skipping song " + song.getTitle() + ", file not found or inaccessible: " + song.getData());
+                continue;
+            }
+            int position = findSortedPosition(song);
+            songList.add(position, song);
+            insertedPositions.add(position);
+        }
+
+        listVersion++;
+        updateViews();
+        for (int position : removedPositions) {
+            adapter.notifyItemRemoved(position);
+        }
+        for (int position : insertedPositions) {
+            adapter.notifyItemInserted(position);
+        }
+        Log.d(TAG, "applyLibraryDelta: removed=" + removedPositions.size() + ", inserted=" + insertedPositions.size() +
+                ", songList size=" + songList.size());
+    }
+
+    private int findSortedPosition(Song song) {
+        int low = 0;
+        int high = songList.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareByTitle(songList.getTitle(mid), songList.getId(mid), song.getTitle(), song.getId()) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareByTitle(String titleA, long idA, String titleB, long idB) {
+        if (titleA == null || titleB == null) {
+            if (titleA != null) {
+                return 1;
+            }
+            return titleB != null ? -1 : Long.compare(idA, idB);
+        }
+        int result = titleA.compareTo(titleB);
+        return result != 0 ? result : Long.compare(idA, idB);
     }
 
     private void updateUI() {
-        Log.d(TAG, "updateUI: Updating UI, songList size=" + songList.size());
-        if (songList.isEmpty()) {
+        if (pagedSongs == null && !songList.isEmpty()) {
+            Log.d(TAG, "updateUI: Updating adapter with " + songList.size() + " songs");
+            adapter.updateSongs(songList);
+        }
+        updateViews();
+    }
+
+    // Toggles the list and the empty state without rebinding rows; callers that already
+    // notified the adapter of item changes use this instead of updateUI().
+    private void updateViews() {
+        List<Song> songs = displayedSongs();
+        Log.d(TAG, "updateViews: songList size=" + songs.size());
+        if (songs.isEmpty()) {
             recyclerView.setVisibility(View.GONE);
             emptyStateView.setVisibility(View.VISIBLE);
             adapter.setActionMode(false);
-            Log.d(TAG, "updateUI: Showing empty state");
+            Log.d(TAG, "updateViews: Showing empty state");
         } else {
             recyclerView.setVisibility(View.VISIBLE);
             emptyStateView.setVisibility(View.GONE);
-            Log.d(TAG, "updateUI: Updating adapter with " + songList.size() + " songs");
-            adapter.updateSongs(songList);
             adapter.setActionMode(isLongClickInProgress);
-            Log.d(TAG, "updateUI: Adapter updated, isActionMode=" + isLongClickInProgress);
+            Log.d(TAG, "updateViews: isActionMode=" + isLongClickInProgress);
         }
 
 
         if (isLongClickInProgress && actionModeListener != null) {
-            actionModeListener.showCustomActionMode(getSelectedSongs().size());
-            Log.d(TAG, "updateUI: Updated ActionMode with " + getSelectedSongs().size() + " selected songs");
+            actionModeListener.showCustomActionMode(getSelectedCount());
+            Log.d(TAG, "updateViews: Updated ActionMode with " + getSelectedCount() + " selected songs");
         }
     }
 
@@ -212,107 +497,69 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         adapter.setActionMode(false);
     }
 
-    private List<Song> loadAllSongs() {
-        List<Song> songs = new ArrayList<>();
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-        try (Cursor cursor = requireContext().getContentResolver().query(uri, projection, selection, null, MediaStore.Audio.Media.TITLE)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Song song = createSongFromCursor(cursor);
-                    File file = new File(song.getData());
-                    if (file.exists() && file.canRead()) {
-                        songs.add(song);
-                        Log.d(TAG, "loadAllSongs: Added song " + song.getTitle() + ", path=" + song.getData());
-                    } else {
-                        Log.w(TAG, "loadAllSongs: Skipping song " + song.getTitle() + ", file not found or inaccessible: " + song.getData());
-                    }
-                }
-                Log.d(TAG, "loadAllSongs: Loaded " + songs.size() + " songs");
-            } else {
-                Log.w(TAG, "loadAllSongs: Cursor is null");
-            }
+    private List<Song> loadAllSongs(Context context) {
+        SongTable songs = new SongTable();
+        try {
+            songs = SongRepository.getInstance(context).getAllSongs();
+            int skipped = songs.retainValidFiles();
+            Log.d(TAG, "loadAllSongs: Loaded " + songs.size() + " songs, skipped " + skipped + " inaccessible files");
         } catch (Exception e) {
             Log.e(TAG, "loadAllSongs: Error loading songs", e);
-            Toast.makeText(requireContext(), "errorLoadingSongs", Toast.LENGTH_SHORT).show();
+            mainHandler.post(() -> Toast.makeText(context, "errorLoadingSongs", Toast.LENGTH_SHORT).show());
         }
         return songs;
     }
 
-    private List<Song> loadRecentlyAddedSongs() {
-        List<Song> songs = new ArrayList<>();
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media.DATE_ADDED + " > ?";
-        String[] selectionArgs = {String.valueOf((System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000) / 1000)};
-        try (Cursor cursor = requireContext().getContentResolver().query(uri, projection, selection, selectionArgs, MediaStore.Audio.Media.DATE_ADDED + " DESC")) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Song song = createSongFromCursor(cursor);
-                    File file = new File(song.getData());
-                    if (file.exists() && file.canRead()) {
-                        songs.add(song);
-                        Log.d(TAG, "loadRecentlyAddedSongs: Added song " + song.getTitle() + ", path=" + song.getData());
-                    } else {
-                        Log.w(TAG, "loadRecentlyAddedSongs: Skipping song " + song.getTitle() + ", file not found or inaccessible: " + song.getData());
-                    }
-                }
-                Log.d(TAG, "loadRecentlyAddedSongs: Loaded " + songs.size() + " songs");
-            } else {
-                Log.w(TAG, "loadRecentlyAddedSongs: Cursor is null");
-            }
+    private List<Song> loadGroupSongs(Context context) {
+        SongTable songs = new SongTable();
+        try {
+            SongRepository repository = SongRepository.getInstance(context);
+            songs = albumId >= 0 ? repository.getSongsByAlbum(albumId) : repository.getSongsByArtist(artistFilter);
+            int skipped = songs.retainValidFiles();
+            Log.d(TAG, "loadGroupSongs: Loaded " + songs.size() + " songs, skipped " + skipped + " inaccessible files");
+        } catch (Exception e) {
+            Log.e(TAG, "loadGroupSongs: Error loading group", e);
+            mainHandler.post(() -> Toast.makeText(context, "errorLoadingSongs", Toast.LENGTH_SHORT).show());
+        }
+        return songs;
+    }
+
+    private List<Song> searchSongs(Context context, String query) {
+        SongTable songs = new SongTable();
+        try {
+            songs = SongRepository.getInstance(context).searchSongs(query, SEARCH_LIMIT);
+            Log.d(TAG, "searchSongs: query=" + query + ", results=" + songs.size());
+        } catch (Exception e) {
+            Log.e(TAG, "searchSongs: Error searching library", e);
+        }
+        return songs;
+    }
+
+    private List<Song> loadRecentlyAddedSongs(Context context) {
+        SongTable songs = new SongTable();
+        long addedAfter = (System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000) / 1000;
+        try {
+            songs = SongRepository.getInstance(context).getRecentlyAddedSongs(addedAfter);
+            int skipped = songs.retainValidFiles();
+            Log.d(TAG, "loadRecentlyAddedSongs: Loaded " + songs.size() + " songs, skipped " + skipped + " inaccessible files");
         } catch (Exception e) {
             Log.e(TAG, "loadRecentlyAddedSongs: Error loading recently added", e);
-            Toast.makeText(requireContext(), "errorLoadingRecentlyAddedSongs", Toast.LENGTH_SHORT).show();
+            mainHandler.post(() -> Toast.makeText(context, "errorLoadingRecentlyAddedSongs", Toast.LENGTH_SHORT).show());
         }
         return songs;
     }
 
-    private List<Song> loadFavoritesSongs() {
+    private List<Song> loadFavoritesSongs(Context context) {
         List<Song> songs = new ArrayList<>();
-        SharedPreferences prefs = requireContext().getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
+        SharedPreferences prefs = context.getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
         Set<String> favoriteSongIds = new HashSet<>(prefs.getStringSet("favorites", new HashSet<>()));
         if (favoriteSongIds.isEmpty()) {
             Log.d(TAG, "loadFavoritesSongs: Favorites is empty");
             return songs;
         }
 
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media._ID + " IN (" + String.join(",", Collections.nCopies(favoriteSongIds.size(), "?")) + ")";
-        String[] selectionArgs = favoriteSongIds.toArray(new String[0]);
-
-        try (Cursor cursor = requireContext().getContentResolver().query(uri, projection, selection, selectionArgs, MediaStore.Audio.Media.TITLE)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Song song = createSongFromCursor(cursor);
-                    songs.add(song);
-                }
-            }
+        try {
+            songs.addAll(SongRepository.getInstance(context).getSongsByIds(favoriteSongIds, LibraryDatabase.COLUMN_TITLE));
         } catch (Exception e) {
             Log.e(TAG, "loadFavoritesSongs: Error loading favorites", e);
         }
@@ -320,9 +567,9 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         return songs;
     }
 
-    private List<Song> loadRecentlyPlayedSongs() {
+    private List<Song> loadRecentlyPlayedSongs(Context context) {
         List<Song> songs = new ArrayList<>();
-        SharedPreferences prefs = requireContext().getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
+        SharedPreferences prefs = context.getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
         Set<String> playedSongIds = new HashSet<>();
         Map<String, Long> lastPlayedMap = new HashMap<>();
         for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
@@ -340,30 +587,14 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
             return songs;
         }
 
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media._ID + " IN (" + String.join(",", Collections.nCopies(playedSongIds.size(), "?")) + ")";
-        String[] selectionArgs = playedSongIds.toArray(new String[0]);
-
-        try (Cursor cursor = requireContext().getContentResolver().query(uri, projection, selection, selectionArgs, null)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Song song = createSongFromCursor(cursor);
-                    String songId = String.valueOf(song.getId());
-                    Long lastPlayed = lastPlayedMap.get(songId);
-                    if (lastPlayed != null) {
-                        song.setLastPlayed(lastPlayed);
-                    }
-                    songs.add(song);
+        try {
+            for (Song song : SongRepository.getInstance(context).getSongsByIds(playedSongIds, null)) {
+                String songId = String.valueOf(song.getId());
+                Long lastPlayed = lastPlayedMap.get(songId);
+                if (lastPlayed != null) {
+                    song.setLastPlayed(lastPlayed);
                 }
+                songs.add(song);
             }
         } catch (Exception e) {
             Log.e(TAG, "loadRecentlyPlayedSongs: Error loading recently played", e);
@@ -375,9 +606,9 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         return songs;
     }
 
-    private List<Song> loadFrequentlyPlayedSongs() {
+    private List<Song> loadFrequentlyPlayedSongs(Context context) {
         List<Song> songs = new ArrayList<>();
-        SharedPreferences prefs = requireContext().getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
+        SharedPreferences prefs = context.getSharedPreferences("PlaybackPrefs", Context.MODE_PRIVATE);
         Set<String> frequentSongIds = new HashSet<>();
         for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
             if (entry.getKey().startsWith("play_count_")) {
@@ -401,26 +632,8 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
             return songs;
         }
 
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = {
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.DATA,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " +
-                MediaStore.Audio.Media._ID + " IN (" + String.join(",", Collections.nCopies(frequentSongIds.size(), "?")) + ")";
-        String[] selectionArgs = frequentSongIds.toArray(new String[0]);
-
-        try (Cursor cursor = requireContext().getContentResolver().query(uri, projection, selection, selectionArgs, null)) {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    Song song = createSongFromCursor(cursor);
-                    songs.add(song);
-                }
-            }
+        try {
+            songs.addAll(SongRepository.getInstance(context).getSongsByIds(frequentSongIds, null));
         } catch (Exception e) {
             Log.e(TAG, "loadFrequentlyPlayedSongs: Error loading frequently played", e);
         }
@@ -428,33 +641,29 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         return songs;
     }
 
-    private Song createSongFromCursor(Cursor cursor) {
-        long id = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID));
-        String title = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE));
-        String artist = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST));
-        String data = cursor.getString(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA));
-        long albumId = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID));
-        long duration = cursor.getLong(cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DURATION));
-        Uri uri = Uri.withAppendedPath(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, String.valueOf(id));
-        Uri albumArtUri = Uri.parse("content://media/external/audio/albumart/" + albumId);
-        return new Song(id, title, artist, uri, albumArtUri, duration, data);
-    }
-
     @Override
     public void onSongClick(Song song) {
+        if (song.getId() < 0) {
+            // A paged-list placeholder whose page is still loading.
+            return;
+        }
         if (isLongClickInProgress) {
             toggleSelection(song, adapter.getSongs().indexOf(song));
         } else {
 
             Intent intent = new Intent(requireContext(), MusicPlayerActivity.class);
-            long[] songIds = new long[songList.size()];
-            for (int i = 0; i < songList.size(); i++) {
-                songIds[i] = songList.get(i).getId();
+            if (pagedSongs != null) {
+                // The service resolves the whole library off the main thread; only the id travels.
+                intent.putExtra("media_id", LibraryBrowseTree.getSongMediaId(LibraryBrowseTree.SONGS_ID, song.getId()));
+                startActivity(intent);
+                Log.d(TAG, "onSongClick: Starting MusicPlayerActivity for " + song.getTitle() + " in all songs");
+                return;
             }
-            intent.putExtra("song_ids", songIds);
-            intent.putExtra("current_index", songList.indexOf(song));
+            int index = displayedSongs().indexOf(song);
+            intent.putExtra("song_ids", songList.getIds());
+            intent.putExtra("current_index", index);
             startActivity(intent);
-            Log.d(TAG, "onSongClick: Starting MusicPlayerActivity for " + song.getTitle() + ", index=" + songList.indexOf(song));
+            Log.d(TAG, "onSongClick: Starting MusicPlayerActivity for " + song.getTitle() + ", index=" + index);
         }
     }
 
@@ -466,6 +675,9 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
                 Log.d(TAG, "onSongLongClick: Ignored due to ongoing long click processing");
                 return;
             }
+            if (song.getId() < 0) {
+                return;
+            }
             isLongClickInProgress = true;
 
             RecyclerView.ViewHolder holder = recyclerView.findViewHolderForAdapterPosition(position);
@@ -477,10 +689,13 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
             boolean isSelected = !song.isSelected();
             song.setSelected(isSelected);
+            if (pagedSongs != null) {
+                pagedSongs.onSelectionChanged(song);
+            }
             adapter.notifyItemChanged(position, "selection_changed");
 
             ((LocalSongAdapter.SongViewHolder) holder).toggleSelection();
-            int selectedCount = getSelectedSongs().size();
+            int selectedCount = getSelectedCount();
             Log.d(TAG, "onSongLongClick: Updated selectedCount to " + selectedCount);
 
             if (selectedCount > 0 && actionModeListener != null) {
@@ -502,6 +717,9 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
     public void onSongToggleSelection(Song song, int position) {
         try {
             Log.d(TAG, "onSongToggleSelection: Toggling selection for song = " + song.getTitle() + ", position = " + position);
+            if (song.getId() < 0) {
+                return;
+            }
             RecyclerView.ViewHolder holder = recyclerView.findViewHolderForAdapterPosition(position);
             if (!(holder instanceof LocalSongAdapter.SongViewHolder)) {
                 Log.w(TAG, "onSongToggleSelection: Invalid or null ViewHolder for position = " + position);
@@ -510,10 +728,13 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
             boolean isSelected = !song.isSelected();
             song.setSelected(isSelected);
+            if (pagedSongs != null) {
+                pagedSongs.onSelectionChanged(song);
+            }
             adapter.notifyItemChanged(position, "selection_changed");
 
             ((LocalSongAdapter.SongViewHolder) holder).toggleSelection();
-            int selectedCount = getSelectedSongs().size();
+            int selectedCount = getSelectedCount();
             Log.d(TAG, "onSongToggleSelection: Updated selectedCount to " + selectedCount);
 
             if (selectedCount == 0 && actionModeListener != null) {
@@ -531,7 +752,10 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
     public void deleteSelectedSongs() {
         Log.d(TAG, "deleteSelectedSongs: Initiating deletion process");
-        List<Song> selected = getSelectedSongs();
+        loadSelectedSongs(this::deleteSongs);
+    }
+
+    private void deleteSongs(List<Song> selected) {
         if (selected.isEmpty()) {
             Toast.makeText(requireContext(), "songsNotSelected", Toast.LENGTH_SHORT).show();
             Log.w(TAG, "deleteSelectedSongs: No songs selected");
@@ -583,8 +807,10 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
         Log.d(TAG, "performDelete: Starting deletion of " + songsToDelete.size() + " songs");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             List<Uri> urisToDelete = new ArrayList<>();
+            pendingDeleteIds.clear();
             for (Song song : songsToDelete) {
                 urisToDelete.add(song.getUri());
+                pendingDeleteIds.add(song.getId());
             }
             try {
                 PendingIntent pi = MediaStore.createDeleteRequest(requireContext().getContentResolver(), urisToDelete);
@@ -603,18 +829,25 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
         int failedCount = 0;
         List<Integer> removedPositions = new ArrayList<>();
+        List<Long> removedIds = new ArrayList<>();
         for (Song song : new ArrayList<>(songsToDelete)) {
             try {
-                int position = songList.indexOf(song);
-                if (position == -1) {
-                    Log.w(TAG, "performDelete: Song not found in songList: " + song.getTitle());
-                    failedCount++;
-                    continue;
+                int position = -1;
+                if (pagedSongs == null) {
+                    position = songList.indexOf(song);
+                    if (position == -1) {
+                        Log.w(TAG, "performDelete: Song not found in songList: " + song.getTitle());
+                        failedCount++;
+                        continue;
+                    }
                 }
                 int result = requireContext().getContentResolver().delete(song.getUri(), null, null);
                 if (result > 0) {
-                    songList.remove(position);
-                    removedPositions.add(position);
+                    if (position >= 0) {
+                        songList.remove(position);
+                        removedPositions.add(position);
+                    }
+                    removedIds.add(song.getId());
                     Log.d(TAG, "performDelete: Successfully deleted song: " + song.getTitle());
                 } else {
                     failedCount++;
@@ -630,13 +863,20 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
             }
         }
 
+        removeFromIndex(removedIds);
+
         if (failedCount > 0) {
             Toast.makeText(requireContext(), "failedToUninstall " + failedCount + " songs", Toast.LENGTH_SHORT).show();
             Log.w(TAG, "performDelete: Failed to delete " + failedCount + " songs");
         }
 
         clearSelection();
-        updateUI();
+        if (pagedSongs != null) {
+            loadSongs();
+            return;
+        }
+        listVersion++;
+        updateViews();
         for (int position : removedPositions) {
             adapter.notifyItemRemoved(position);
         }
@@ -648,42 +888,76 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
     private void toggleSelection(Song song, int position) {
         song.setSelected(!song.isSelected());
+        if (pagedSongs != null) {
+            pagedSongs.onSelectionChanged(song);
+        }
         adapter.notifyItemChanged(position, "selection_changed");
         if (actionModeListener != null) {
-            actionModeListener.showCustomActionMode(getSelectedSongs().size());
+            actionModeListener.showCustomActionMode(getSelectedCount());
         }
-        if (getSelectedSongs().isEmpty()) {
+        if (getSelectedCount() == 0) {
             isLongClickInProgress = false;
             if (actionModeListener != null) {
                 actionModeListener.hideCustomActionMode();
             }
         }
-        Log.d(TAG, "toggleSelection: Song " + song.getTitle() + " selected=" + song.isSelected() + ", selectedCount=" + getSelectedSongs().size());
+        Log.d(TAG, "toggleSelection: Song " + song.getTitle() + " selected=" + song.isSelected() + ", selectedCount=" + getSelectedCount());
     }
 
-    public List<Song> getSelectedSongs() {
-        return adapter.getSelectedSongs();
+    private void loadSelectedSongs(Consumer<List<Song>> onLoaded) {
+        PagedSongList paged = pagedSongs;
+        if (paged == null) {
+            onLoaded.accept(adapter.getSelectedSongs());
+            return;
+        }
+        loadExecutor.execute(() -> {
+            List<Song> selected = paged.getSelectedSongs();
+            mainHandler.post(() -> {
+                if (recyclerView != null) {
+                    onLoaded.accept(selected);
+                }
+            });
+        });
+    }
+
+    public boolean hasSelection() {
+        return getSelectedCount() > 0;
+    }
+
+    private int getSelectedCount() {
+        if (pagedSongs != null) {
+            return pagedSongs.getSelectedCount();
+        }
+        return adapter.getSelectedSongs().size();
     }
 
     public void selectAll() {
-        for (Song song : songList) {
-            song.setSelected(true);
+        if (pagedSongs != null) {
+            pagedSongs.selectAll();
+        } else {
+            for (Song song : songList) {
+                song.setSelected(true);
+            }
         }
         adapter.setActionMode(true);
-        adapter.notifyItemRangeChanged(0, songList.size(), "selection_changed");
+        adapter.notifyItemRangeChanged(0, displayedSongs().size(), "selection_changed");
         if (actionModeListener != null) {
-            actionModeListener.showCustomActionMode(getSelectedSongs().size());
+            actionModeListener.showCustomActionMode(getSelectedCount());
         }
-        Log.d(TAG, "selectAll: Selected " + getSelectedSongs().size() + " songs");
+        Log.d(TAG, "selectAll: Selected " + getSelectedCount() + " songs");
     }
 
     public void clearSelection() {
-        for (Song song : songList) {
-            song.setSelected(false);
+        if (pagedSongs != null) {
+            pagedSongs.clearSelection();
+        } else {
+            for (Song song : songList.getMaterializedSongs()) {
+                song.setSelected(false);
+            }
         }
         isLongClickInProgress = false;
         adapter.setActionMode(false);
-        adapter.notifyItemRangeChanged(0, songList.size(), "selection_cleared");
+        adapter.notifyItemRangeChanged(0, displayedSongs().size(), "selection_cleared");
         if (actionModeListener != null) {
             actionModeListener.hideCustomActionMode();
         }
@@ -691,7 +965,10 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
     }
 
     public void shareSelectedSongs() {
-        List<Song> selectedSongs = getSelectedSongs();
+        loadSelectedSongs(this::shareSongs);
+    }
+
+    private void shareSongs(List<Song> selectedSongs) {
         if (selectedSongs.isEmpty()) {
             Log.d(TAG, "shareSelectedSongs: No songs selected");
             return;
@@ -733,100 +1010,75 @@ import java.util.Set;public class SongsFragment extends Fragment implements Loca
 
 
 
+        SongRepository.getInstance(requireContext()).requestSync();
+        if (displayedSongs().isEmpty() && isAllSongsTab() && !showingSearchResults) {
+            rescanStorage();
+        }
+    }
+
+    private void rescanStorage() {
+        Log.d(TAG, "rescanStorage: libraryIsEmptyScanningStorage");
+        Context appContext = requireContext().getApplicationContext();
         List<File> directoriesToScan = new ArrayList<>();
         File musicDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
         if (musicDir.exists() && musicDir.isDirectory()) {
             directoriesToScan.add(musicDir);
-            Log.d(TAG, "refreshSongList: addedDirectory Music: " + musicDir.getAbsolutePath());
+            Log.d(TAG, "rescanStorage: addedDirectory Music: " + musicDir.getAbsolutePath());
         }
         File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         if (downloadsDir.exists() && downloadsDir.isDirectory()) {
             directoriesToScan.add(downloadsDir);
-            Log.d(TAG, "refreshSongList: addedDownloadsDirectory: " + downloadsDir.getAbsolutePath());
+            Log.d(TAG, "rescanStorage: addedDownloadsDirectory: " + downloadsDir.getAbsolutePath());
         }
         File externalStorage = Environment.getExternalStorageDirectory();
         if (externalStorage.exists() && externalStorage.isDirectory()) {
             directoriesToScan.add(externalStorage);
-            Log.d(TAG, "refreshSongList: addedRootDirectory: " + externalStorage.getAbsolutePath());
-        }
-
-
-        List<String> filePaths = new ArrayList<>();
-        for (File dir : directoriesToScan) {
-            collectAudioFiles(dir, filePaths);
+            Log.d(TAG, "rescanStorage: addedRootDirectory: " + externalStorage.getAbsolutePath());
         }
 
-        if (filePaths.isEmpty()) {
-            Log.w(TAG, "refreshSongList: audioFilesNotFoundInScannedDirectories");
-            requireActivity().runOnUiThread(() -> {
-                Toast.makeText(requireContext(), "noAudioFilesFound", Toast.LENGTH_SHORT).show();
-                loadSongs();
-            });
-            return;
-        }
-
-        Log.d(TAG, "refreshSongList: found " + filePaths.size() + " audioFilesToScan: " + filePaths);
-
-
-        final int[] scanCount = {0};
-        final int totalFiles = filePaths.size();
 
-
-        MediaScannerConnection.scanFile(requireContext(), filePaths.toArray(new String[0]), null, (path, uri) -> {
-            synchronized (scanCount) {
-                scanCount[0]++;
-                Log.d(TAG, "refreshSongList: fileScanned, path=" + path + ", URI=" + uri +
-                        ", completed " + scanCount[0] + "/" + totalFiles);
-
-
-                if (scanCount[0] >= totalFiles) {
-                    Log.d(TAG, "refreshSongList: allFilesScannedWaitingForSynchronization MediaStore");
-
-                    new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                        Log.d(TAG, "refreshSongList: theDelayIsCompleteUpdatingTheListOfSongs");
-                        requireActivity().runOnUiThread(() -> {
-                            loadSongs();
-                            Toast.makeText(requireContext(), "songListUpdated", Toast.LENGTH_SHORT).show();
-                        });
-                    }, 1000);
-                }
+        new AudioFileScanner(appContext).scan(directoriesToScan, audioFileCount -> {
+            Log.d(TAG, "rescanStorage: scanFinished, audioFileCount=" + audioFileCount);
+            if (audioFileCount > 0) {
+                SongRepository.getInstance(appContext).requestSync();
+                return;
+            }
+            Activity activity = getActivity();
+            if (activity != null) {
+                activity.runOnUiThread(() -> Toast.makeText(appContext, "noAudioFilesFound", Toast.LENGTH_SHORT).show());
             }
         });
+    }
 
+    private static class SongTableDiff extends DiffUtil.Callback {
+        private final SongTable oldSongs;
+        private final SongTable newSongs;
 
-        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        mediaScanIntent.setData(Uri.fromFile(musicDir));
-        requireContext().sendBroadcast(mediaScanIntent);
-        Log.d(TAG, "refreshSongList: A broadcast message was sent to scan the Music directory");
-    }
+        SongTableDiff(SongTable oldSongs, SongTable newSongs) {
+            this.oldSongs = oldSongs;
+            this.newSongs = newSongs;
+        }
 
-    private void collectAudioFiles(File dir, List<String> filePaths) {
-        if (dir == null || !dir.isDirectory()) {
-            Log.w(TAG, "collectAudioFiles: invalidDirectory: " + (dir != null ? dir.getAbsolutePath() : "null"));
-            return;
+        @Override
+        public int getOldListSize() {
+            return oldSongs.size();
         }
 
-        File[] files = dir.listFiles();
-        if (files == null) {
-            Log.w(TAG, "collectAudioFiles:couldNotGetFilesFromTheDirectory: " + dir.getAbsolutePath());
-            return;
+        @Override
+        public int getNewListSize() {
+            return newSongs.size();
         }
 
-        for (File file : files) {
-            if (file.isDirectory()) {
-                collectAudioFiles(file, filePaths);
-            } else if (file.isFile()) {
-                String lowerName = file.getName().toLowerCase();
-                if (lowerName.endsWith(".mp3") || lowerName.endsWith(".wav") ||
-                        lowerName.endsWith(".aac") || lowerName.endsWith(".ogg")) {
-                    if (file.exists() && file.canRead()) {
-                        filePaths.add(file.getAbsolutePath());
-                        Log.d(TAG, "collectAudioFiles: audioFileFound: " + file.getAbsolutePath());
-                    } else {
-                        Log.w(TAG, "collectAudioFiles: inaccessibleFileSkipped: " + file.getAbsolutePath());
-                    }
-                }
-            }
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldSongs.getId(oldItemPosition) == newSongs.getId(newItemPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return TextUtils.equals(oldSongs.getTitle(oldItemPosition), newSongs.getTitle(newItemPosition)) &&
+                    TextUtils.equals(oldSongs.getArtist(oldItemPosition), newSongs.getArtist(newItemPosition)) &&
+                    TextUtils.equals(oldSongs.getData(oldItemPosition), newSongs.getData(newItemPosition));
         }
     }
 }
\ No newline at end of file
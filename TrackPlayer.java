@@ -0,0 +1,70 @@
+package com.example.promusic;
+
+import java.io.IOException;
+
+/**
+ * The part of a player that {@link MusicService} uses, so the playback backend can be chosen
+ * per device. The calls follow {@link android.media.MediaPlayer}: set a data source, prepare
+ * asynchronously, then start, pause, seek and reset for the next track. A player is created,
+ * driven and called back on one looper thread.
+ */
+public interface TrackPlayer {
+    /**
+     * Player events, delivered on the thread that created the player.
+     */
+    interface Listener {
+        void onPrepared(TrackPlayer player);
+
+        boolean onError(TrackPlayer player, int what, int extra);
+
+        void onCompletion(TrackPlayer player);
+
+        void onSeekComplete(TrackPlayer player);
+
+        /**
+         * The first time after a prepare that the player's output position moves, meaning
+         * samples have reached the audio sink.
+         */
+        void onAudioStarted(TrackPlayer player);
+    }
+
+    /**
+     * Name of the backend, as stored in the playback preferences.
+     */
+    String getBackend();
+
+    void setListener(Listener listener);
+
+    void setDataSource(String path) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void reset();
+
+    void release();
+
+    void seekTo(int positionMs);
+
+    boolean isPlaying();
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    void setVolume(float left, float right);
+
+    void setLooping(boolean looping);
+
+    /**
+     * Has {@code next} start on its own when this player completes, or clears that with null.
+     * Returns false if the backend cannot chain to {@code next}; the caller then starts it
+     * from the completion callback.
+     */
+    boolean setNextPlayer(TrackPlayer next);
+}
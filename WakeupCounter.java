@@ -0,0 +1,64 @@
+package com.example.promusic;
+
+import android.os.SystemClock;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the times the app's playback threads wake up from a wait, per source, so playback
+ * modes can be compared in wakeups per hour. There are two sources: "decode", the
+ * {@link CodecTrackPlayer} decode thread, and "command", each command the service's engine
+ * thread runs. No timer ticks while a track plays, so with MediaPlayer both stay near zero
+ * between commands. Only wakeups of this process are seen: decoding inside the media server,
+ * as with MediaPlayer, is not counted.
+ */
+public class WakeupCounter {
+    private static final WakeupCounter instance = new WakeupCounter();
+
+    private final Map<String, AtomicLong> counts = new ConcurrentHashMap<>();
+    private volatile long since = SystemClock.elapsedRealtime();
+
+    private WakeupCounter() {
+    }
+
+    public static WakeupCounter getInstance() {
+        return instance;
+    }
+
+    public void record(String source) {
+        AtomicLong count = counts.get(source);
+        if (count == null) {
+            count = counts.computeIfAbsent(source, key -> new AtomicLong());
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Starts a new measuring window, for example when the playback mode changes.
+     */
+    public void reset() {
+        counts.clear();
+        since = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Wakeups per hour for each source since the last reset.
+     */
+    public Map<String, Long> getWakeupsPerHour() {
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - since, 1);
+        Map<String, Long> rates = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            rates.put(entry.getKey(), entry.getValue().get() * 3_600_000L / elapsed);
+        }
+        return rates;
+    }
+
+    @Override
+    public String toString() {
+        return "WakeupCounter{perHour=" + getWakeupsPerHour() + ", windowMs=" +
+                (SystemClock.elapsedRealtime() - since) + "}";
+    }
+}